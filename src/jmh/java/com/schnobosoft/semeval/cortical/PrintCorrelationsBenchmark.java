@@ -0,0 +1,72 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the correlation computation in {@link PrintCorrelations}.
+ *
+ * @author Carsten Schnober
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class PrintCorrelationsBenchmark
+{
+    @Param({ "1000", "100000", "10000000" })
+    public int size;
+
+    private ScoreMatrix gold;
+    private ScoreMatrix scores;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        ScoreMatrix metrics = ScoreMatrix.fromMetrics(UtilBenchmark.syntheticMetrics(size, 1));
+        metrics.scale(Measure.COSINE_SIM.ordinal(), Measure.COSINE_SIM);
+        scores = ScoreMatrix.column(metrics.getColumn(Measure.COSINE_SIM.ordinal()),
+                metrics.getMissing());
+        ScoreMatrix goldMetrics = ScoreMatrix.fromMetrics(UtilBenchmark.syntheticMetrics(size, 2));
+        goldMetrics.scale(Measure.COSINE_SIM.ordinal(), Measure.COSINE_SIM);
+        gold = ScoreMatrix.column(goldMetrics.getColumn(Measure.COSINE_SIM.ordinal()),
+                goldMetrics.getMissing());
+    }
+
+    @Benchmark
+    public double getPearson()
+    {
+        return PrintCorrelations.getPearson(gold, scores);
+    }
+}
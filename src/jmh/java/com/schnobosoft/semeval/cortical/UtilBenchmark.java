@@ -0,0 +1,173 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import io.cortical.rest.model.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the score extraction, scaling and I/O methods of {@link ScoreMatrix}, on
+ * synthetic {@link Metric}s.
+ *
+ * @author Carsten Schnober
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class UtilBenchmark
+{
+    /**
+     * Create synthetic metrics with values in the ranges returned by the API.
+     *
+     * @param size the number of metrics
+     * @param seed the random seed
+     * @return an array of {@link Metric}s
+     */
+    static Metric[] syntheticMetrics(int size, long seed)
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        Metric[] metrics = new Metric[size];
+        for (int i = 0; i < size; i++) {
+            int sizeLeft = 100 + random.nextInt(400);
+            int sizeRight = 100 + random.nextInt(400);
+            int overlap = random.nextInt(Math.min(sizeLeft, sizeRight));
+            metrics[i] = Util.arrayToMetric(new double[] {
+                    overlap / Math.sqrt((double) sizeLeft * sizeRight),
+                    random.nextDouble(),
+                    1.0 - (double) overlap / (sizeLeft + sizeRight - overlap),
+                    overlap,
+                    (double) overlap / sizeLeft,
+                    (double) overlap / sizeRight,
+                    sizeLeft,
+                    sizeRight,
+                    random.nextDouble() * 50 });
+        }
+        return metrics;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Metrics
+    {
+        @Param({ "1000", "100000", "10000000" })
+        public int size;
+
+        Metric[] metrics;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            metrics = syntheticMetrics(size, 1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Scores
+    {
+        @Param({ "1000", "100000", "10000000" })
+        public int size;
+
+        @Param({ "COSINE_SIM", "EUCLIDIAN_DIST", "JACCARD_DIST", "OVERLAP", "WEIGHTED" })
+        public Measure measure;
+
+        /* the unscaled column; scaling is in place, so each invocation starts from a copy */
+        double[] original;
+        ScoreMatrix matrix;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            original = ScoreMatrix.fromMetrics(syntheticMetrics(size, 1))
+                    .getColumn(measure.ordinal()).clone();
+            matrix = ScoreMatrix.column(original.clone(), new BitSet());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ScoresFile
+    {
+        @Param({ "1000", "100000", "10000000" })
+        public int size;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp()
+                throws IOException
+        {
+            file = File.createTempFile(Util.GS_FILE_PREFIX, ".txt");
+            SplittableRandom random = new SplittableRandom(1);
+            try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+                for (int i = 0; i < size; i++) {
+                    writer.write(String.valueOf(random.nextDouble() * Util.MAX_OUT) + "\n");
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+                throws IOException
+        {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Benchmark
+    public ScoreMatrix scoreMatrixFromMetrics(Metrics state)
+    {
+        return ScoreMatrix.fromMetrics(state.metrics);
+    }
+
+    @Benchmark
+    public ScoreMatrix scoreMatrixScale(Scores state)
+    {
+        System.arraycopy(state.original, 0, state.matrix.getColumn(0), 0, state.size);
+        state.matrix.scale(0, state.measure);
+        return state.matrix;
+    }
+
+    @Benchmark
+    public ScoreMatrix scoreMatrixRead(ScoresFile state)
+            throws IOException
+    {
+        return ScoreMatrix.read(state.file);
+    }
+}
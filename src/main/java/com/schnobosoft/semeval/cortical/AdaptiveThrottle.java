@@ -0,0 +1,300 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sun.jersey.api.client.ClientHandlerException;
+import io.cortical.services.api.client.ApiException;
+import io.cortical.services.api.client.ApiInvoker;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controls the calls to the Retina API:
+ * <ul>
+ * <li>a token bucket limits the request rate to a fixed number of requests per second</li>
+ * <li>the number of concurrent requests is adapted by additive increase and multiplicative
+ * decrease (AIMD): it is increased after fast successful requests, and decreased when the latency
+ * grows beyond {@link #LATENCY_TOLERANCE} times the baseline latency, or when the API responds
+ * with status 429 or 5xx</li>
+ * <li>requests that fail with status 429, 5xx or a connection error are retried with jittered
+ * exponential backoff</li>
+ * </ul>
+ * One instance should be shared by all API objects that send requests to the same host.
+ *
+ * @author Carsten Schnober
+ */
+public class AdaptiveThrottle
+{
+    private static final Log LOG = LogFactory.getLog(AdaptiveThrottle.class);
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_DECREASE = 0.9;
+    private static final double FAILURE_DECREASE = 0.5;
+    private static final long BASE_DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 30000;
+    /* the message of the NullPointerException for an unknown status with helpful NPE messages */
+    private static final String NULL_STATUS_MESSAGE = "getClientResponseStatus()\" is null";
+
+    private final double rate;
+    private final int maxConcurrency;
+    private final int maxRetries;
+
+    /* token bucket state; tokens can become negative for reserved permits */
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /* concurrency limit state, guarded by this */
+    private double limit;
+    private int inFlight;
+    private double baselineNanos = Double.NaN;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong connectionErrors = new AtomicLong();
+    private final AtomicBoolean unknownStatusLogged = new AtomicBoolean();
+
+    /**
+     * A call to the Retina API.
+     *
+     * @param <T> the result type
+     */
+    public interface ApiCall<T>
+    {
+        T call()
+                throws JsonProcessingException, ApiException;
+    }
+
+    /**
+     * @param rate           the maximum number of requests per second; 0 for no limit
+     * @param maxConcurrency the maximum number of concurrent requests; this is also the initial
+     *                       concurrency limit
+     * @param maxRetries     the maximum number of retries per request
+     */
+    public AdaptiveThrottle(double rate, int maxConcurrency, int maxRetries)
+    {
+        this(rate, maxConcurrency, maxConcurrency, maxRetries);
+    }
+
+    /**
+     * @param rate               the maximum number of requests per second; 0 for no limit
+     * @param initialConcurrency the initial concurrency limit
+     * @param maxConcurrency     the hard cap of the concurrency limit; callers should run at least
+     *                           this many request threads, so that the limit can be reached
+     * @param maxRetries         the maximum number of retries per request
+     */
+    public AdaptiveThrottle(double rate, int initialConcurrency, int maxConcurrency,
+            int maxRetries)
+    {
+        if (initialConcurrency < 1 || maxConcurrency < initialConcurrency) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency: " + initialConcurrency + " of " + maxConcurrency);
+        }
+        this.rate = rate;
+        this.tokens = rate;
+        this.maxConcurrency = maxConcurrency;
+        this.limit = initialConcurrency;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Execute an API call, waiting for the rate and concurrency limits, and retrying failed
+     * requests.
+     *
+     * @param call the API call
+     * @param <T>  the result type
+     * @return the result of the call
+     * @throws JsonProcessingException
+     * @throws ApiException            if the call fails with a status that is not retried, or if
+     *                                 the maximum number of retries is exceeded
+     */
+    public <T> T execute(ApiCall<T> call)
+            throws JsonProcessingException, ApiException
+    {
+        for (int attempt = 0; ; attempt++) {
+            sleep(reserveToken());
+            acquireSlot();
+            requests.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                long nanos = System.nanoTime() - start;
+                RunMetrics.get().recordRequest(nanos);
+                onSuccess(nanos);
+                return result;
+            }
+            catch (ApiException e) {
+                if (!isRetryable(e.getCode()) || attempt >= maxRetries) {
+                    throw e;
+                }
+                (e.getCode() == 429 ? throttled : serverErrors).incrementAndGet();
+                onFailure();
+            }
+            catch (NullPointerException e) {
+                if (!isUnknownStatus(e) || attempt >= maxRetries) {
+                    throw e;
+                }
+                if (unknownStatusLogged.compareAndSet(false, true)) {
+                    LOG.warn("Handling a response with a status unknown to the client library "
+                            + "as status 429.", e);
+                }
+                throttled.incrementAndGet();
+                onFailure();
+            }
+            catch (ClientHandlerException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                connectionErrors.incrementAndGet();
+                onFailure();
+            }
+            finally {
+                releaseSlot();
+            }
+            retries.incrementAndGet();
+            sleep(TimeUnit.MILLISECONDS.toNanos(backoff(attempt)));
+        }
+    }
+
+    /**
+     * @return the current limit for concurrent requests
+     */
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public void logStatistics()
+    {
+        LOG.info(String.format("%d API requests, %d retries (%d rate limited, %d server errors, "
+                        + "%d connection errors); concurrency limit %d of %d.", requests.get(),
+                retries.get(), throttled.get(), serverErrors.get(), connectionErrors.get(),
+                getLimit(), maxConcurrency));
+    }
+
+    private static boolean isRetryable(int code)
+    {
+        return code == 429 || code >= 500;
+    }
+
+    /**
+     * The client library fails with a {@link NullPointerException} in
+     * {@code ApiInvoker.invokeAPI} on response statuses that are unknown to Jersey 1.x, such as 429
+     * (too many requests), because the response has no status object. Such failures are handled
+     * like status 429. Other {@link NullPointerException}s are identified by their message, if
+     * the JVM provides one.
+     */
+    private static boolean isUnknownStatus(NullPointerException e)
+    {
+        StackTraceElement[] stackTrace = e.getStackTrace();
+        return stackTrace.length > 0
+                && stackTrace[0].getClassName().equals(ApiInvoker.class.getName())
+                && stackTrace[0].getMethodName().equals("invokeAPI")
+                && (e.getMessage() == null || e.getMessage().contains(NULL_STATUS_MESSAGE));
+    }
+
+    /**
+     * Compute the backoff before a retry: a random delay between 0 and an exponentially growing
+     * upper bound ("full jitter").
+     */
+    private static long backoff(int attempt)
+    {
+        long bound = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Take a token from the bucket.
+     *
+     * @return the time to wait in nanoseconds until the token is available
+     */
+    private synchronized long reserveToken()
+    {
+        if (rate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+        tokens--;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+    }
+
+    private synchronized void acquireSlot()
+    {
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a request slot.", e);
+        }
+        inFlight++;
+    }
+
+    private synchronized void releaseSlot()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Adapt the concurrency limit to the latency of a successful request. The baseline is the
+     * lowest latency observed, drifting slowly towards the current latency.
+     */
+    private synchronized void onSuccess(long nanos)
+    {
+        baselineNanos = Double.isNaN(baselineNanos) ?
+                nanos :
+                Math.min(nanos, baselineNanos + (nanos - baselineNanos) * 0.01);
+        if (nanos > LATENCY_TOLERANCE * baselineNanos) {
+            limit = Math.max(1, limit * LATENCY_DECREASE);
+        }
+        else {
+            limit = Math.min(maxConcurrency, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onFailure()
+    {
+        RunMetrics.get().recordFailure();
+        limit = Math.max(1, limit * FAILURE_DECREASE);
+    }
+
+    private static void sleep(long nanos)
+    {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to send a request.", e);
+        }
+    }
+}
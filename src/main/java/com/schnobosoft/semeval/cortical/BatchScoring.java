@@ -0,0 +1,255 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.services.Compare;
+import io.cortical.services.RetinaApis;
+import io.cortical.services.Texts;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Score many SemEval input files with one or more retinas in a single run.
+ * <p>
+ * Each input file is read and deduplicated once, and scored with all retinas. All
+ * (file, retina) combinations are scored concurrently, sharing one {@link AdaptiveThrottle}, one
+ * {@link Compare} API per retina and one pool of {@link Util#MAX_THREADS} request threads. The
+ * output files are named as in {@link SemEvalTextSimilarity}. If the system property
+ * {@code semeval.correlations} is set to true, the correlations are computed by
+ * {@link PrintCorrelations} for each input file that has a gold standard file. If a
+ * {@link MeasureEnsemble} model is set ({@link Util#ENSEMBLE_MODEL}), the ensemble scores are
+ * written for each input file.
+ * <p>
+ * Call arguments: {@code <directory or glob> <api key> [<ass|syn|all>]}
+ * <p>
+ * The first argument is a directory containing input files, beginning with
+ * {@link Util#INPUT_FILE_PREFIX}, or a glob pattern for input files, e.g.
+ * {@code data/STS.input.*.txt}. By default, both retinas are used. Streaming (see
+ * {@link Util#STREAMING}) is not supported in batch mode.
+ *
+ * @author Carsten Schnober
+ */
+public class BatchScoring
+{
+    private static final Log LOG = LogFactory.getLog(BatchScoring.class);
+    private static final boolean CORRELATIONS = Boolean.getBoolean("semeval.correlations");
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Call: " + BatchScoring.class.getCanonicalName()
+                    + " <directory or glob> <api key> [<ass|syn|all>]");
+        }
+        File location = new File(args[0]);
+        String apiKey = args[1];
+        Set<Retina> retinas = args.length > 2 ?
+                parseRetinas(args[2]) :
+                EnumSet.allOf(Retina.class);
+
+        List<File> inputFiles = findInputFiles(location);
+        if (inputFiles.isEmpty()) {
+            throw new IllegalArgumentException("No input files found: " + location);
+        }
+        LOG.info(String.format("Scoring %d input files with %s at %s.", inputFiles.size(),
+                retinas, Util.RETINA_HOST));
+        RunMetrics.get().register();
+        RunMetrics.get().writeReportOnExit(new File(location.isDirectory() ?
+                location :
+                location.getAbsoluteFile().getParentFile(), "batch" + Util.METRICS_FILE_SUFFIX));
+
+        List<File> scored = score(inputFiles, retinas, apiKey);
+        for (File inputFile : scored) {
+            MeasureEnsemble.writeOutput(inputFile);
+        }
+
+        if (CORRELATIONS) {
+            for (File inputFile : scored) {
+                if (CorrelationReport.getGoldFile(inputFile).exists()) {
+                    PrintCorrelations.saveCorrelations(inputFile);
+                }
+                else {
+                    LOG.warn("No gold standard file for " + inputFile);
+                }
+            }
+        }
+        if (scored.size() < inputFiles.size()) {
+            throw new IllegalStateException(String.format("Scoring failed for %d of %d input files.",
+                    inputFiles.size() - scored.size(), inputFiles.size()));
+        }
+    }
+
+    /**
+     * Score all input files with all retinas concurrently. Failures are logged, and do not affect
+     * the other (file, retina) combinations.
+     *
+     * @param inputFiles the input files
+     * @param retinas    the {@link Retina}s to use
+     * @param apiKey     the API key
+     * @return the input files that have been scored successfully with all retinas
+     */
+    public static List<File> score(List<File> inputFiles, Set<Retina> retinas, String apiKey)
+    {
+        AdaptiveThrottle throttle = Util.getThrottle();
+        Map<Retina, Compare> compareApis = new EnumMap<>(Retina.class);
+        Map<Retina, Texts> textApis = new EnumMap<>(Retina.class);
+        for (Retina retina : retinas) {
+            RetinaApis api = Util.getApi(apiKey, retina, Util.RETINA_HOST);
+            compareApis.put(retina, Util.LOCAL_COMPARE ?
+                    null :
+                    Util.getCompareApi(api, retina, throttle));
+            textApis.put(retina, Util.getTextApi(api, throttle));
+        }
+
+        int jobs = inputFiles.size() * retinas.size();
+        ExecutorService jobExecutor = Executors.newFixedThreadPool(Math.min(jobs, Util.THREADS));
+        ExecutorService requestExecutor = Executors.newFixedThreadPool(Util.MAX_THREADS);
+        List<File> scored = new ArrayList<>();
+        try {
+            List<CompletableFuture<File>> files = new ArrayList<>();
+            for (File inputFile : inputFiles) {
+                CompletableFuture<Deduplication> input = CompletableFuture.supplyAsync(
+                        () -> readInput(inputFile), jobExecutor);
+                CompletableFuture<?>[] scores = retinas.stream()
+                        .map(retina -> input.thenAcceptAsync(deduplication -> score(inputFile,
+                                deduplication, retina, compareApis.get(retina),
+                                textApis.get(retina), requestExecutor), jobExecutor))
+                        .toArray(CompletableFuture[]::new);
+                files.add(CompletableFuture.allOf(scores).thenApply(ignored -> inputFile));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    scored.add(files.get(i).join());
+                }
+                catch (CompletionException e) {
+                    LOG.warn("Skipping " + inputFiles.get(i) + " after a failure.");
+                }
+            }
+        }
+        finally {
+            jobExecutor.shutdown();
+            requestExecutor.shutdown();
+        }
+
+        compareApis.values().stream()
+                .filter(compareApi -> compareApi instanceof CachingCompare)
+                .forEach(compareApi -> ((CachingCompare) compareApi).logStatistics());
+        throttle.logStatistics();
+        return scored;
+    }
+
+    /**
+     * Find the input files in a directory, or the input files matching a glob pattern. Files
+     * written for an input file (e.g. metrics and correlations) are ignored.
+     *
+     * @param location a directory or a glob pattern for files in a directory
+     * @return the input files, sorted by name
+     * @throws IOException
+     */
+    public static List<File> findInputFiles(File location)
+            throws IOException
+    {
+        Path directory;
+        PathMatcher matcher;
+        if (location.isDirectory()) {
+            directory = location.toPath();
+            matcher = path -> true;
+        }
+        else {
+            directory = location.getAbsoluteFile().getParentFile().toPath();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + location.getName());
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> matcher.matches(path.getFileName()))
+                    .map(Path::toFile)
+                    .filter(BatchScoring::isInputFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isInputFile(File file)
+    {
+        String name = CompressedFiles.baseName(file.getName());
+        return file.isFile() && name.startsWith(Util.INPUT_FILE_PREFIX)
+                && !name.endsWith(Util.METRICS_FILE_SUFFIX)
+                && !name.endsWith(Util.JOURNAL_FILE_SUFFIX)
+                && !name.endsWith(Util.BOUNDS_FILE_SUFFIX)
+                && !name.endsWith(Util.CORRELATIONS_FILE_SUFFIX);
+    }
+
+    private static Set<Retina> parseRetinas(String arg)
+    {
+        if (arg.toLowerCase().startsWith("syn")) {
+            return EnumSet.of(Retina.EN_SYNONYMOUS);
+        }
+        else if (arg.toLowerCase().startsWith("ass")) {
+            return EnumSet.of(Retina.EN_ASSOCIATIVE);
+        }
+        return EnumSet.allOf(Retina.class);
+    }
+
+    private static Deduplication readInput(File inputFile)
+    {
+        try {
+            CompareModels[] input = SemEvalTextSimilarity.readInput(inputFile);
+            Deduplication deduplication = Deduplication.of(input);
+            deduplication.logStatistics();
+            return deduplication;
+        }
+        catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void score(File inputFile, Deduplication deduplication, Retina retina,
+            Compare compareApi, Texts textApi, ExecutorService executor)
+    {
+        LOG.info("Scoring " + inputFile + " with " + retina.name().toLowerCase() + ".");
+        try {
+            SemEvalTextSimilarity.score(inputFile, deduplication, retina, compareApi, textApi,
+                    executor);
+        }
+        catch (Exception e) {
+            LOG.error("Scoring failed for " + inputFile + " with " + retina.name().toLowerCase(),
+                    e);
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * A binary columnar file holding the scores of all measures for one retina.
+ * <p>
+ * The file is little-endian and consists of:
+ * <ul>
+ * <li>the magic bytes {@code SEMSCORE} and an {@code int} format version</li>
+ * <li>the retina name and the number of measures followed by the measure names, each name
+ * stored as a {@code short} length and UTF-8 bytes</li>
+ * <li>the number of rows as an {@code int}</li>
+ * <li>the missing-value bitmap as {@code long} words, aligned to 8 bytes</li>
+ * <li>one column of {@code double} values for each measure</li>
+ * </ul>
+ * Files are read through read-only memory mappings of the header and of each column, so that the
+ * file size is not limited by that of a single mapping; a column can hold at most
+ * {@link #MAX_ROWS} values.
+ *
+ * @author Carsten Schnober
+ */
+public class BinaryScoreFile
+{
+    private static final Log LOG = LogFactory.getLog(BinaryScoreFile.class);
+    private static final byte[] MAGIC = "SEMSCORE".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    /** the maximum number of rows, so that a column fits into a single memory mapping */
+    public static final int MAX_ROWS = Integer.MAX_VALUE / Double.BYTES;
+    /* the number of rows written at a time */
+    private static final int CHUNK_ROWS = 1 << 16;
+
+    private final Retina retina;
+    private final Measure[] measures;
+    private final int rows;
+    private final BitSet missing;
+    private final MappedByteBuffer[] columns;
+
+    private BinaryScoreFile(Retina retina, Measure[] measures, int rows, BitSet missing,
+            MappedByteBuffer[] columns)
+    {
+        this.retina = retina;
+        this.measures = measures;
+        this.rows = rows;
+        this.missing = missing;
+        this.columns = columns;
+    }
+
+    /**
+     * Write the columns of a {@link ScoreMatrix} for the given measures. The column index of each
+     * measure in the matrix is its ordinal, as in {@link ScoreMatrix#fromMetrics}.
+     *
+     * @param scores     the scores
+     * @param retinaName the {@link Retina} that was used to compute the scores
+     * @param measures   the {@link Measure}s to write
+     * @param file       the output file
+     * @throws IOException
+     */
+    public static void write(ScoreMatrix scores, Retina retinaName, Collection<Measure> measures,
+            File file)
+            throws IOException
+    {
+        LOG.info("Writing binary scores file " + file);
+        int rows = scores.size();
+        if (rows > MAX_ROWS) {
+            throw new IllegalArgumentException("Too many rows: " + rows + " > " + MAX_ROWS);
+        }
+        long[] missingWords = Arrays.copyOf(scores.getMissing().toLongArray(), (rows + 63) / 64);
+
+        ByteBuffer header = ByteBuffer.allocate(
+                headerSize(retinaName, measures) + missingWords.length * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION);
+        putString(header, retinaName.name());
+        header.putInt(measures.size());
+        measures.forEach(measure -> putString(header, measure.name()));
+        header.putInt(rows);
+        while (header.position() % Long.BYTES != 0) {
+            header.put((byte) 0);
+        }
+        for (long word : missingWords) {
+            header.putLong(word);
+        }
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_ROWS * Double.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (Measure measure : measures) {
+                double[] column = scores.getColumn(measure.ordinal());
+                for (int from = 0; from < rows; from += CHUNK_ROWS) {
+                    int length = Math.min(CHUNK_ROWS, rows - from);
+                    chunk.clear();
+                    chunk.asDoubleBuffer().put(column, from, length);
+                    chunk.limit(length * Double.BYTES);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Open a binary scores file by memory-mapping its columns.
+     *
+     * @param file the binary scores file
+     * @return a {@link BinaryScoreFile}
+     * @throws IOException if the file cannot be read or is not a binary scores file
+     */
+    public static BinaryScoreFile open(File file)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            /* the header and the missing-value bitmap are within the first 2 GB */
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(size, Integer.MAX_VALUE));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a binary scores file.");
+            }
+            Retina retina = Retina.valueOf(getString(header));
+            Measure[] measures = new Measure[header.getInt()];
+            for (int i = 0; i < measures.length; i++) {
+                measures[i] = Measure.valueOf(getString(header));
+            }
+            int rows = header.getInt();
+            if (rows < 0 || rows > MAX_ROWS) {
+                throw new IOException(file + " has an unsupported number of rows: " + rows);
+            }
+            while (header.position() % Long.BYTES != 0) {
+                header.get();
+            }
+            long[] missingWords = new long[(rows + 63) / 64];
+            header.asLongBuffer().get(missingWords);
+            long dataOffset = header.position() + (long) missingWords.length * Long.BYTES;
+
+            long columnSize = (long) rows * Double.BYTES;
+            if (size != dataOffset + measures.length * columnSize) {
+                throw new IOException(file + " has an invalid size.");
+            }
+            MappedByteBuffer[] columns = new MappedByteBuffer[measures.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset + i * columnSize, columnSize);
+            }
+            return new BinaryScoreFile(retina, measures, rows, BitSet.valueOf(missingWords),
+                    columns);
+        }
+    }
+
+    public Retina getRetina()
+    {
+        return retina;
+    }
+
+    public Measure[] getMeasures()
+    {
+        return measures.clone();
+    }
+
+    public int size()
+    {
+        return rows;
+    }
+
+    public boolean contains(Measure measure)
+    {
+        return Arrays.asList(measures).contains(measure);
+    }
+
+    /**
+     * Get a view of the mapped column for a measure.
+     *
+     * @param measure a {@link Measure} contained in this file
+     * @return a read-only {@link DoubleBuffer} holding one value per row
+     */
+    public DoubleBuffer getColumn(Measure measure)
+    {
+        int index = Arrays.asList(measures).indexOf(measure);
+        if (index < 0) {
+            throw new IllegalArgumentException("Measure not found: " + measure);
+        }
+        return columns[index].duplicate().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Copy the column for a measure into a single-column {@link ScoreMatrix}.
+     *
+     * @param measure a {@link Measure} contained in this file
+     * @return a {@link ScoreMatrix} with the scores and missing values for the measure
+     */
+    public ScoreMatrix toScoreMatrix(Measure measure)
+    {
+        double[] values = new double[rows];
+        getColumn(measure).get(values);
+        return ScoreMatrix.column(values, (BitSet) missing.clone());
+    }
+
+    private static int headerSize(Retina retinaName, Collection<Measure> measures)
+    {
+        int size = MAGIC.length + Integer.BYTES + stringSize(retinaName.name()) + Integer.BYTES;
+        for (Measure measure : measures) {
+            size += stringSize(measure.name());
+        }
+        size += Integer.BYTES;
+        size = (size + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+        return size;
+    }
+
+    private static int stringSize(String s)
+    {
+        return Short.BYTES + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
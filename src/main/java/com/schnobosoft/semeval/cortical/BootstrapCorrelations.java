@@ -0,0 +1,248 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.CorrelationReport.Correlations;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Bootstrap confidence intervals for the Pearson correlations in a {@link CorrelationReport}, and
+ * paired bootstrap tests between all pairs of configurations (retina and measure).
+ * <p>
+ * All configurations are evaluated on the same resamples of the rows that are present in the
+ * gold standard and in all the score files. The replicates are split into blocks that run in
+ * parallel, each with its own random number generator split from a fixed seed, so that results
+ * are reproducible. Replicates without a finite correlation (resamples without variance) are
+ * left out of the intervals and tests; their number is reported.
+ *
+ * @author Carsten Schnober
+ */
+public class BootstrapCorrelations
+{
+    private static final Log LOG = LogFactory.getLog(BootstrapCorrelations.class);
+    private static final long SEED = 42;
+    private static final double ALPHA = 0.05;
+    private static final int BLOCK_SIZE = 100;
+
+    private final List<Correlations> configurations;
+    private final double[] observed;
+    /* bootstrap replicates, indexed by [configuration][replicate] */
+    private final double[][] replicates;
+    private final int n;
+
+    private BootstrapCorrelations(List<Correlations> configurations, double[] observed,
+            double[][] replicates, int n)
+    {
+        this.configurations = configurations;
+        this.observed = observed;
+        this.replicates = replicates;
+        this.n = n;
+    }
+
+    /**
+     * Compute bootstrap replicates of the Pearson correlation for all configurations.
+     *
+     * @param gold           the gold standard scores
+     * @param configurations the configurations as computed by {@link CorrelationReport}
+     * @param replicateCount the number of bootstrap replicates
+     * @param pool           the {@link ForkJoinPool} to run on
+     * @return a new {@link BootstrapCorrelations} object
+     */
+    public static BootstrapCorrelations compute(ScoreMatrix gold, List<Correlations> configurations,
+            int replicateCount, ForkJoinPool pool)
+    {
+        int k = configurations.size();
+        int[] rows = IntStream.range(0, gold.size())
+                .filter(row -> !gold.isMissing(row) && configurations.stream()
+                        .noneMatch(c -> c.scores.isMissing(row)))
+                .toArray();
+        int n = rows.length;
+        double[] x = new double[n];
+        double[][] y = new double[k][n];
+        for (int i = 0; i < n; i++) {
+            x[i] = gold.get(0, rows[i]);
+            for (int c = 0; c < k; c++) {
+                y[c][i] = configurations.get(c).scores.get(0, rows[i]);
+            }
+        }
+        LOG.info("Computing " + replicateCount + " bootstrap replicates for " + k
+                + " configurations on " + n + " pairs.");
+
+        int[] identity = IntStream.range(0, n).toArray();
+        double[] observed = new double[k];
+        pearson(x, y, identity, observed);
+
+        double[][] replicates = new double[k][replicateCount];
+        int blocks = (replicateCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        SplittableRandom root = new SplittableRandom(SEED);
+        SplittableRandom[] randoms = new SplittableRandom[blocks];
+        for (int b = 0; b < blocks; b++) {
+            randoms[b] = root.split();
+        }
+
+        pool.submit(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+            int[] sample = new int[n];
+            double[] result = new double[k];
+            for (int r = b * BLOCK_SIZE; r < Math.min((b + 1) * BLOCK_SIZE, replicateCount); r++) {
+                for (int i = 0; i < n; i++) {
+                    sample[i] = randoms[b].nextInt(n);
+                }
+                pearson(x, y, sample, result);
+                for (int c = 0; c < k; c++) {
+                    replicates[c][r] = result[c];
+                }
+            }
+        })).join();
+
+        return new BootstrapCorrelations(configurations, observed, replicates, n);
+    }
+
+    /**
+     * Append the confidence intervals and the paired tests to a report file.
+     *
+     * @param targetFile the report file
+     * @throws IOException
+     */
+    public void append(File targetFile)
+            throws IOException
+    {
+        int k = configurations.size();
+        int replicateCount = k == 0 ? 0 : replicates[0].length;
+        LOG.info("Appending bootstrap results to " + targetFile);
+
+        try (Writer writer = CompressedFiles.newWriter(targetFile, true)) {
+            writer.write(String.format("%nBootstrap Pearson correlation (%d replicates, %d pairs, "
+                    + "%.0f%% percentile intervals)%n", replicateCount, n, 100 * (1 - ALPHA)));
+            writer.write("retina\tmeasure\tpearson\tlower\tupper\n");
+            for (int c = 0; c < k; c++) {
+                double[] finite = finite(replicates[c]);
+                double[] interval = interval(finite);
+                writer.write(String.format("%s\t%.4f\t%.4f\t%.4f%s%n", name(c), observed[c],
+                        interval[0], interval[1], note(finite.length, replicateCount)));
+            }
+
+            writer.write(String.format("%nPaired bootstrap tests (difference of Pearson "
+                    + "correlations, two-sided)%n"));
+            writer.write("retina\tmeasure\tretina\tmeasure\tdifference\tlower\tupper\tp\n");
+            double[] diff = new double[replicateCount];
+            for (int c1 = 0; c1 < k; c1++) {
+                for (int c2 = c1 + 1; c2 < k; c2++) {
+                    int finite = 0;
+                    int below = 0;
+                    int above = 0;
+                    for (int r = 0; r < replicateCount; r++) {
+                        double d = replicates[c1][r] - replicates[c2][r];
+                        if (Double.isFinite(d)) {
+                            diff[finite++] = d;
+                            below += d <= 0 ? 1 : 0;
+                            above += d >= 0 ? 1 : 0;
+                        }
+                    }
+                    double p = finite == 0 ?
+                            Double.NaN :
+                            Math.min(1.0, 2.0 * Math.min(below, above) / finite);
+                    double[] interval = interval(Arrays.copyOf(diff, finite));
+                    writer.write(String.format("%s\t%s\t%.4f\t%.4f\t%.4f\t%.4f%s%n", name(c1),
+                            name(c2), observed[c1] - observed[c2], interval[0], interval[1], p,
+                            note(finite, replicateCount)));
+                }
+            }
+        }
+    }
+
+    private String name(int configuration)
+    {
+        Correlations c = configurations.get(configuration);
+        return c.retina.name().toLowerCase() + "\t" + c.measure;
+    }
+
+    /**
+     * Compute the Pearson correlations between {@code x} and each row of {@code y} for a sample
+     * of row indexes, in a single pass over the sample. The moments are updated as in
+     * {@link ScoreMatrix#pearson(ScoreMatrix, int, ScoreMatrix, int)}, so that the results agree
+     * with the correlations in the report. A constant sample gives {@link Double#NaN}.
+     */
+    private static void pearson(double[] x, double[][] y, int[] sample, double[] result)
+    {
+        int k = y.length;
+        long n = 0;
+        double meanX = 0, m2x = 0;
+        double[] meanY = new double[k];
+        double[] m2y = new double[k];
+        double[] cov = new double[k];
+        for (int i : sample) {
+            n++;
+            double dx = x[i] - meanX;
+            meanX += dx / n;
+            m2x += dx * (x[i] - meanX);
+            for (int c = 0; c < k; c++) {
+                double dy = y[c][i] - meanY[c];
+                meanY[c] += dy / n;
+                m2y[c] += dy * (y[c][i] - meanY[c]);
+                cov[c] += dx * (y[c][i] - meanY[c]);
+            }
+        }
+        for (int c = 0; c < k; c++) {
+            result[c] = cov[c] / Math.sqrt(m2x * m2y[c]);
+        }
+    }
+
+    /**
+     * Get the finite values among the replicates; non-finite replicates stem from resamples
+     * without variance.
+     */
+    private static double[] finite(double[] values)
+    {
+        return Arrays.stream(values).filter(Double::isFinite).toArray();
+    }
+
+    /**
+     * Get the percentile interval for finite replicates; sorts the array in place.
+     */
+    private static double[] interval(double[] values)
+    {
+        if (values.length == 0) {
+            return new double[] { Double.NaN, Double.NaN };
+        }
+        Arrays.sort(values);
+        int last = values.length - 1;
+        return new double[] {
+                values[(int) Math.floor(ALPHA / 2 * last)],
+                values[(int) Math.ceil((1 - ALPHA / 2) * last)] };
+    }
+
+    /**
+     * @return a note on the number of finite replicates if it is lower than the number of
+     * replicates, or an empty string
+     */
+    private static String note(int finite, int replicateCount)
+    {
+        return finite < replicateCount ?
+                String.format("\t(%d of %d replicates finite)", finite, replicateCount) :
+                "";
+    }
+}
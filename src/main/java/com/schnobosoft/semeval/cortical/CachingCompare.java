@@ -0,0 +1,162 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Model;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Compare} API that looks up {@link Text} pairs in a {@link MetricCache} before sending
+ * them to the wrapped API. Only cache misses are sent to the wrapped API, and their results are
+ * added to the cache.
+ * <p>
+ * Requests that do not consist of {@link Text} models (e.g. raw JSON) bypass the cache.
+ *
+ * @author Carsten Schnober
+ */
+public class CachingCompare
+        implements Compare
+{
+    private static final Log LOG = LogFactory.getLog(CachingCompare.class);
+
+    private final Compare compareApi;
+    private final MetricCache cache;
+    private final AtomicLong apiNanos = new AtomicLong();
+    private final AtomicLong apiPairs = new AtomicLong();
+
+    /**
+     * @param compareApi the {@link Compare} API to send cache misses to
+     * @param cache      the {@link MetricCache} to use
+     */
+    public CachingCompare(Compare compareApi, MetricCache cache)
+    {
+        this.compareApi = compareApi;
+        this.cache = cache;
+    }
+
+    @Override
+    public Metric compare(Model model1, Model model2)
+            throws JsonProcessingException, ApiException
+    {
+        if (!(model1 instanceof Text && model2 instanceof Text)) {
+            return compareApi.compare(model1, model2);
+        }
+        String text1 = ((Text) model1).getText();
+        String text2 = ((Text) model2).getText();
+        Metric metric = cache.get(text1, text2);
+        if (metric == null) {
+            long start = System.nanoTime();
+            metric = compareApi.compare(model1, model2);
+            countApiTime(1, System.nanoTime() - start);
+            cache.put(text1, text2, metric);
+        }
+        return metric;
+    }
+
+    @Override
+    public Metric compare(String jsonModel1, Model model2)
+            throws JsonProcessingException, ApiException
+    {
+        return compareApi.compare(jsonModel1, model2);
+    }
+
+    @Override
+    public Metric compare(String jsonModel1, String jsonModel2)
+            throws JsonProcessingException, ApiException
+    {
+        return compareApi.compare(jsonModel1, jsonModel2);
+    }
+
+    @Override
+    public Metric[] compareBulk(CompareModels... compareModels)
+            throws JsonProcessingException, ApiException
+    {
+        Metric[] metrics = new Metric[compareModels.length];
+        List<Integer> missIndexes = new ArrayList<>();
+
+        for (int i = 0; i < compareModels.length; i++) {
+            Model model1 = compareModels[i].getModel1();
+            Model model2 = compareModels[i].getModel2();
+            if (model1 instanceof Text && model2 instanceof Text) {
+                metrics[i] = cache.get(((Text) model1).getText(), ((Text) model2).getText());
+            }
+            if (metrics[i] == null) {
+                missIndexes.add(i);
+            }
+        }
+
+        if (!missIndexes.isEmpty()) {
+            CompareModels[] misses = missIndexes.stream()
+                    .map(i -> compareModels[i])
+                    .toArray(CompareModels[]::new);
+            long start = System.nanoTime();
+            Metric[] missMetrics = compareApi.compareBulk(misses);
+            countApiTime(misses.length, System.nanoTime() - start);
+
+            for (int i = 0; i < misses.length; i++) {
+                metrics[missIndexes.get(i)] = missMetrics[i];
+                if (misses[i].getModel1() instanceof Text && misses[i].getModel2() instanceof Text) {
+                    cache.put(((Text) misses[i].getModel1()).getText(),
+                            ((Text) misses[i].getModel2()).getText(), missMetrics[i]);
+                }
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public Metric[] compareBulk(String jsonModels)
+            throws JsonProcessingException, ApiException
+    {
+        return compareApi.compareBulk(jsonModels);
+    }
+
+    public MetricCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Log the cache statistics and an estimate of the API time saved by the cache, based on the
+     * average API time per text pair for cache misses.
+     */
+    public void logStatistics()
+    {
+        cache.logStatistics();
+        if (apiPairs.get() > 0) {
+            double msPerPair = apiNanos.get() / 1e6 / apiPairs.get();
+            LOG.info(String.format("Average API time per pair: %.1f ms; estimated time saved: %.1f s.",
+                    msPerPair, cache.getHits() * msPerPair / 1000));
+        }
+    }
+
+    private void countApiTime(int pairs, long nanos)
+    {
+        apiPairs.addAndGet(pairs);
+        apiNanos.addAndGet(nanos);
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.cortical.rest.model.Metric;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.math3.stat.descriptive.SynchronizedDescriptiveStatistics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Split an array of {@link CompareModels} into chunks and send each chunk as a separate
+ * {@code compareBulk} request. Chunks are processed concurrently on a bounded worker pool; the
+ * resulting {@link Metric}s are returned in input order.
+ * <p>
+ * The chunk size and the number of workers default to {@link Util#CHUNK_SIZE} and
+ * {@link Util#MAX_THREADS}.
+ *
+ * @author Carsten Schnober
+ */
+public class ChunkedCompare
+{
+    private static final Log LOG = LogFactory.getLog(ChunkedCompare.class);
+
+    /**
+     * Receives the results of each chunk as soon as it has been completed, e.g. for journaling.
+     * It is called concurrently by the worker threads.
+     */
+    public interface ChunkListener
+    {
+        /**
+         * @param from    the index of the first pair of the chunk in the input
+         * @param metrics the {@link Metric}s for the pairs of the chunk
+         * @throws IOException
+         */
+        void chunkCompleted(int from, Metric[] metrics)
+                throws IOException;
+    }
+
+    /**
+     * Compare all input pairs using {@link Util#CHUNK_SIZE} and {@link Util#MAX_THREADS}.
+     *
+     * @param input      the text pairs to compare
+     * @param compareApi the {@link Compare} API to use
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Compare compareApi)
+            throws JsonProcessingException, ApiException
+    {
+        return compareBulk(input, compareApi, Util.CHUNK_SIZE, Util.MAX_THREADS);
+    }
+
+    /**
+     * Compare all input pairs in chunks of {@code chunkSize} pairs, using a new pool of
+     * {@code threads} workers.
+     *
+     * @param input      the text pairs to compare
+     * @param compareApi the {@link Compare} API to use
+     * @param chunkSize  the maximum number of pairs per request
+     * @param threads    the number of concurrent requests
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Compare compareApi, int chunkSize,
+            int threads)
+            throws JsonProcessingException, ApiException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            return compareBulk(input, compareApi, chunkSize, executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Compare all input pairs in chunks of {@code chunkSize} pairs on the given executor. If any
+     * chunk fails, the remaining chunks are cancelled and the exception is thrown.
+     *
+     * @param input      the text pairs to compare
+     * @param compareApi the {@link Compare} API to use
+     * @param chunkSize  the maximum number of pairs per request
+     * @param executor   the {@link ExecutorService} running the requests
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Compare compareApi, int chunkSize,
+            ExecutorService executor)
+            throws JsonProcessingException, ApiException
+    {
+        return compareBulk(input, compareApi, chunkSize, executor, null);
+    }
+
+    /**
+     * Compare all input pairs in chunks of {@code chunkSize} pairs on the given executor, and pass
+     * the results of each chunk to {@code listener} when it is completed. If any chunk or listener
+     * call fails, the remaining chunks are cancelled and the exception is thrown.
+     *
+     * @param input      the text pairs to compare
+     * @param compareApi the {@link Compare} API to use
+     * @param chunkSize  the maximum number of pairs per request
+     * @param executor   the {@link ExecutorService} running the requests
+     * @param listener   the {@link ChunkListener} to notify; may be null
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Compare compareApi, int chunkSize,
+            ExecutorService executor, ChunkListener listener)
+            throws JsonProcessingException, ApiException
+    {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        DescriptiveStatistics latencies = new SynchronizedDescriptiveStatistics();
+        List<Future<Metric[]>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int from = 0; from < input.length; from += chunkSize) {
+            int offset = from;
+            CompareModels[] chunk = Arrays.copyOfRange(input, from,
+                    Math.min(from + chunkSize, input.length));
+            futures.add(executor.submit(() -> {
+                Metric[] chunkMetrics = compareChunk(chunk, compareApi, latencies);
+                if (listener != null) {
+                    listener.chunkCompleted(offset, chunkMetrics);
+                }
+                return chunkMetrics;
+            }));
+        }
+
+        Metric[] metrics = new Metric[input.length];
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Metric[] chunkMetrics = futures.get(i).get();
+                System.arraycopy(chunkMetrics, 0, metrics, i * chunkSize, chunkMetrics.length);
+            }
+        }
+        catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            Throwable cause = e.getCause();
+            if (cause instanceof ApiException) {
+                throw (ApiException) cause;
+            }
+            else if (cause instanceof JsonProcessingException) {
+                throw (JsonProcessingException) cause;
+            }
+            else if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            throw new RuntimeException(cause);
+        }
+        logStatistics(input.length, latencies, System.nanoTime() - start);
+        return metrics;
+    }
+
+    private static Metric[] compareChunk(CompareModels[] chunk, Compare compareApi,
+            DescriptiveStatistics latencies)
+            throws JsonProcessingException, ApiException
+    {
+        long start = System.nanoTime();
+        Metric[] metrics = compareApi.compareBulk(chunk);
+        latencies.addValue((System.nanoTime() - start) / 1e6);
+
+        if (metrics.length != chunk.length) {
+            throw new IllegalStateException(
+                    "Expected " + chunk.length + " results, got " + metrics.length + ".");
+        }
+        return metrics;
+    }
+
+    private static void logStatistics(int pairs, DescriptiveStatistics latencies, long nanos)
+    {
+        double seconds = nanos / 1e9;
+        LOG.info(String.format("Compared %d pairs in %d chunks in %.1f s (%.1f pairs/s).",
+                pairs, latencies.getN(), seconds, pairs / seconds));
+        if (latencies.getN() > 0) {
+            LOG.info(String.format(
+                    "Chunk latency (ms): min %.0f, mean %.0f, p50 %.0f, p95 %.0f, max %.0f",
+                    latencies.getMin(), latencies.getMean(), latencies.getPercentile(50),
+                    latencies.getPercentile(95), latencies.getMax()));
+        }
+    }
+}
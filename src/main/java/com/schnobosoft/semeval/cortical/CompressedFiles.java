@@ -0,0 +1,397 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Open plain, gzip and zstd compressed files as streams.
+ * <p>
+ * The compression of an existing file is detected by its extension ({@code .gz}, {@code .zst})
+ * or, failing that, by its magic bytes. New files are compressed according to their extension.
+ * Compressed files are decompressed on a separate thread, in blocks of {@link #BLOCK_SIZE} bytes,
+ * so that parsing does not wait for decompression. Appending to a compressed file adds a new
+ * gzip member or zstd frame, which are read back as one stream.
+ *
+ * @author Carsten Schnober
+ */
+public class CompressedFiles
+{
+    private static final Log LOG = LogFactory.getLog(CompressedFiles.class);
+    private static final int BLOCK_SIZE = 1 << 20;
+    /* the number of decompressed blocks to read ahead */
+    private static final int READ_AHEAD = 4;
+
+    public enum Compression
+    {
+        NONE(""), GZIP(".gz"), ZSTD(".zst");
+
+        private final String extension;
+
+        Compression(String extension)
+        {
+            this.extension = extension;
+        }
+
+        public String getExtension()
+        {
+            return extension;
+        }
+
+        /**
+         * @param name a file name
+         * @return the {@link Compression} indicated by the extension of the file name
+         */
+        public static Compression of(String name)
+        {
+            if (name.endsWith(GZIP.extension)) {
+                return GZIP;
+            }
+            else if (name.endsWith(ZSTD.extension)) {
+                return ZSTD;
+            }
+            return NONE;
+        }
+    }
+
+    /**
+     * Detect the compression of a file by its extension, or by its magic bytes if it has no
+     * compression extension.
+     *
+     * @param file a file
+     * @return the {@link Compression} of the file; {@link Compression#NONE} if the file has
+     * neither a compression extension nor a compression magic number
+     * @throws IOException
+     */
+    public static Compression detect(File file)
+            throws IOException
+    {
+        Compression compression = Compression.of(file.getName());
+        if (compression != Compression.NONE || !file.isFile()) {
+            return compression;
+        }
+        byte[] magic = new byte[4];
+        int read;
+        try (InputStream in = new FileInputStream(file)) {
+            read = in.read(magic);
+        }
+        if (read >= 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b) {
+            return Compression.GZIP;
+        }
+        else if (read == 4 && magic[0] == (byte) 0x28 && magic[1] == (byte) 0xb5
+                && magic[2] == (byte) 0x2f && magic[3] == (byte) 0xfd) {
+            return Compression.ZSTD;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * Open a file for reading, decompressing it on a separate thread if it is compressed.
+     *
+     * @param file the file
+     * @return an {@link InputStream} of the (decompressed) file content
+     * @throws IOException
+     */
+    public static InputStream newInputStream(File file)
+            throws IOException
+    {
+        Compression compression = detect(file);
+        InputStream in = new FileInputStream(file);
+        try {
+            switch (compression) {
+            case GZIP:
+                return new ReadAheadInputStream(new GZIPInputStream(in, BLOCK_SIZE), file);
+            case ZSTD:
+                return new ReadAheadInputStream(new ZstdInputStream(in), file);
+            default:
+                return in;
+            }
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a UTF-8 text file for reading, as {@link #newInputStream(File)}.
+     *
+     * @param file the file
+     * @return a {@link BufferedReader}
+     * @throws IOException
+     */
+    public static BufferedReader newReader(File file)
+            throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(newInputStream(file),
+                StandardCharsets.UTF_8), BLOCK_SIZE);
+    }
+
+    /**
+     * Open a file for writing, compressed according to its extension.
+     *
+     * @param file   the file
+     * @param append if true, append to the file rather than replacing it
+     * @return a buffered {@link OutputStream}
+     * @throws IOException
+     */
+    public static OutputStream newOutputStream(File file, boolean append)
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream(file, append);
+        try {
+            switch (Compression.of(file.getName())) {
+            case GZIP:
+                return new BufferedOutputStream(new GZIPOutputStream(out, BLOCK_SIZE), BLOCK_SIZE);
+            case ZSTD:
+                return new BufferedOutputStream(new ZstdOutputStream(out), BLOCK_SIZE);
+            default:
+                return new BufferedOutputStream(out, BLOCK_SIZE);
+            }
+        }
+        catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a UTF-8 text file for writing, as {@link #newOutputStream(File, boolean)}.
+     *
+     * @param file   the file
+     * @param append if true, append to the file rather than replacing it
+     * @return a {@link Writer}
+     * @throws IOException
+     */
+    public static Writer newWriter(File file, boolean append)
+            throws IOException
+    {
+        return new OutputStreamWriter(newOutputStream(file, append), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param name a file name
+     * @return the file name without a compression extension
+     */
+    public static String baseName(String name)
+    {
+        return name.substring(0,
+                name.length() - Compression.of(name).getExtension().length());
+    }
+
+    /**
+     * Append a suffix to a file name, before its compression extension if there is one.
+     *
+     * @param file   a file, e.g. {@code STS.input.x.txt.gz}
+     * @param suffix the suffix to append, e.g. {@code .keywords}
+     * @return a file with the suffix, e.g. {@code STS.input.x.txt.keywords.gz}
+     */
+    public static File withSuffix(File file, String suffix)
+    {
+        String path = file.getPath();
+        return new File(baseName(path) + suffix + Compression.of(path).getExtension());
+    }
+
+    /**
+     * Find an existing file under its name or a differently compressed variant of its name. This
+     * allows, e.g., a compressed gold standard file for a plain input file.
+     *
+     * @param file a file
+     * @return the file if it exists, otherwise the first existing variant with another or no
+     * compression extension; the file itself if no variant exists
+     */
+    public static File resolve(File file)
+    {
+        if (file.exists()) {
+            return file;
+        }
+        String base = baseName(file.getPath());
+        for (Compression compression : Compression.values()) {
+            File variant = new File(base + compression.getExtension());
+            if (variant.exists()) {
+                LOG.debug("Using " + variant + " for " + file);
+                return variant;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Read a stream on a separate thread, holding up to {@link #READ_AHEAD} blocks that have
+     * been read but not consumed.
+     */
+    private static class ReadAheadInputStream
+            extends InputStream
+    {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(READ_AHEAD);
+        private final InputStream source;
+        private final Thread reader;
+        private volatile IOException failure;
+        private byte[] block = new byte[0];
+        private int position;
+        private boolean closed;
+
+        ReadAheadInputStream(InputStream source, File file)
+        {
+            this.source = source;
+            reader = new Thread(this::readBlocks, "decompress-" + file.getName());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readBlocks()
+        {
+            try {
+                byte[] buffer = new byte[BLOCK_SIZE];
+                int length = 0;
+                int n;
+                while ((n = source.read(buffer, length, buffer.length - length)) >= 0) {
+                    length += n;
+                    if (length == buffer.length) {
+                        blocks.put(buffer);
+                        buffer = new byte[BLOCK_SIZE];
+                        length = 0;
+                    }
+                }
+                if (length > 0) {
+                    blocks.put(Arrays.copyOf(buffer, length));
+                }
+            }
+            catch (InterruptedException e) {
+                /* closed; the interrupt makes the put below return immediately */
+                Thread.currentThread().interrupt();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            catch (Throwable e) {
+                failure = new IOException("Reading ahead failed", e);
+            }
+            finally {
+                try {
+                    blocks.put(END);
+                }
+                catch (InterruptedException e) {
+                    // closed
+                }
+            }
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        private boolean nextBlock()
+                throws IOException
+        {
+            if (block == END) {
+                return false;
+            }
+            try {
+                block = blocks.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading ahead", e);
+            }
+            position = 0;
+            if (block == END) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            while (position == block.length) {
+                if (!nextBlock()) {
+                    return -1;
+                }
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+                throws IOException
+        {
+            if (length == 0) {
+                return 0;
+            }
+            while (position == block.length) {
+                if (!nextBlock()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(length, block.length - position);
+            System.arraycopy(block, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return block.length - position;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            reader.interrupt();
+            try {
+                reader.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            source.close();
+        }
+    }
+}
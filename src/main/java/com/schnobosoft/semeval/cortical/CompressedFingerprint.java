@@ -0,0 +1,293 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A read-only view of a fingerprint encoded in a {@link ByteBuffer}, e.g. a memory-mapped
+ * {@link FingerprintStore} file. Set operations are computed directly on the buffer.
+ * <p>
+ * As all positions of a retina fit into a single container of a roaring bitmap, a fingerprint is
+ * encoded as one roaring-style container: an 8-byte header holding the container type and the
+ * cardinality, followed by either the sorted positions as {@code short}s (array container, for
+ * less than {@link #MAX_ARRAY_CARDINALITY} positions), or a bitmap of {@link FingerprintBits#SIZE}
+ * bits as {@code long} words. All values are little-endian; encoded fingerprints are padded to a
+ * multiple of 8 bytes.
+ *
+ * @author Carsten Schnober
+ */
+public final class CompressedFingerprint
+{
+    /** the number of positions from which a bitmap container is smaller than an array */
+    public static final int MAX_ARRAY_CARDINALITY = FingerprintBits.SIZE / Short.SIZE;
+    static final int HEADER_SIZE = 8;
+    private static final int ARRAY = 0;
+    private static final int BITMAP = 1;
+    private static final int BITMAP_WORDS = FingerprintBits.SIZE / Long.SIZE;
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final boolean bitmap;
+    private final int cardinality;
+
+    /**
+     * @param buffer a little-endian buffer; only absolute reads are used, so that the buffer can
+     *               be shared by concurrent readers
+     * @param offset the offset of the encoded fingerprint in the buffer
+     */
+    CompressedFingerprint(ByteBuffer buffer, int offset)
+    {
+        int type = buffer.getInt(offset);
+        if (type != ARRAY && type != BITMAP) {
+            throw new IllegalArgumentException("Invalid container type " + type + " at " + offset);
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.bitmap = type == BITMAP;
+        this.cardinality = buffer.getInt(offset + 4);
+    }
+
+    /**
+     * Encode a fingerprint into a new heap buffer.
+     *
+     * @param fingerprint a {@link FingerprintBits}
+     * @return a {@link CompressedFingerprint}
+     */
+    public static CompressedFingerprint of(FingerprintBits fingerprint)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(fingerprint.cardinality()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        encode(fingerprint, buffer, 0);
+        return new CompressedFingerprint(buffer, 0);
+    }
+
+    /**
+     * @param cardinality the number of positions of a fingerprint
+     * @return the number of bytes of the encoded fingerprint, including the header and padding
+     */
+    static int encodedSize(int cardinality)
+    {
+        return HEADER_SIZE + (cardinality < MAX_ARRAY_CARDINALITY ?
+                (cardinality * Short.BYTES + 7) & ~7 :
+                BITMAP_WORDS * Long.BYTES);
+    }
+
+    /**
+     * Encode a fingerprint into a little-endian buffer, using absolute writes.
+     *
+     * @param fingerprint the {@link FingerprintBits}
+     * @param buffer      the buffer
+     * @param offset      the offset to write at
+     */
+    static void encode(FingerprintBits fingerprint, ByteBuffer buffer, int offset)
+    {
+        int[] positions = fingerprint.getPositions();
+        boolean useBitmap = positions.length >= MAX_ARRAY_CARDINALITY;
+        buffer.putInt(offset, useBitmap ? BITMAP : ARRAY);
+        buffer.putInt(offset + 4, positions.length);
+        int data = offset + HEADER_SIZE;
+        if (useBitmap) {
+            long[] words = new long[BITMAP_WORDS];
+            for (int position : positions) {
+                words[position >>> 6] |= 1L << position;
+            }
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                buffer.putLong(data + i * Long.BYTES, words[i]);
+            }
+        }
+        else {
+            for (int i = 0; i < positions.length; i++) {
+                buffer.putShort(data + i * Short.BYTES, (short) positions[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of this encoded fingerprint
+     */
+    int encodedSize()
+    {
+        return encodedSize(cardinality);
+    }
+
+    /**
+     * @return the number of positions set in this fingerprint
+     */
+    public int cardinality()
+    {
+        return cardinality;
+    }
+
+    /**
+     * @param position a position in the range [0, {@link FingerprintBits#SIZE})
+     * @return true if the position is set in this fingerprint
+     */
+    public boolean contains(int position)
+    {
+        if (bitmap) {
+            return (word(position >>> 6) & (1L << position)) != 0;
+        }
+        int low = 0;
+        int high = cardinality - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = position(mid);
+            if (value < position) {
+                low = mid + 1;
+            }
+            else if (value > position) {
+                high = mid - 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the number of positions set in both fingerprints
+     */
+    public int intersectionSize(CompressedFingerprint other)
+    {
+        if (bitmap && other.bitmap) {
+            int count = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                count += Long.bitCount(word(i) & other.word(i));
+            }
+            return count;
+        }
+        else if (bitmap) {
+            return other.intersectionSize(this);
+        }
+        else if (other.bitmap) {
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                int position = position(i);
+                if ((other.word(position >>> 6) & (1L << position)) != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < cardinality && j < other.cardinality) {
+            int a = position(i);
+            int b = other.position(j);
+            if (a < b) {
+                i++;
+            }
+            else if (a > b) {
+                j++;
+            }
+            else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the number of positions set in any of the fingerprints
+     */
+    public int unionSize(CompressedFingerprint other)
+    {
+        return cardinality + other.cardinality - intersectionSize(other);
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the positions set in both fingerprints
+     */
+    public FingerprintBits intersection(CompressedFingerprint other)
+    {
+        int[] positions = getPositions();
+        int n = 0;
+        for (int position : positions) {
+            if (other.contains(position)) {
+                positions[n++] = position;
+            }
+        }
+        int[] intersection = new int[n];
+        System.arraycopy(positions, 0, intersection, 0, n);
+        return new FingerprintBits(intersection);
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the positions set in any of the fingerprints
+     */
+    public FingerprintBits union(CompressedFingerprint other)
+    {
+        int[] positions = getPositions();
+        int[] otherPositions = other.getPositions();
+        int[] union = new int[positions.length + otherPositions.length];
+        System.arraycopy(positions, 0, union, 0, positions.length);
+        System.arraycopy(otherPositions, 0, union, positions.length, otherPositions.length);
+        return new FingerprintBits(union);
+    }
+
+    /**
+     * @return the sorted positions set in this fingerprint
+     */
+    public int[] getPositions()
+    {
+        int[] positions = new int[cardinality];
+        if (bitmap) {
+            int n = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = word(i);
+                while (word != 0) {
+                    positions[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < cardinality; i++) {
+                positions[i] = position(i);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * @return this fingerprint as a {@link FingerprintBits} on the heap
+     */
+    public FingerprintBits toFingerprintBits()
+    {
+        return new FingerprintBits(getPositions());
+    }
+
+    private int position(int i)
+    {
+        return buffer.getShort(offset + HEADER_SIZE + i * Short.BYTES);
+    }
+
+    private long word(int i)
+    {
+        return buffer.getLong(offset + HEADER_SIZE + i * Long.BYTES);
+    }
+}
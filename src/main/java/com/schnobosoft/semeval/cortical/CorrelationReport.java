@@ -0,0 +1,229 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.stat.correlation.KendallsCorrelation;
+import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static com.schnobosoft.semeval.cortical.Util.*;
+
+/**
+ * Compute Pearson, Spearman and Kendall correlations between a SemEval gold standard file and
+ * the output files for all {@link Retina} and {@link Measure} combinations. The score files are
+ * loaded and evaluated concurrently on a {@link ForkJoinPool}. If a {@link BinaryScoreFile}
+ * exists for a retina, it is used instead of the text output files.
+ *
+ * @author Carsten Schnober
+ */
+public class CorrelationReport
+{
+    private static final Log LOG = LogFactory.getLog(CorrelationReport.class);
+
+    /**
+     * The correlations for one {@link Retina} and {@link Measure} combination.
+     */
+    public static class Correlations
+    {
+        public final Retina retina;
+        public final Measure measure;
+        public final ScoreMatrix scores;
+        public final int n;
+        public final double pearson;
+        public final double spearman;
+        public final double kendall;
+
+        Correlations(Retina retina, Measure measure, ScoreMatrix scores, int n, double pearson,
+                double spearman, double kendall)
+        {
+            this.retina = retina;
+            this.measure = measure;
+            this.scores = scores;
+            this.n = n;
+            this.pearson = pearson;
+            this.spearman = spearman;
+            this.kendall = kendall;
+        }
+    }
+
+    /**
+     * Get the gold standard file for an input file.
+     *
+     * @param inputFile the input file, beginning with {@link Util#INPUT_FILE_PREFIX}
+     * @return the gold standard file, beginning with {@link Util#GS_FILE_PREFIX}; if it does not
+     * exist, an existing file with another compression extension, see
+     * {@link CompressedFiles#resolve(File)}
+     * @throws IOException
+     */
+    public static File getGoldFile(File inputFile)
+            throws IOException
+    {
+        if (!inputFile.getName().startsWith(INPUT_FILE_PREFIX)) {
+            throw new IllegalArgumentException(inputFile + " does not match expected pattern.");
+        }
+        return CompressedFiles.resolve(
+                new File(inputFile.getCanonicalPath().replace(INPUT_FILE_PREFIX, GS_FILE_PREFIX)));
+    }
+
+    /**
+     * Compute the correlations for all the output files that exist for an input file.
+     *
+     * @param inputFile the input file, as used in {@link SemEvalTextSimilarity}
+     * @param gold      the gold standard scores
+     * @param pool      the {@link ForkJoinPool} to run on
+     * @return a list of {@link Correlations}, ordered by retina and measure
+     * @throws IOException
+     */
+    public static List<Correlations> compute(File inputFile, ScoreMatrix gold, ForkJoinPool pool)
+            throws IOException
+    {
+        List<Pair<Retina, Measure>> combinations = new ArrayList<>();
+        for (Retina retina : Retina.values()) {
+            for (Measure measure : Measure.values()) {
+                combinations.add(Pair.create(retina, measure));
+            }
+        }
+
+        try {
+            return pool.submit(() -> combinations.parallelStream()
+                    .map(c -> compute(inputFile, gold, c.getFirst(), c.getSecond()))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()))
+                    .get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Write a table of correlations, one line per retina and measure.
+     *
+     * @param correlations the list of {@link Correlations} to write
+     * @param targetFile   the output file
+     * @throws IOException
+     */
+    public static void write(List<Correlations> correlations, File targetFile)
+            throws IOException
+    {
+        LOG.info("Writing scores to " + targetFile);
+        try (Writer writer = CompressedFiles.newWriter(targetFile, false)) {
+            writer.write("retina\tmeasure\tn\tpearson\tspearman\tkendall\n");
+            for (Correlations c : correlations) {
+                writer.write(String.format("%s\t%s\t%d\t%.4f\t%.4f\t%.4f%n",
+                        c.retina.name().toLowerCase(), c.measure, c.n, c.pearson, c.spearman,
+                        c.kendall));
+            }
+        }
+    }
+
+    /**
+     * Read the scores of a retina and measure for an input file, from the binary output file if it
+     * holds the measure, or from the text output file.
+     *
+     * @param inputFile the input file, as used in {@link SemEvalTextSimilarity}
+     * @param retina    the {@link Retina}
+     * @param measure   the {@link Measure}
+     * @return a single-column {@link ScoreMatrix}, or null if there is no output for the retina
+     * and measure
+     * @throws IOException
+     */
+    static ScoreMatrix readScores(File inputFile, Retina retina, Measure measure)
+            throws IOException
+    {
+        File binaryFile = getBinaryOutputFile(inputFile, retina);
+        File outputFile = CompressedFiles.resolve(getOutputFile(inputFile, measure, retina));
+        BinaryScoreFile binaryScores = binaryFile.exists() ?
+                BinaryScoreFile.open(binaryFile) : null;
+        if (binaryScores != null && binaryScores.contains(measure)) {
+            return binaryScores.toScoreMatrix(measure);
+        }
+        else if (outputFile.exists()) {
+            return ScoreMatrix.read(outputFile);
+        }
+        return null;
+    }
+
+    private static Correlations compute(File inputFile, ScoreMatrix gold, Retina retina,
+            Measure measure)
+    {
+        try {
+            ScoreMatrix scores = readScores(inputFile, retina, measure);
+            if (scores == null) {
+                LOG.warn("Output file not found: " + getOutputFile(inputFile, measure, retina));
+                return null;
+            }
+            double[][] pairs = presentPairs(gold, scores);
+            return new Correlations(retina, measure, scores, pairs[0].length,
+                    ScoreMatrix.pearson(gold, 0, scores, 0),
+                    new SpearmansCorrelation().correlation(pairs[0], pairs[1]),
+                    new KendallsCorrelation().correlation(pairs[0], pairs[1]));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the values of the rows that are present in both single-column matrices.
+     */
+    private static double[][] presentPairs(ScoreMatrix x, ScoreMatrix y)
+    {
+        if (x.size() != y.size()) {
+            throw new IllegalArgumentException(
+                    "Different number of rows: " + x.size() + " != " + y.size());
+        }
+        int n = 0;
+        for (int row = 0; row < x.size(); row++) {
+            if (!x.isMissing(row) && !y.isMissing(row)) {
+                n++;
+            }
+        }
+        double[][] pairs = new double[2][n];
+        int i = 0;
+        for (int row = 0; row < x.size(); row++) {
+            if (!x.isMissing(row) && !y.isMissing(row)) {
+                pairs[0][i] = x.get(0, row);
+                pairs[1][i] = y.get(0, row);
+                i++;
+            }
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IntSummaryStatistics;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A dry run of a scoring job: the number of API requests, their sizes, the bytes to send, and the
+ * projected duration, computed without calling the API.
+ * <p>
+ * The input is deduplicated as in a real run, and the pairs (or texts) found in the caches or the
+ * {@link FingerprintStore} are not counted. The requests are laid out exactly as by
+ * {@link ChunkedCompare}: the unique pairs are split into chunks of {@link Util#CHUNK_SIZE}, and
+ * each chunk with at least one cache miss becomes one request holding the misses.
+ * <p>
+ * The duration is projected by replaying the requests on {@link Util#THREADS} concurrent slots,
+ * limited to {@link Util#RATE_LIMIT} requests per second if set. The request latency is read from
+ * the {@link RunMetrics} report of an earlier run: the report for the same input file and retina
+ * if it exists, else the most recent report in the directory of the input file. The latency of a
+ * bulk request is scaled linearly by the number of items it holds, relative to the average number
+ * of items of the same kind per request in that run: pairs for compare requests, texts for
+ * fingerprint requests.
+ *
+ * @author Carsten Schnober
+ */
+public class CostPlanner
+{
+    private static final Log LOG = LogFactory.getLog(CostPlanner.class);
+    private static final String PAIRS = "pairs";
+    private static final String TEXTS = "texts";
+
+    private final File inputFile;
+    private final Retina retina;
+    private final String inputSummary;
+    private final List<Phase> phases = new ArrayList<>();
+    private final List<String> notes = new ArrayList<>();
+
+    /**
+     * A stage of requests of one kind, sent one after the other.
+     */
+    private static class Phase
+    {
+        final String name;
+        final String unit;
+        final long items;
+        final long cached;
+        final int[] requestSizes;
+        final long bytes;
+        final boolean bulk;
+
+        Phase(String name, String unit, long items, long cached, int[] requestSizes, long bytes,
+                boolean bulk)
+        {
+            this.name = name;
+            this.unit = unit;
+            this.items = items;
+            this.cached = cached;
+            this.requestSizes = requestSizes;
+            this.bytes = bytes;
+            this.bulk = bulk;
+        }
+    }
+
+    /**
+     * The request latency of an earlier run.
+     */
+    private static class Latency
+    {
+        final File source;
+        final double meanMillis;
+        final double p95Millis;
+        final double pairsPerRequest;
+        final double textsPerRequest;
+
+        Latency(File source, double meanMillis, double p95Millis, double pairsPerRequest,
+                double textsPerRequest)
+        {
+            this.source = source;
+            this.meanMillis = meanMillis;
+            this.p95Millis = p95Millis;
+            this.pairsPerRequest = pairsPerRequest;
+            this.textsPerRequest = textsPerRequest;
+        }
+
+        /**
+         * @return the average number of items per request of the phase's kind; 0 if unknown
+         */
+        double itemsPerRequest(Phase phase)
+        {
+            return phase.unit.equals(TEXTS) ? textsPerRequest : pairsPerRequest;
+        }
+
+        double millis(Phase phase, int items, boolean p95)
+        {
+            double millis = p95 ? p95Millis : meanMillis;
+            double itemsPerRequest = itemsPerRequest(phase);
+            return phase.bulk && itemsPerRequest > 0 ? millis * items / itemsPerRequest : millis;
+        }
+    }
+
+    private CostPlanner(File inputFile, Retina retina, Deduplication deduplication)
+    {
+        this.inputFile = inputFile;
+        this.retina = retina;
+        this.inputSummary = String.format("%d lines, %d unique pairs, %d missing pairs",
+                deduplication.size(), deduplication.getUniquePairs().size(),
+                deduplication.missingCount());
+    }
+
+    /**
+     * Plan scoring an input file with {@link SemEvalTextSimilarity}, with the compare API or, if
+     * {@link Util#LOCAL_COMPARE} is set, with locally compared fingerprints.
+     *
+     * @param inputFile     the input file
+     * @param deduplication the {@link Deduplication} of the input pairs
+     * @param retina        the {@link Retina}
+     * @return the plan
+     * @throws IOException
+     */
+    public static CostPlanner planTexts(File inputFile, Deduplication deduplication, Retina retina)
+            throws IOException
+    {
+        CostPlanner planner = new CostPlanner(inputFile, retina, deduplication);
+        if (Util.LOCAL_COMPARE) {
+            Set<String> texts = new LinkedHashSet<>();
+            deduplication.getUniquePairs().forEach(pair -> {
+                texts.add(pair.getFirst());
+                texts.add(pair.getSecond());
+            });
+            FingerprintStore store = Util.getFingerprintStore(retina);
+            List<String> missing = new ArrayList<>();
+            for (String text : texts) {
+                if (store == null || store.get(text) == null) {
+                    missing.add(text);
+                }
+            }
+            long bytes = missing.stream().mapToLong(CostPlanner::textBytes).sum();
+            planner.phases.add(new Phase("fingerprints", TEXTS, texts.size(),
+                    texts.size() - missing.size(), chunkSizes(missing.size()), bytes, true));
+        }
+        else {
+            planner.addComparePhase("compare", deduplication.getUniquePairs(),
+                    deduplication.getUniquePairs().size(), retina);
+            File journalFile = Util.getJournalFile(inputFile, retina);
+            if (Util.JOURNAL_ENABLED && journalFile.exists()) {
+                planner.notes.add("The journal " + journalFile.getName()
+                        + " exists; the pairs it holds are not deducted.");
+            }
+        }
+        if (Util.STREAMING) {
+            planner.notes.add("In streaming mode, pairs are only deduplicated within a window.");
+        }
+        return planner;
+    }
+
+    /**
+     * Plan scoring an input file with {@link SemEvalCompareKeywords}. Keywords are looked up in the
+     * keyword cache; the keyword pairs of texts with cached keywords are deduplicated and looked
+     * up in the metric cache. For the other pairs, one keyword pair each is assumed.
+     *
+     * @param inputFile     the input file
+     * @param deduplication the {@link Deduplication} of the input pairs
+     * @param retina        the {@link Retina}
+     * @return the plan
+     */
+    public static CostPlanner planKeywords(File inputFile, Deduplication deduplication,
+            Retina retina)
+    {
+        CostPlanner planner = new CostPlanner(inputFile, retina, deduplication);
+        KeywordCache keywordCache = Util.CACHE_ENABLED ?
+                new KeywordCache(retina, Util.CACHE_DIR) :
+                null;
+        Set<String> texts = new LinkedHashSet<>();
+        deduplication.getUniquePairs().forEach(pair -> {
+            texts.add(pair.getFirst());
+            texts.add(pair.getSecond());
+        });
+        Map<String, String> keywordTexts = new HashMap<>();
+        long bytes = 0;
+        for (String text : texts) {
+            List<String> keywords = keywordCache == null ? null : keywordCache.get(text);
+            if (keywords == null) {
+                bytes += textBytes(text);
+            }
+            else {
+                keywordTexts.put(text, String.join(" ", keywords));
+            }
+        }
+        int missing = texts.size() - keywordTexts.size();
+        int[] keywordRequests = new int[missing];
+        Arrays.fill(keywordRequests, 1);
+        planner.phases.add(new Phase("keywords", TEXTS, texts.size(), keywordTexts.size(),
+                keywordRequests, bytes, false));
+
+        List<Pair<String, String>> keywordPairs = new ArrayList<>();
+        List<Pair<String, String>> unknownPairs = new ArrayList<>();
+        for (Pair<String, String> pair : deduplication.getUniquePairs()) {
+            String keywordText1 = keywordTexts.get(pair.getFirst());
+            String keywordText2 = keywordTexts.get(pair.getSecond());
+            if (keywordText1 == null || keywordText2 == null) {
+                unknownPairs.add(pair);
+            }
+            else if (!keywordText1.isEmpty() && !keywordText2.isEmpty()) {
+                keywordPairs.add(Pair.create(keywordText1, keywordText2));
+            }
+        }
+        keywordPairs = new Deduplication(keywordPairs, true).getUniquePairs();
+        int known = keywordPairs.size();
+        keywordPairs.addAll(unknownPairs);
+        planner.addComparePhase("compare keywords", keywordPairs, known, retina);
+        if (!unknownPairs.isEmpty()) {
+            planner.notes.add(unknownPairs.size() + " pairs have texts without cached keywords; "
+                    + "they are counted as one pair each, with the bytes of the texts.");
+        }
+        return planner;
+    }
+
+    /**
+     * Print the plan.
+     *
+     * @param out the {@link PrintStream} to print to
+     */
+    public void print(PrintStream out)
+    {
+        Latency latency = findLatency();
+        out.println("Dry run for " + inputFile + " with " + retina.name().toLowerCase() + ":");
+        out.println("  input: " + inputSummary);
+        double meanMillis = 0;
+        double p95Millis = 0;
+        List<String> latencyNotes = new ArrayList<>();
+        for (Phase phase : phases) {
+            int requests = phase.requestSizes.length;
+            out.printf("  %s: %d %s, %d cached, %d to send%n", phase.name, phase.items, phase.unit,
+                    phase.cached, phase.items - phase.cached);
+            if (requests > 0) {
+                IntSummaryStatistics sizes = Arrays.stream(phase.requestSizes).summaryStatistics();
+                out.printf("    %d requests of %d to %d %s (mean %.1f), %d concurrent, "
+                                + "%d bytes of text%n", requests, sizes.getMin(), sizes.getMax(),
+                        phase.unit, sizes.getAverage(), Util.THREADS, phase.bytes);
+            }
+            if (latency != null) {
+                meanMillis += simulate(phase, latency, false);
+                p95Millis += simulate(phase, latency, true);
+                if (phase.bulk && requests > 0 && latency.itemsPerRequest(phase) == 0) {
+                    latencyNotes.add("No requests for " + phase.unit + " were recorded in "
+                            + latency.source.getName() + "; the latency of the " + phase.name
+                            + " requests is not scaled by their size.");
+                }
+            }
+        }
+        if (latency == null) {
+            out.println("  projected duration: unknown; no API latencies recorded for "
+                    + inputFile.getAbsoluteFile().getParent()
+                    + " (run once without semeval.dryRun to record them)");
+        }
+        else {
+            out.printf("  request latency: mean %.1f ms, p95 %.1f ms%s%s (from %s)%n",
+                    latency.meanMillis, latency.p95Millis, latency.pairsPerRequest > 0 ?
+                            String.format(" at %.1f pairs per compare request",
+                                    latency.pairsPerRequest) :
+                            "", latency.textsPerRequest > 0 ?
+                            String.format(" at %.1f texts per text request",
+                                    latency.textsPerRequest) :
+                            "", latency.source.getName());
+            out.printf("  projected duration: %.1f s (%.1f s at p95 latency)%s%n",
+                    meanMillis / 1000, p95Millis / 1000, Util.RATE_LIMIT > 0 ?
+                            String.format(", at most %.1f requests/s", Util.RATE_LIMIT) :
+                            "");
+        }
+        notes.forEach(note -> out.println("  note: " + note));
+        latencyNotes.forEach(note -> out.println("  note: " + note));
+    }
+
+    /**
+     * Add a compare phase: the pairs are chunked as by {@link ChunkedCompare}, and the cached
+     * pairs are removed from their chunks. Only the first {@code lookups} pairs are looked up in
+     * the cache; the others are placeholders for pairs that are not known yet.
+     */
+    private void addComparePhase(String name, List<Pair<String, String>> pairs, int lookups,
+            Retina retina)
+    {
+        MetricCache cache = Util.CACHE_ENABLED ?
+                new MetricCache(retina, Util.CACHE_DIR, Util.CACHE_SIZE) :
+                null;
+        List<Integer> requestSizes = new ArrayList<>();
+        long cached = 0;
+        long bytes = 0;
+        for (int from = 0; from < pairs.size(); from += Util.CHUNK_SIZE) {
+            int misses = 0;
+            for (int i = from; i < Math.min(from + Util.CHUNK_SIZE, pairs.size()); i++) {
+                Pair<String, String> pair = pairs.get(i);
+                if (cache != null && i < lookups
+                        && cache.contains(pair.getFirst(), pair.getSecond())) {
+                    cached++;
+                }
+                else {
+                    misses++;
+                    bytes += textBytes(pair.getFirst()) + textBytes(pair.getSecond());
+                }
+            }
+            if (misses > 0) {
+                requestSizes.add(misses);
+            }
+        }
+        phases.add(new Phase(name, PAIRS, pairs.size(), cached,
+                requestSizes.stream().mapToInt(Integer::intValue).toArray(), bytes, true));
+    }
+
+    /**
+     * Replay the requests of a phase in order on {@link Util#THREADS} slots, starting each
+     * request when a slot is free and the rate limit allows it.
+     *
+     * @return the duration of the phase in milliseconds
+     */
+    private static double simulate(Phase phase, Latency latency, boolean p95)
+    {
+        PriorityQueue<Double> slots = new PriorityQueue<>();
+        for (int i = 0; i < Util.THREADS; i++) {
+            slots.add(0.0);
+        }
+        double end = 0;
+        for (int i = 0; i < phase.requestSizes.length; i++) {
+            double start = Math.max(slots.poll(),
+                    Util.RATE_LIMIT > 0 ? i * 1000 / Util.RATE_LIMIT : 0);
+            double finish = start + latency.millis(phase, phase.requestSizes[i], p95);
+            slots.add(finish);
+            end = Math.max(end, finish);
+        }
+        return end;
+    }
+
+    /**
+     * Find the latency statistics of an earlier run: the metrics report for the input file and
+     * retina, or else the most recent report with API requests in the input file's directory.
+     * Reports without separate request counts for pairs and texts attribute all the requests to
+     * the pairs.
+     */
+    private Latency findLatency()
+    {
+        List<File> candidates = new ArrayList<>();
+        candidates.add(Util.getMetricsFile(inputFile, retina.name().toLowerCase()));
+        File[] reports = inputFile.getAbsoluteFile().getParentFile()
+                .listFiles((dir, name) -> name.endsWith(Util.METRICS_FILE_SUFFIX));
+        if (reports != null) {
+            Arrays.sort(reports, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            candidates.addAll(Arrays.asList(reports));
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        for (File report : candidates) {
+            if (!report.isFile()) {
+                continue;
+            }
+            try {
+                JsonNode metrics = mapper.readTree(report);
+                JsonNode latency = metrics.path("apiLatencyMillis");
+                long requests = latency.path("count").asLong();
+                if (requests > 0) {
+                    JsonNode counters = metrics.path("counters");
+                    return new Latency(report, latency.path("mean").asDouble(),
+                            latency.path("p95").asDouble(),
+                            perRequest(counters.path("apiPairs"),
+                                    counters.path("apiPairRequests"), requests),
+                            perRequest(counters.path("apiTexts"),
+                                    counters.path("apiTextRequests"), 0));
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to read run metrics from " + report + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private static double perRequest(JsonNode items, JsonNode requests, long defaultRequests)
+    {
+        long n = requests.isMissingNode() ? defaultRequests : requests.asLong();
+        return n == 0 ? 0 : items.asDouble() / n;
+    }
+
+    private static long textBytes(String text)
+    {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int[] chunkSizes(int items)
+    {
+        int[] sizes = new int[(items + Util.CHUNK_SIZE - 1) / Util.CHUNK_SIZE];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = Math.min(Util.CHUNK_SIZE, items - i * Util.CHUNK_SIZE);
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Model;
+import io.cortical.rest.model.Text;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.util.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Collapse duplicate text pairs before sending them to the API.
+ * <p>
+ * Missing input pairs ({@code null}, e.g. for malformed input lines) are not sent; their results
+ * are {@code null} when expanded.
+ * <p>
+ * Each (normalized) text is interned into an id table, and each pair is mapped to a unique pair
+ * of ids. If {@code symmetric} is set, the pairs (a,b) and (b,a) are considered identical; the
+ * directed {@link Metric} fields (sizes and left-right overlaps) are swapped accordingly when the
+ * results are expanded. All the values used by {@link Util.Measure} are symmetric.
+ *
+ * @author Carsten Schnober
+ */
+public class Deduplication
+{
+    private static final Log LOG = LogFactory.getLog(Deduplication.class);
+
+    private final List<Pair<String, String>> uniquePairs = new ArrayList<>();
+    private final int[] pairIndexes;
+    private final boolean[] swapped;
+    private final int textCount;
+    private final int missingCount;
+
+    /**
+     * @param input     a list of text pairs, possibly containing duplicates and {@code null}s
+     * @param symmetric if true, pairs are considered identical regardless of their order
+     */
+    public Deduplication(List<Pair<String, String>> input, boolean symmetric)
+    {
+        Map<String, Integer> textIds = new HashMap<>();
+        Map<Long, Integer> pairIds = new HashMap<>();
+        pairIndexes = new int[input.size()];
+        swapped = new boolean[input.size()];
+
+        int missing = 0;
+        for (int i = 0; i < input.size(); i++) {
+            Pair<String, String> pair = input.get(i);
+            if (pair == null) {
+                pairIndexes[i] = -1;
+                missing++;
+                continue;
+            }
+            int id1 = textIds.computeIfAbsent(MetricCache.normalize(pair.getFirst()),
+                    text -> textIds.size());
+            int id2 = textIds.computeIfAbsent(MetricCache.normalize(pair.getSecond()),
+                    text -> textIds.size());
+            swapped[i] = symmetric && id1 > id2;
+
+            long key = swapped[i] ?
+                    ((long) id2 << 32) | id1 :
+                    ((long) id1 << 32) | id2;
+            Integer pairId = pairIds.get(key);
+            if (pairId == null) {
+                pairId = uniquePairs.size();
+                pairIds.put(key, pairId);
+                uniquePairs.add(swapped[i] ?
+                        Pair.create(pair.getSecond(), pair.getFirst()) :
+                        pair);
+            }
+            pairIndexes[i] = pairId;
+        }
+        textCount = textIds.size();
+        missingCount = missing;
+        RunMetrics.get().addDeduplication(input.size(), uniquePairs.size());
+    }
+
+    /**
+     * Create a deduplication for symmetric comparisons of {@link Text} pairs.
+     *
+     * @param input an array of {@link CompareModels}, each holding two {@link Text}s, or
+     *              {@code null} for missing pairs
+     * @return a new {@link Deduplication}
+     */
+    public static Deduplication of(CompareModels[] input)
+    {
+        return new Deduplication(Stream.of(input)
+                .map(pair -> pair == null ?
+                        null :
+                        Pair.create(getText(pair.getModel1()), getText(pair.getModel2())))
+                .collect(Collectors.toList()), true);
+    }
+
+    /**
+     * @return the number of input pairs, including missing pairs
+     */
+    public int size()
+    {
+        return pairIndexes.length;
+    }
+
+    /**
+     * @return the number of missing input pairs
+     */
+    public int missingCount()
+    {
+        return missingCount;
+    }
+
+    /**
+     * @return the unique text pairs, in the order of their first occurrence
+     */
+    public List<Pair<String, String>> getUniquePairs()
+    {
+        return uniquePairs;
+    }
+
+    /**
+     * @return the unique text pairs as {@link CompareModels}
+     */
+    public CompareModels[] getUniqueCompareModels()
+    {
+        return uniquePairs.stream()
+                .map(pair -> new CompareModels(new Text(pair.getFirst()), new Text(pair.getSecond())))
+                .toArray(CompareModels[]::new);
+    }
+
+    /**
+     * @param line the index of an input pair
+     * @return the index of the unique pair for the input pair, or -1 for a missing pair
+     */
+    public int getPairIndex(int line)
+    {
+        return pairIndexes[line];
+    }
+
+    /**
+     * Expand the results for the unique pairs to the original input order.
+     *
+     * @param uniqueMetrics the {@link Metric}s for the unique pairs
+     * @return an array of {@link Metric}s, one for each input pair; {@code null} for missing pairs
+     */
+    public Metric[] expand(Metric[] uniqueMetrics)
+    {
+        if (uniqueMetrics.length != uniquePairs.size()) {
+            throw new IllegalArgumentException("Expected " + uniquePairs.size()
+                    + " metrics, got " + uniqueMetrics.length + ".");
+        }
+        Metric[] metrics = new Metric[pairIndexes.length];
+        for (int i = 0; i < pairIndexes.length; i++) {
+            if (pairIndexes[i] < 0) {
+                continue;
+            }
+            Metric metric = uniqueMetrics[pairIndexes[i]];
+            metrics[i] = swapped[i] ? swap(metric) : metric;
+        }
+        return metrics;
+    }
+
+    /**
+     * Expand the results for the unique pairs to the original input order.
+     *
+     * @param uniqueMetrics the {@link Metric}s for the unique pairs
+     * @return a list of {@link Metric}s, one for each input pair
+     */
+    public List<Metric> expand(List<Metric> uniqueMetrics)
+    {
+        List<Metric> metrics = new ArrayList<>(pairIndexes.length);
+        for (Metric metric : expand(uniqueMetrics.toArray(new Metric[uniqueMetrics.size()]))) {
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    /**
+     * Log the number of unique texts and pairs, the share of redundant pairs and the number of
+     * missing pairs.
+     */
+    public void logStatistics()
+    {
+        int pairs = pairIndexes.length - missingCount;
+        LOG.info(String.format("%d pairs, %d unique pairs, %d unique texts (%.1f%% redundant pairs)"
+                        + "; %d missing pairs.", pairs, uniquePairs.size(), textCount,
+                pairs == 0 ?
+                        0.0 :
+                        100.0 * (pairs - uniquePairs.size()) / pairs, missingCount));
+    }
+
+    /**
+     * Swap the directed fields (left/right sizes and overlaps) of a {@link Metric}.
+     */
+    private static Metric swap(Metric metric)
+    {
+        double[] values = Util.metricToArray(metric);
+        double[] swapped = values.clone();
+        swapped[4] = values[5];
+        swapped[5] = values[4];
+        swapped[6] = values[7];
+        swapped[7] = values[6];
+        return Util.arrayToMetric(swapped);
+    }
+
+    private static String getText(Model model)
+    {
+        if (!(model instanceof Text)) {
+            throw new IllegalArgumentException("Not a text: " + model);
+        }
+        return ((Text) model).getText();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import java.util.Arrays;
+
+/**
+ * An immutable semantic fingerprint stored as a bitset over all the positions of a retina.
+ *
+ * @author Carsten Schnober
+ */
+public final class FingerprintBits
+{
+    /** the number of positions in a retina (128 x 128) */
+    public static final int SIZE = 128 * 128;
+    private static final int WORDS = SIZE / Long.SIZE;
+
+    private final long[] words;
+    private final int cardinality;
+
+    /**
+     * @param positions the positions of the fingerprint, each in the range [0, {@link #SIZE})
+     */
+    public FingerprintBits(int[] positions)
+    {
+        words = new long[WORDS];
+        for (int position : positions) {
+            if (position < 0 || position >= SIZE) {
+                throw new IllegalArgumentException("Invalid fingerprint position: " + position);
+            }
+            words[position >>> 6] |= 1L << position;
+        }
+        cardinality = count(words);
+    }
+
+    /**
+     * @return the number of positions set in this fingerprint
+     */
+    public int cardinality()
+    {
+        return cardinality;
+    }
+
+    /**
+     * @param position a position in the range [0, {@link #SIZE})
+     * @return true if the position is set in this fingerprint
+     */
+    public boolean contains(int position)
+    {
+        return (words[position >>> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the number of positions set in both fingerprints
+     */
+    public int intersectionSize(FingerprintBits other)
+    {
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            count += Long.bitCount(words[i] & other.words[i]);
+        }
+        return count;
+    }
+
+    /**
+     * @param other another fingerprint
+     * @return the number of positions set in any of the fingerprints
+     */
+    public int unionSize(FingerprintBits other)
+    {
+        return cardinality + other.cardinality - intersectionSize(other);
+    }
+
+    /**
+     * @return the sorted positions set in this fingerprint
+     */
+    public int[] getPositions()
+    {
+        int[] positions = new int[cardinality];
+        int n = 0;
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                positions[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return positions;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof FingerprintBits && Arrays.equals(words, ((FingerprintBits) o).words);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(words);
+    }
+
+    private static int count(long[] words)
+    {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,684 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.rest.model.Fingerprint;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Texts;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_ASSOCIATIVE;
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_SYNONYMOUS;
+
+/**
+ * An approximate nearest-neighbour index over the fingerprints of a corpus of sentences, for
+ * finding the sentences most similar to a query.
+ * <p>
+ * Candidates are found by MinHash locality-sensitive hashing: each fingerprint is summarized by
+ * {@code bands * rows} MinHash values over its positions, and each band of {@code rows} values is
+ * hashed into a bucket key. Sentences sharing at least one bucket with the query are candidates;
+ * a pair with Jaccard similarity {@code s} becomes a candidate with probability
+ * {@code 1 - (1 - s^rows)^bands}. The candidates are re-ranked by the exact value of a
+ * {@link Measure}, computed as by {@link LocalCompare}.
+ * <p>
+ * The fingerprint positions are stored in one {@code short} array, and each band in two arrays of
+ * bucket keys and sentence ids, sorted by key and searched by binary search. The band tables are
+ * built in parallel, and the index can be written to and read from a binary file.
+ * <p>
+ * Call arguments: {@code build <corpus file> <index file> <api key> [<syn|ass>]} to build an index
+ * for a file holding one sentence per line, or {@code query <index file> <api key> [<k>]} to read
+ * queries from standard input, one per line, and print the {@code k} (default: 10) most similar
+ * sentences. The measure is set by the system property {@code semeval.measure} (default:
+ * {@link Measure#COSINE_SIM}).
+ *
+ * @author Carsten Schnober
+ */
+public class FingerprintIndex
+{
+    public static final int DEFAULT_BANDS = 24;
+    public static final int DEFAULT_ROWS = 3;
+    private static final Log LOG = LogFactory.getLog(FingerprintIndex.class);
+    private static final byte[] MAGIC = "SEMFPIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final long DEFAULT_SEED = 0x5eed5eedL;
+    private static final int BUILD_BATCH_SIZE = 10000;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private final Retina retina;
+    private final int bands;
+    private final int rows;
+    private final long seed;
+    private final String[] texts;
+    private final int[] offsets;
+    private final short[] positions;
+    private final int[][] bandKeys;
+    private final int[][] bandIds;
+    private final int[] hashValues;
+
+    /**
+     * A sentence found by {@link #query}.
+     */
+    public static class Hit
+    {
+        private final int id;
+        private final String text;
+        private final double score;
+
+        private Hit(int id, String text, double score)
+        {
+            this.id = id;
+            this.text = text;
+            this.score = score;
+        }
+
+        /**
+         * @return the index of the sentence in the order in which the sentences were added
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+
+        public double getScore()
+        {
+            return score;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%.4f\t%d\t%s", score, id, text);
+        }
+    }
+
+    /**
+     * Collects sentences and their fingerprints, and builds a {@link FingerprintIndex}.
+     */
+    public static class Builder
+    {
+        private final Retina retina;
+        private final int bands;
+        private final int rows;
+        private final List<String> texts = new ArrayList<>();
+        private int[] offsets = new int[1024];
+        private short[] positions = new short[1 << 16];
+
+        /**
+         * @param retina the {@link Retina} of the fingerprints
+         * @param bands  the number of LSH bands
+         * @param rows   the number of MinHash values per band
+         */
+        public Builder(Retina retina, int bands, int rows)
+        {
+            if (bands < 1 || rows < 1) {
+                throw new IllegalArgumentException("Invalid bands or rows: " + bands + ", " + rows);
+            }
+            this.retina = retina;
+            this.bands = bands;
+            this.rows = rows;
+        }
+
+        /**
+         * Add a sentence. Its id is the number of sentences added before.
+         *
+         * @param text        the sentence
+         * @param fingerprint the fingerprint of the sentence
+         * @return this builder
+         */
+        public Builder add(String text, FingerprintBits fingerprint)
+        {
+            int[] fingerprintPositions = fingerprint.getPositions();
+            int n = texts.size();
+            if (n + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            int end = offsets[n] + fingerprintPositions.length;
+            if (end > positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(end, positions.length * 2));
+            }
+            for (int i = 0; i < fingerprintPositions.length; i++) {
+                positions[offsets[n] + i] = (short) fingerprintPositions[i];
+            }
+            offsets[n + 1] = end;
+            texts.add(text);
+            return this;
+        }
+
+        public int size()
+        {
+            return texts.size();
+        }
+
+        /**
+         * Compute the band tables in parallel and create the index.
+         *
+         * @return a new {@link FingerprintIndex}
+         */
+        public FingerprintIndex build()
+        {
+            int n = texts.size();
+            return new FingerprintIndex(retina, bands, rows, DEFAULT_SEED,
+                    texts.toArray(new String[n]), Arrays.copyOf(offsets, n + 1),
+                    Arrays.copyOf(positions, offsets[n]));
+        }
+    }
+
+    /**
+     * Create an index, computing the band tables in parallel.
+     */
+    private FingerprintIndex(Retina retina, int bands, int rows, long seed, String[] texts,
+            int[] offsets, short[] positions)
+    {
+        this(retina, bands, rows, seed, texts, offsets, positions, new int[bands][],
+                new int[bands][]);
+        long start = System.nanoTime();
+        int[][] keys = new int[bands][texts.length];
+        IntStream.range(0, texts.length).parallel().forEach(id -> {
+            int[] fingerprintKeys = lshKeys(positions, offsets[id], offsets[id + 1]);
+            for (int band = 0; band < bands; band++) {
+                keys[band][id] = fingerprintKeys[band];
+            }
+        });
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            long[] entries = IntStream.range(0, texts.length)
+                    .filter(id -> offsets[id + 1] > offsets[id])
+                    .mapToLong(id -> ((long) keys[band][id] << 32) | id)
+                    .sorted()
+                    .toArray();
+            bandKeys[band] = new int[entries.length];
+            bandIds[band] = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                bandKeys[band][i] = (int) (entries[i] >> 32);
+                bandIds[band][i] = (int) entries[i];
+            }
+        });
+        LOG.info(String.format("Indexed %d sentences with %d bands of %d rows in %.1f s.",
+                texts.length, bands, rows, (System.nanoTime() - start) / 1e9));
+    }
+
+    private FingerprintIndex(Retina retina, int bands, int rows, long seed, String[] texts,
+            int[] offsets, short[] positions, int[][] bandKeys, int[][] bandIds)
+    {
+        this.retina = retina;
+        this.bands = bands;
+        this.rows = rows;
+        this.seed = seed;
+        this.texts = texts;
+        this.offsets = offsets;
+        this.positions = positions;
+        this.bandKeys = bandKeys;
+        this.bandIds = bandIds;
+        this.hashValues = hashValues(seed, bands * rows);
+    }
+
+    public static void main(String[] args)
+            throws IOException, ApiException
+    {
+        if (args.length >= 4 && args[0].equals("build")) {
+            Retina retinaName = (args.length > 4 && args[4].toLowerCase().startsWith("syn")) ?
+                    EN_SYNONYMOUS : EN_ASSOCIATIVE;
+            Texts textApi = Util.getTextApi(Util.getApi(args[3], retinaName, Util.RETINA_HOST),
+                    Util.getThrottle());
+            build(new File(args[1]), textApi, retinaName).write(new File(args[2]));
+        }
+        else if (args.length >= 3 && args[0].equals("query")) {
+            FingerprintIndex index = read(new File(args[1]));
+            int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            Measure measure = Measure.valueOf(
+                    System.getProperty("semeval.measure", Measure.COSINE_SIM.name()));
+            Texts textApi = Util.getTextApi(
+                    Util.getApi(args[2], index.getRetina(), Util.RETINA_HOST),
+                    Util.getThrottle());
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<Fingerprint> fingerprints = textApi.getFingerprintBulk(null, new Text(line));
+                long start = System.nanoTime();
+                List<Hit> hits = index.query(new FingerprintBits(fingerprints.get(0).getPositions()),
+                        k, measure);
+                LOG.info(String.format("Query took %.3f ms.", (System.nanoTime() - start) / 1e6));
+                hits.forEach(System.out::println);
+                System.out.println();
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Call: " + FingerprintIndex.class.getCanonicalName()
+                    + " build <corpus file> <index file> <api key> [<syn|ass>] | "
+                    + "query <index file> <api key> [<k>]");
+        }
+    }
+
+    /**
+     * Build an index for a corpus file holding one sentence per line, retrieving the fingerprints
+     * in batches. Empty lines are ignored.
+     *
+     * @param corpusFile the corpus file
+     * @param textApi    the {@link Texts} API to retrieve the fingerprints with
+     * @param retinaName the {@link Retina} used by {@code textApi}
+     * @return a new {@link FingerprintIndex}
+     * @throws IOException
+     * @throws ApiException
+     */
+    public static FingerprintIndex build(File corpusFile, Texts textApi, Retina retinaName)
+            throws IOException, ApiException
+    {
+        List<String> sentences;
+        try (BufferedReader reader = CompressedFiles.newReader(corpusFile)) {
+            sentences = reader.lines()
+                    .filter(line -> !line.trim().isEmpty())
+                    .collect(Collectors.toList());
+        }
+        LOG.info("Retrieving fingerprints for " + sentences.size() + " sentences.");
+        Builder builder = new Builder(retinaName, DEFAULT_BANDS, DEFAULT_ROWS);
+        for (int from = 0; from < sentences.size(); from += BUILD_BATCH_SIZE) {
+            List<String> batch = sentences.subList(from,
+                    Math.min(from + BUILD_BATCH_SIZE, sentences.size()));
+            Map<String, FingerprintBits> fingerprints = LocalCompare.getFingerprints(batch,
+                    textApi, Util.CHUNK_SIZE, Util.MAX_THREADS);
+            batch.forEach(sentence -> builder.add(sentence, fingerprints.get(sentence)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Find the {@code k} sentences most similar to a query fingerprint. Only the sentences
+     * sharing an LSH bucket with the query are considered.
+     *
+     * @param query   the fingerprint of the query
+     * @param k       the maximum number of results
+     * @param measure the {@link Measure} to rank by; one of {@link LocalCompare#MEASURES}
+     * @return up to {@code k} {@link Hit}s, with the most similar sentence first
+     */
+    public List<Hit> query(FingerprintBits query, int k, Measure measure)
+    {
+        LocalCompare.checkEnabled();
+        if (!LocalCompare.MEASURES.contains(measure)) {
+            throw new IllegalArgumentException("Measure not supported: " + measure);
+        }
+        int[] queryPositions = query.getPositions();
+        if (queryPositions.length == 0 || k < 1) {
+            return new ArrayList<>();
+        }
+        short[] shortPositions = new short[queryPositions.length];
+        for (int i = 0; i < queryPositions.length; i++) {
+            shortPositions[i] = (short) queryPositions[i];
+        }
+        int[] candidates = candidates(lshKeys(shortPositions, 0, shortPositions.length));
+
+        PriorityQueue<Hit> top = new PriorityQueue<>(k, Comparator.comparingDouble(Hit::getScore));
+        for (int id : candidates) {
+            int overlap = 0;
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+                if (query.contains(positions[i])) {
+                    overlap++;
+                }
+            }
+            double score = LocalCompare.similarity(measure, queryPositions.length,
+                    offsets[id + 1] - offsets[id], overlap);
+            if (top.size() < k) {
+                top.add(new Hit(id, texts[id], score));
+            }
+            else if (score > top.peek().getScore()) {
+                top.poll();
+                top.add(new Hit(id, texts[id], score));
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(Comparator.comparingDouble(Hit::getScore).reversed());
+        return hits;
+    }
+
+    public Retina getRetina()
+    {
+        return retina;
+    }
+
+    /**
+     * @return the number of sentences in the index
+     */
+    public int size()
+    {
+        return texts.length;
+    }
+
+    public String getText(int id)
+    {
+        return texts[id];
+    }
+
+    /**
+     * @param id a sentence id
+     * @return the fingerprint of the sentence
+     */
+    public FingerprintBits getFingerprint(int id)
+    {
+        int[] fingerprintPositions = new int[offsets[id + 1] - offsets[id]];
+        for (int i = 0; i < fingerprintPositions.length; i++) {
+            fingerprintPositions[i] = positions[offsets[id] + i];
+        }
+        return new FingerprintBits(fingerprintPositions);
+    }
+
+    /**
+     * Write the index to a little-endian binary file, holding the magic bytes {@code SEMFPIDX},
+     * an {@code int} format version, the retina name, the LSH parameters, the sentences, the
+     * fingerprint positions and the band tables.
+     *
+     * @param file the output file
+     * @throws IOException
+     */
+    public void write(File file)
+            throws IOException
+    {
+        byte[] retinaName = retina.name().getBytes(StandardCharsets.UTF_8);
+        byte[][] encodedTexts = new byte[texts.length][];
+        int[] textLengths = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            encodedTexts[i] = texts[i].getBytes(StandardCharsets.UTF_8);
+            textLengths[i] = encodedTexts[i].length;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 2 + retinaName.length + 24)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putShort((short) retinaName.length).put(retinaName)
+                    .putInt(bands).putInt(rows).putLong(seed).putInt(texts.length)
+                    .putInt(positions.length);
+            header.flip();
+            writeFully(channel, header);
+
+            writeInts(channel, textLengths);
+            ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+            for (byte[] text : encodedTexts) {
+                if (text.length > buffer.remaining()) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                if (text.length > buffer.capacity()) {
+                    writeFully(channel, ByteBuffer.wrap(text));
+                }
+                else {
+                    buffer.put(text);
+                }
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+
+            writeInts(channel, offsets);
+            writeShorts(channel, positions);
+            for (int band = 0; band < bands; band++) {
+                writeInts(channel, new int[] { bandKeys[band].length });
+                writeInts(channel, bandKeys[band]);
+                writeInts(channel, bandIds[band]);
+            }
+        }
+        LOG.info("Wrote index of " + texts.length + " sentences to " + file);
+    }
+
+    /**
+     * Read an index written by {@link #write(File)}.
+     *
+     * @param file the index file
+     * @return the {@link FingerprintIndex}
+     * @throws IOException
+     */
+    public static FingerprintIndex read(File file)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, MAGIC.length + 4 + 2);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a fingerprint index file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index file version " + version + ": " + file);
+            }
+            byte[] retinaName = new byte[header.getShort()];
+            readFully(channel, retinaName.length).get(retinaName);
+            Retina retina = Retina.valueOf(new String(retinaName, StandardCharsets.UTF_8));
+            header = readFully(channel, 24);
+            int bands = header.getInt();
+            int rows = header.getInt();
+            long seed = header.getLong();
+            int n = header.getInt();
+            int positionCount = header.getInt();
+
+            int[] textLengths = readInts(channel, n);
+            byte[] textBytes = new byte[Arrays.stream(textLengths).sum()];
+            for (int from = 0; from < textBytes.length; ) {
+                int length = Math.min(textBytes.length - from, IO_BUFFER_SIZE);
+                readFully(channel, length).get(textBytes, from, length);
+                from += length;
+            }
+            String[] texts = new String[n];
+            for (int i = 0, from = 0; i < n; from += textLengths[i], i++) {
+                texts[i] = new String(textBytes, from, textLengths[i], StandardCharsets.UTF_8);
+            }
+            int[] offsets = readInts(channel, n + 1);
+            short[] positions = readShorts(channel, positionCount);
+            int[][] bandKeys = new int[bands][];
+            int[][] bandIds = new int[bands][];
+            for (int band = 0; band < bands; band++) {
+                int entries = readInts(channel, 1)[0];
+                bandKeys[band] = readInts(channel, entries);
+                bandIds[band] = readInts(channel, entries);
+            }
+            FingerprintIndex index = new FingerprintIndex(retina, bands, rows, seed, texts, offsets,
+                    positions, bandKeys, bandIds);
+            LOG.info(String.format("Read index of %d sentences from %s in %.1f s.", n, file,
+                    (System.nanoTime() - start) / 1e9));
+            return index;
+        }
+    }
+
+    /**
+     * Compute the band keys of a fingerprint: the MinHash value for each of the
+     * {@code bands * rows} hash functions is the minimum of its values over the positions, and the
+     * values of each band are combined into one key.
+     */
+    private int[] lshKeys(short[] fingerprintPositions, int from, int to)
+    {
+        int hashes = bands * rows;
+        int[] minHashes = new int[hashes];
+        Arrays.fill(minHashes, Integer.MAX_VALUE);
+        for (int i = from; i < to; i++) {
+            int base = fingerprintPositions[i] * hashes;
+            for (int h = 0; h < hashes; h++) {
+                int value = hashValues[base + h];
+                if (value < minHashes[h]) {
+                    minHashes[h] = value;
+                }
+            }
+        }
+        int[] keys = new int[bands];
+        for (int band = 0; band < bands; band++) {
+            int key = band;
+            for (int row = 0; row < rows; row++) {
+                key = key * 0x9e3779b1 + minHashes[band * rows + row];
+            }
+            keys[band] = key ^ (key >>> 16);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the sorted ids of all sentences sharing a bucket with the given band keys
+     */
+    private int[] candidates(int[] keys)
+    {
+        int[] candidates = new int[64];
+        int n = 0;
+        for (int band = 0; band < bands; band++) {
+            int[] sortedKeys = bandKeys[band];
+            for (int i = lowerBound(sortedKeys, keys[band]);
+                 i < sortedKeys.length && sortedKeys[i] == keys[band]; i++) {
+                if (n == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, n * 2);
+                }
+                candidates[n++] = bandIds[band][i];
+            }
+        }
+        Arrays.sort(candidates, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || candidates[i] != candidates[unique - 1]) {
+                candidates[unique++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(candidates, unique);
+    }
+
+    private static int lowerBound(int[] sortedKeys, int key)
+    {
+        int low = 0;
+        int high = sortedKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedKeys[mid] < key) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The random values of the MinHash functions, {@code hashes} values per position.
+     */
+    private static int[] hashValues(long seed, int hashes)
+    {
+        Random random = new Random(seed);
+        int[] values = new int[FingerprintBits.SIZE * hashes];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(FileChannel channel, int[] values)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int from = 0; from < values.length; ) {
+            int n = Math.min(values.length - from, IO_BUFFER_SIZE / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, from, n);
+            buffer.limit(n * 4);
+            writeFully(channel, buffer);
+            from += n;
+        }
+    }
+
+    private static void writeShorts(FileChannel channel, short[] values)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int from = 0; from < values.length; ) {
+            int n = Math.min(values.length - from, IO_BUFFER_SIZE / 2);
+            buffer.clear();
+            buffer.asShortBuffer().put(values, from, n);
+            buffer.limit(n * 2);
+            writeFully(channel, buffer);
+            from += n;
+        }
+    }
+
+    private static int[] readInts(FileChannel channel, int count)
+            throws IOException
+    {
+        int[] values = new int[count];
+        for (int from = 0; from < count; ) {
+            int n = Math.min(count - from, IO_BUFFER_SIZE / 4);
+            readFully(channel, n * 4).asIntBuffer().get(values, from, n);
+            from += n;
+        }
+        return values;
+    }
+
+    private static short[] readShorts(FileChannel channel, int count)
+            throws IOException
+    {
+        short[] values = new short[count];
+        for (int from = 0; from < count; ) {
+            int n = Math.min(count - from, IO_BUFFER_SIZE / 2);
+            readFully(channel, n * 2).asShortBuffer().get(values, from, n);
+            from += n;
+        }
+        return values;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int bytes)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of index file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
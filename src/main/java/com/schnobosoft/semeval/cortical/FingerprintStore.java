@@ -0,0 +1,541 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.services.Texts;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_ASSOCIATIVE;
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_SYNONYMOUS;
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * A read-only store of the fingerprints of many texts for one retina, in a memory-mapped file.
+ * The fingerprints are read as {@link CompressedFingerprint}s directly from the mapping, so that
+ * a store can be shared by several processes without deserialization and without using heap
+ * memory for the fingerprints.
+ * <p>
+ * The file is little-endian and consists of:
+ * <ul>
+ * <li>the magic bytes {@code SEMFPSTR}, an {@code int} format version and the retina name, stored
+ * as an {@code int} length and UTF-8 bytes, padded to 8 bytes</li>
+ * <li>the number of fingerprints, the offset of the hash table as {@code long}s, and the hash
+ * table capacity as an {@code int}, padded to 8 bytes</li>
+ * <li>the encoded fingerprints (see {@link CompressedFingerprint}); none of them crosses a
+ * multiple of {@link #SEGMENT_SIZE}, so that the file can be mapped in segments</li>
+ * <li>an open-addressing hash table of ({@code long} text hash, {@code long} fingerprint
+ * offset) slots; the text hash is the first 8 bytes of the SHA-1 digest of the normalized text
+ * (see {@link MetricCache#normalize(String)}), and 0 marks an empty slot</li>
+ * </ul>
+ * Stores are written by a {@link Writer} to a temporary file that replaces the store when it is
+ * complete, so that processes that have mapped the previous version keep reading it.
+ * <p>
+ * Call arguments: {@code <store directory> <api key> <ass|syn> <input file>...} adds the
+ * fingerprints of all texts in the given SemEval input files to the store of the retina in the
+ * directory, retrieving the fingerprints that are not yet stored from the API.
+ *
+ * @author Carsten Schnober
+ */
+public class FingerprintStore
+{
+    public static final String FILE_SUFFIX = ".fingerprints";
+    /** the size of the segments in which the file is mapped */
+    static final long SEGMENT_SIZE = 1L << 30;
+    private static final Log LOG = LogFactory.getLog(FingerprintStore.class);
+    private static final byte[] MAGIC = "SEMFPSTR".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int SLOT_SIZE = 16;
+    private static final Map<File, FingerprintStore> OPEN_STORES = new ConcurrentHashMap<>();
+
+    private final Retina retina;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+    private final ByteBuffer table;
+    private final int mask;
+
+    private FingerprintStore(Retina retina, long size, MappedByteBuffer[] segments,
+            ByteBuffer table, int capacity)
+    {
+        this.retina = retina;
+        this.size = size;
+        this.segments = segments;
+        this.table = table;
+        this.mask = capacity - 1;
+    }
+
+    public static void main(String[] args)
+            throws IOException, ApiException
+    {
+        if (args.length < 4) {
+            throw new IllegalArgumentException("Call: " + FingerprintStore.class.getCanonicalName()
+                    + " <store directory> <api key> <ass|syn> <input file>...");
+        }
+        Retina retinaName = args[2].toLowerCase().startsWith("syn") ? EN_SYNONYMOUS : EN_ASSOCIATIVE;
+        Set<String> texts = new LinkedHashSet<>();
+        for (int i = 3; i < args.length; i++) {
+            for (CompareModels pair : SemEvalTextSimilarity.readInput(new File(args[i]))) {
+                if (pair == null) {
+                    continue;
+                }
+                texts.add(MetricCache.normalize(LocalCompare.getText(pair.getModel1())));
+                texts.add(MetricCache.normalize(LocalCompare.getText(pair.getModel2())));
+            }
+        }
+        Texts textApi = Util.getTextApi(Util.getApi(args[1], retinaName, Util.RETINA_HOST),
+                Util.getThrottle());
+        add(getStoreFile(new File(args[0]), retinaName), retinaName, texts, textApi);
+    }
+
+    /**
+     * Add the fingerprints of texts to a store file, retrieving the fingerprints that are not yet
+     * stored from the API. If the file does not exist, a new store is created.
+     *
+     * @param file       the store file
+     * @param retinaName the {@link Retina} of the store
+     * @param texts      the texts to add
+     * @param textApi    the {@link Texts} API to retrieve fingerprints from
+     * @throws IOException
+     * @throws ApiException
+     */
+    public static void add(File file, Retina retinaName, Set<String> texts, Texts textApi)
+            throws IOException, ApiException
+    {
+        FingerprintStore existing = file.exists() ? open(file) : null;
+        if (existing != null && existing.getRetina() != retinaName) {
+            throw new IllegalArgumentException(
+                    "Store " + file + " holds fingerprints for " + existing.getRetina());
+        }
+        List<String> missing = new ArrayList<>();
+        for (String text : texts) {
+            if (existing == null || existing.get(text) == null) {
+                missing.add(text);
+            }
+        }
+        LOG.info(String.format("Adding %d of %d texts to %s.", missing.size(), texts.size(), file));
+        if (missing.isEmpty()) {
+            return;
+        }
+        Map<String, FingerprintBits> fingerprints = LocalCompare.getFingerprints(missing, textApi,
+                Util.CHUNK_SIZE, Util.MAX_THREADS);
+        try (Writer writer = new Writer(file, retinaName)) {
+            if (existing != null) {
+                writer.addAll(existing);
+            }
+            for (String text : missing) {
+                writer.add(text, fingerprints.get(text));
+            }
+        }
+        OPEN_STORES.remove(file.getAbsoluteFile());
+    }
+
+    /**
+     * @param directory the store directory
+     * @param retina    the {@link Retina}
+     * @return the store file for the retina in the directory
+     */
+    public static File getStoreFile(File directory, Retina retina)
+    {
+        return new File(directory, retina.name().toLowerCase() + FILE_SUFFIX);
+    }
+
+    /**
+     * Open a store file, or return the store if it has been opened before by this process.
+     *
+     * @param file the store file
+     * @return the {@link FingerprintStore}
+     * @throws IOException
+     */
+    public static FingerprintStore open(File file)
+            throws IOException
+    {
+        FingerprintStore store = OPEN_STORES.get(file.getAbsoluteFile());
+        if (store == null) {
+            store = map(file);
+            OPEN_STORES.put(file.getAbsoluteFile(), store);
+        }
+        return store;
+    }
+
+    private static FingerprintStore map(File file)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a fingerprint store: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported fingerprint store version " + version + ": "
+                        + file);
+            }
+            int nameLength = header.getInt();
+            ByteBuffer rest = ByteBuffer.allocate(align(nameLength) + 24)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, rest, header.capacity());
+            byte[] name = new byte[nameLength];
+            rest.get(name);
+            rest.position(align(nameLength));
+            Retina retina = Retina.valueOf(new String(name, StandardCharsets.UTF_8));
+            long size = rest.getLong();
+            long tableOffset = rest.getLong();
+            int capacity = rest.getInt();
+
+            int segmentCount = (int) ((tableOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(SEGMENT_SIZE, tableOffset - start));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset,
+                    (long) capacity * SLOT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            LOG.info("Opened fingerprint store " + file + " with " + size + " fingerprints.");
+            return new FingerprintStore(retina, size, segments, table, capacity);
+        }
+    }
+
+    public Retina getRetina()
+    {
+        return retina;
+    }
+
+    /**
+     * @return the number of fingerprints in the store
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Look up the fingerprint of a text.
+     *
+     * @param text a text; it is normalized as by {@link MetricCache#normalize(String)}
+     * @return the {@link CompressedFingerprint} of the text, or null if it is not stored
+     */
+    public CompressedFingerprint get(String text)
+    {
+        long hash = hash(text);
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = table.getLong(slot * SLOT_SIZE);
+            if (slotHash == 0) {
+                return null;
+            }
+            else if (slotHash == hash) {
+                return get(table.getLong(slot * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    private CompressedFingerprint get(long offset)
+    {
+        return new CompressedFingerprint(segments[(int) (offset / SEGMENT_SIZE)],
+                (int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * @param text a text
+     * @return the hash of the normalized text; never 0
+     */
+    static long hash(String text)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(MetricCache.normalize(text).getBytes(StandardCharsets.UTF_8));
+            long hash = ByteBuffer.wrap(digest).getLong();
+            return hash == 0 ? 1 : hash;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a new store file. The file is written to a temporary file first, which replaces the
+     * store file when the writer is closed. If writing fails, the temporary file is deleted and the
+     * store file is left unchanged.
+     */
+    public static class Writer
+            implements Closeable
+    {
+        private final File file;
+        private final File tempFile;
+        private final FileChannel channel;
+        private final long dataOffset;
+        private long position;
+        private long[] hashes = new long[1024];
+        private long[] offsets = new long[1024];
+        private int size;
+        /* open addressing set of the hashes added, to skip duplicate texts */
+        private long[] seen = new long[2048];
+        private boolean failed;
+
+        /**
+         * @param file   the store file
+         * @param retina the {@link Retina} of the fingerprints
+         * @throws IOException
+         */
+        public Writer(File file, Retina retina)
+                throws IOException
+        {
+            this.file = file;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            byte[] name = retina.name().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8 + align(name.length))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(name.length).put(name);
+            header.rewind();
+            try {
+                writeFully(channel, header, 0);
+            }
+            catch (IOException e) {
+                discard();
+                throw e;
+            }
+            this.dataOffset = header.capacity();
+            this.position = dataOffset + 24;
+        }
+
+        /**
+         * Add the fingerprint of a text. If a text is added more than once, the first fingerprint
+         * is kept and the others are not written.
+         *
+         * @param text        the text
+         * @param fingerprint the {@link FingerprintBits} of the text
+         * @throws IOException
+         */
+        public void add(String text, FingerprintBits fingerprint)
+                throws IOException
+        {
+            long hash = hash(text);
+            if (contains(hash)) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    CompressedFingerprint.encodedSize(fingerprint.cardinality()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            CompressedFingerprint.encode(fingerprint, buffer, 0);
+            add(hash, buffer);
+        }
+
+        /**
+         * Add all fingerprints of another store.
+         *
+         * @param store a {@link FingerprintStore}
+         * @throws IOException
+         */
+        public void addAll(FingerprintStore store)
+                throws IOException
+        {
+            for (int slot = 0; slot <= store.mask; slot++) {
+                long hash = store.table.getLong(slot * SLOT_SIZE);
+                if (hash != 0 && !contains(hash)) {
+                    long offset = store.table.getLong(slot * SLOT_SIZE + 8);
+                    ByteBuffer segment = store.segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+                    int from = (int) (offset % SEGMENT_SIZE);
+                    segment.position(from);
+                    segment.limit(from + store.get(offset).encodedSize());
+                    add(hash, segment.slice());
+                }
+            }
+        }
+
+        private void add(long hash, ByteBuffer encoded)
+                throws IOException
+        {
+            int length = encoded.remaining();
+            if (position / SEGMENT_SIZE != (position + length - 1) / SEGMENT_SIZE) {
+                position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            }
+            try {
+                writeFully(channel, encoded, position);
+            }
+            catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            hashes[size] = hash;
+            offsets[size] = position;
+            size++;
+            insert(seen, hash);
+            if (size * 2 > seen.length) {
+                seen = new long[seen.length * 2];
+                for (int i = 0; i < size; i++) {
+                    insert(seen, hashes[i]);
+                }
+            }
+            position += length;
+        }
+
+        private boolean contains(long hash)
+        {
+            int mask = seen.length - 1;
+            for (int slot = (int) hash & mask; seen[slot] != 0; slot = (slot + 1) & mask) {
+                if (seen[slot] == hash) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void insert(long[] table, long hash)
+        {
+            int mask = table.length - 1;
+            int slot = (int) hash & mask;
+            while (table[slot] != 0 && table[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = hash;
+        }
+
+        /**
+         * Close the channel and delete the temporary file, without replacing the store file.
+         */
+        private void discard()
+        {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to close " + tempFile, e);
+            }
+            if (!tempFile.delete()) {
+                LOG.warn("Unable to delete " + tempFile);
+            }
+        }
+
+        /**
+         * Write the hash table and the header, and replace the store file. If an {@link #add}
+         * has failed, or if writing fails, the temporary file is deleted instead.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (failed) {
+                discard();
+                return;
+            }
+            int unique;
+            boolean replaced = false;
+            try {
+                int capacity = Integer.highestOneBit(Math.max(16, size * 2 - 1)) << 1;
+                ByteBuffer table = ByteBuffer.allocate(capacity * SLOT_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                int mask = capacity - 1;
+                unique = 0;
+                for (int i = 0; i < size; i++) {
+                    int slot = (int) hashes[i] & mask;
+                    while (table.getLong(slot * SLOT_SIZE) != 0
+                            && table.getLong(slot * SLOT_SIZE) != hashes[i]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    if (table.getLong(slot * SLOT_SIZE) == 0) {
+                        table.putLong(slot * SLOT_SIZE, hashes[i]);
+                        table.putLong(slot * SLOT_SIZE + 8, offsets[i]);
+                        unique++;
+                    }
+                }
+                writeFully(channel, table, position);
+
+                ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(unique).putLong(position).putInt(capacity);
+                header.rewind();
+                writeFully(channel, header, dataOffset);
+                channel.force(true);
+                channel.close();
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+            }
+            finally {
+                if (!replaced) {
+                    discard();
+                }
+            }
+            LOG.info("Wrote " + unique + " fingerprints to " + file);
+        }
+    }
+
+    private static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * Fill a buffer, from its position 0, from a position of the channel, and flip it.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of fingerprint store.");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Write a buffer, from its position 0, at a position of the channel.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
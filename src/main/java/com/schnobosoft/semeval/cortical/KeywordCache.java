@@ -0,0 +1,129 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache for the keywords of texts, keyed by a {@link Retina} and a text.
+ * <p>
+ * Like the on-disk tier of {@link MetricCache}, one file is stored per text, in a
+ * {@code keywords} directory below the directory named after the retina. Texts are normalized
+ * with {@link MetricCache#normalize(String)}.
+ *
+ * @author Carsten Schnober
+ */
+public class KeywordCache
+{
+    private static final Log LOG = LogFactory.getLog(KeywordCache.class);
+
+    private final Retina retina;
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param retina    the {@link Retina} of all the keywords in this cache
+     * @param directory the base directory of the cache
+     */
+    public KeywordCache(Retina retina, File directory)
+    {
+        this.retina = retina;
+        this.directory = new File(new File(directory, retina.name().toLowerCase()), "keywords")
+                .toPath();
+    }
+
+    /**
+     * Look up the keywords for a text.
+     *
+     * @param text a text
+     * @return the cached keywords or {@code null} if the text is not in the cache
+     */
+    public List<String> get(String text)
+    {
+        String key = MetricCache.normalize(text);
+        Path file = getFile(key);
+        if (Files.exists(file)) {
+            try {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                if (lines.size() == 2 && lines.get(0).equals(key)) {
+                    hits.incrementAndGet();
+                    return lines.get(1).isEmpty() ?
+                            Arrays.asList() :
+                            Arrays.asList(lines.get(1).split("\t"));
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to read cache file " + file + ": " + e.getMessage());
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store the keywords for a text.
+     *
+     * @param text     a text
+     * @param keywords the keywords of the text
+     */
+    public void put(String text, List<String> keywords)
+    {
+        String key = MetricCache.normalize(text);
+        Path file = getFile(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(tmpFile, Arrays.asList(key, String.join("\t", keywords)),
+                    StandardCharsets.UTF_8);
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to write cache file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log the number of cache hits and misses.
+     */
+    public void logStatistics()
+    {
+        long total = hits.get() + misses.get();
+        LOG.info(String.format("Keyword cache (%s): %d hits, %d misses (%.1f%% hits).",
+                retina.name().toLowerCase(), hits.get(), misses.get(),
+                total == 0 ? 0.0 : 100.0 * hits.get() / total));
+    }
+
+    private Path getFile(String key)
+    {
+        String hash = MetricCache.sha1(key);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+}
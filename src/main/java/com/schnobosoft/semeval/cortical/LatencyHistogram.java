@@ -0,0 +1,96 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies with logarithmic buckets. Each bucket covers 10% of its lower
+ * bound, so percentiles have a relative error of at most 10%. Latencies from 1 microsecond to
+ * about 20 minutes are distinguished; longer latencies fall into the last bucket.
+ *
+ * @author Carsten Schnober
+ */
+public class LatencyHistogram
+{
+    private static final double GROWTH = 1.1;
+    private static final int BUCKETS = 220;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos a latency in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = (int) Math.min(BUCKETS - 1, Math.log(micros) / LOG_GROWTH);
+        counts.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getMeanMillis()
+    {
+        long n = count.sum();
+        return n == 0 ? Double.NaN : totalNanos.sum() / 1e6 / n;
+    }
+
+    public double getMaxMillis()
+    {
+        return count.sum() == 0 ? Double.NaN : maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Get the upper bound of the bucket that contains a percentile, but at most the maximum.
+     *
+     * @param percentile a percentile between 0 and 100
+     * @return the latency in milliseconds, or NaN if no latencies have been recorded
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long cumulative = 0;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && (cumulative += snapshot[bucket]) < rank) {
+            bucket++;
+        }
+        return Math.min(Math.pow(GROWTH, bucket + 1) / 1000, getMaxMillis());
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.commons.math3.stat.descriptive.SynchronizedDescriptiveStatistics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Drive the compare API client with synthetic text pairs and report the throughput and request
+ * latencies. Unless a host is given, a {@link RetinaStandIn} is started on
+ * {@link RetinaStandIn#DEFAULT_PORT} and configured by the {@code standin.*} system properties.
+ * <p>
+ * Requests are sent in chunks of {@link Util#CHUNK_SIZE} pairs by {@link Util#MAX_THREADS} threads,
+ * through an {@link AdaptiveThrottle} (see {@link Util#getThrottle()}). Unlike
+ * {@link ChunkedCompare}, requests that fail after all retries are counted instead of aborting the
+ * run.
+ * <p>
+ * Call arguments: {@code <number of pairs> [<host>]}; the API key for a remote host is set by the
+ * system property {@code semeval.apiKey}.
+ *
+ * @author Carsten Schnober
+ */
+public class LoadGenerator
+{
+    private static final Log LOG = LogFactory.getLog(LoadGenerator.class);
+    private static final int VOCABULARY_SIZE = 2000;
+    private static final int SENTENCE_LENGTH = 12;
+
+    private final Compare compareApi;
+    private final int chunkSize;
+    private final int threads;
+    private final DescriptiveStatistics latencies = new SynchronizedDescriptiveStatistics();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public LoadGenerator(Compare compareApi, int chunkSize, int threads)
+    {
+        this.compareApi = compareApi;
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException
+    {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Call: " + LoadGenerator.class.getCanonicalName()
+                    + " <number of pairs> [<host>]");
+        }
+        int pairs = Integer.parseInt(args[0]);
+        RetinaStandIn standIn = null;
+        String host;
+        if (args.length > 1) {
+            host = args[1];
+        }
+        else {
+            standIn = RetinaStandIn.fromSystemProperties(RetinaStandIn.DEFAULT_PORT);
+            standIn.start();
+            host = standIn.getHost();
+        }
+        String apiKey = System.getProperty("semeval.apiKey", "stand-in");
+
+        try {
+            AdaptiveThrottle throttle = Util.getThrottle();
+            Compare compareApi = new ThrottledCompare(
+                    Util.getApi(apiKey, Retina.EN_ASSOCIATIVE, host).compareApi(), throttle);
+            new LoadGenerator(compareApi, Util.CHUNK_SIZE, Util.MAX_THREADS)
+                    .run(syntheticPairs(pairs, 1));
+            throttle.logStatistics();
+        }
+        finally {
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+    }
+
+    /**
+     * Create pairs of random sentences over a fixed vocabulary. The second sentence of each pair
+     * shares some words with the first one.
+     *
+     * @param size the number of pairs
+     * @param seed the random seed
+     * @return an array of {@link CompareModels}
+     */
+    public static CompareModels[] syntheticPairs(int size, long seed)
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        CompareModels[] pairs = new CompareModels[size];
+        for (int i = 0; i < size; i++) {
+            StringBuilder text1 = new StringBuilder();
+            StringBuilder text2 = new StringBuilder();
+            for (int j = 0; j < SENTENCE_LENGTH; j++) {
+                int word = random.nextInt(VOCABULARY_SIZE);
+                text1.append('w').append(word).append(' ');
+                text2.append('w')
+                        .append(random.nextBoolean() ? word : random.nextInt(VOCABULARY_SIZE))
+                        .append(' ');
+            }
+            pairs[i] = new CompareModels(new Text(text1.toString().trim()),
+                    new Text(text2.toString().trim()));
+        }
+        return pairs;
+    }
+
+    /**
+     * Send all pairs and log the results.
+     *
+     * @param pairs the pairs to compare
+     * @throws InterruptedException
+     */
+    public void run(CompareModels[] pairs)
+            throws InterruptedException
+    {
+        LOG.info(String.format("Sending %d pairs in chunks of %d using %d threads.", pairs.length,
+                chunkSize, threads));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int offset = 0; offset < pairs.length; offset += chunkSize) {
+                CompareModels[] chunk = Arrays.copyOfRange(pairs, offset,
+                        Math.min(offset + chunkSize, pairs.length));
+                futures.add(executor.submit(() -> send(chunk)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        logStatistics(futures.size(), System.nanoTime() - start);
+    }
+
+    private void send(CompareModels[] chunk)
+    {
+        long start = System.nanoTime();
+        try {
+            compareApi.compareBulk(chunk);
+            latencies.addValue((System.nanoTime() - start) / 1e6);
+        }
+        catch (ApiException e) {
+            errors.computeIfAbsent("HTTP " + e.getCode(), key -> new LongAdder()).increment();
+        }
+        catch (Exception e) {
+            errors.computeIfAbsent(e.getClass().getSimpleName(), key -> new LongAdder())
+                    .increment();
+        }
+    }
+
+    private void logStatistics(int requests, long nanos)
+    {
+        double seconds = nanos / 1e9;
+        LOG.info(String.format("%d requests in %.1f s: %.1f requests/s, %.1f successful "
+                        + "requests/s.", requests, seconds, requests / seconds,
+                latencies.getN() / seconds));
+        if (latencies.getN() > 0) {
+            LOG.info(String.format(
+                    "Latency (ms): mean %.1f, p50 %.1f, p95 %.1f, p99 %.1f, max %.1f.",
+                    latencies.getMean(), latencies.getPercentile(50), latencies.getPercentile(95),
+                    latencies.getPercentile(99), latencies.getMax()));
+        }
+        errors.forEach((error, count) -> LOG.info("Failed requests (" + error + "): " + count));
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import io.cortical.rest.model.Fingerprint;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Model;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Texts;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Compute {@link Metric}s locally from semantic fingerprints instead of calling the
+ * {@code compare} API for each text pair. One fingerprint is retrieved for each unique text; all
+ * the comparisons are then computed on {@link FingerprintBits} in parallel.
+ * <p>
+ * The weighted scoring depends on the topology of the retina and cannot be computed from the
+ * fingerprint positions alone. It is therefore set to {@link Double#NaN}; see {@link #MEASURES}
+ * for the measures that are available.
+ * <p>
+ * This is experimental: the formulas in {@link #compare(FingerprintBits, FingerprintBits)} have
+ * not yet been verified against recorded {@code compare} API responses. LocalCompareTest
+ * compares them with responses recorded by RecordApiResponses (both in {@code src/test}). Until
+ * then, local mode, {@link FingerprintIndex} queries and {@link SimilarityMatrix} are disabled
+ * unless {@link Util#UNVERIFIED_LOCAL_FORMULAS} is set; see {@link #checkEnabled()}.
+ *
+ * @author Carsten Schnober
+ */
+public class LocalCompare
+{
+    /** the measures that can be computed locally */
+    public static final Set<Measure> MEASURES = EnumSet.complementOf(EnumSet.of(Measure.WEIGHTED));
+    private static final Log LOG = LogFactory.getLog(LocalCompare.class);
+
+    /**
+     * Compare all input pairs locally, retrieving fingerprints in chunks of
+     * {@link Util#CHUNK_SIZE} texts using {@link Util#MAX_THREADS} request threads.
+     *
+     * @param input   an array of {@link CompareModels}, each holding two {@link Text}s
+     * @param textApi the {@link Texts} API to retrieve fingerprints from
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Texts textApi)
+            throws JsonProcessingException, ApiException
+    {
+        return compareBulk(input, textApi, null);
+    }
+
+    /**
+     * Compare all input pairs locally, using the fingerprints in a {@link FingerprintStore} where
+     * available. The other fingerprints are retrieved in chunks of {@link Util#CHUNK_SIZE} texts
+     * using {@link Util#MAX_THREADS} request threads.
+     *
+     * @param input   an array of {@link CompareModels}, each holding two {@link Text}s
+     * @param textApi the {@link Texts} API to retrieve fingerprints from
+     * @param store   the {@link FingerprintStore} to look up fingerprints in; may be null
+     * @return an array of {@link Metric}s, one for each input pair, in input order
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Metric[] compareBulk(CompareModels[] input, Texts textApi,
+            FingerprintStore store)
+            throws JsonProcessingException, ApiException
+    {
+        checkEnabled();
+        Set<String> texts = new LinkedHashSet<>();
+        for (CompareModels pair : input) {
+            texts.add(getText(pair.getModel1()));
+            texts.add(getText(pair.getModel2()));
+        }
+        Map<String, CompressedFingerprint> fingerprints = new HashMap<>(texts.size());
+        List<String> missing = new ArrayList<>();
+        for (String text : texts) {
+            CompressedFingerprint fingerprint = store == null ? null : store.get(text);
+            if (fingerprint == null) {
+                missing.add(text);
+            }
+            else {
+                fingerprints.put(text, fingerprint);
+            }
+        }
+        LOG.info("Retrieving fingerprints for " + missing.size() + " of " + texts.size()
+                + " unique texts in " + input.length + " pairs.");
+        getFingerprints(missing, textApi, Util.CHUNK_SIZE, Util.MAX_THREADS).forEach(
+                (text, fingerprint) -> fingerprints.put(text, CompressedFingerprint.of(fingerprint)));
+
+        return IntStream.range(0, input.length).parallel()
+                .mapToObj(i -> compare(fingerprints.get(getText(input[i].getModel1())),
+                        fingerprints.get(getText(input[i].getModel2()))))
+                .toArray(Metric[]::new);
+    }
+
+    /**
+     * Retrieve the fingerprints for a collection of texts using the bulk text API.
+     *
+     * @param texts     the texts
+     * @param textApi   the {@link Texts} API to use
+     * @param chunkSize the maximum number of texts per request
+     * @param threads   the number of concurrent requests
+     * @return a map from each text to its fingerprint
+     * @throws JsonProcessingException
+     * @throws ApiException
+     */
+    public static Map<String, FingerprintBits> getFingerprints(Collection<String> texts,
+            Texts textApi, int chunkSize, int threads)
+            throws JsonProcessingException, ApiException
+    {
+        List<String> textList = new ArrayList<>(texts);
+        Map<String, FingerprintBits> fingerprints = new ConcurrentHashMap<>(textList.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int from = 0; from < textList.size(); from += chunkSize) {
+            List<String> chunk = textList.subList(from, Math.min(from + chunkSize, textList.size()));
+            futures.add(executor.submit(() -> {
+                List<Fingerprint> chunkFingerprints = textApi.getFingerprintBulk(null,
+                        chunk.stream().map(Text::new).toArray(Text[]::new));
+                if (chunkFingerprints.size() != chunk.size()) {
+                    throw new IllegalStateException("Expected " + chunk.size()
+                            + " fingerprints, got " + chunkFingerprints.size() + ".");
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    fingerprints.put(chunk.get(i),
+                            new FingerprintBits(chunkFingerprints.get(i).getPositions()));
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ApiException) {
+                throw (ApiException) cause;
+            }
+            else if (cause instanceof JsonProcessingException) {
+                throw (JsonProcessingException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        finally {
+            futures.forEach(future -> future.cancel(true));
+            executor.shutdown();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Compute the {@link Metric} for two fingerprints. With {@code a} and {@code b} being the
+     * numbers of positions in the fingerprints and {@code o} the size of their overlap:
+     * <ul>
+     * <li>cosine similarity: {@code o / sqrt(a * b)}</li>
+     * <li>Euclidean distance: {@code sqrt(a + b - 2o) / sqrt(a + b)}</li>
+     * <li>Jaccard distance: {@code 1 - o / (a + b - o)}</li>
+     * <li>overlapping left-right and right-left: {@code o / a} and {@code o / b}</li>
+     * </ul>
+     *
+     * @param fp1 the first fingerprint
+     * @param fp2 the second fingerprint
+     * @return a {@link Metric}; the weighted scoring is {@link Double#NaN}
+     */
+    public static Metric compare(FingerprintBits fp1, FingerprintBits fp2)
+    {
+        return compare(fp1.cardinality(), fp2.cardinality(), fp1.intersectionSize(fp2));
+    }
+
+    /**
+     * Compute the {@link Metric} for two {@link CompressedFingerprint}s, as in
+     * {@link #compare(FingerprintBits, FingerprintBits)}.
+     *
+     * @param fp1 the first fingerprint
+     * @param fp2 the second fingerprint
+     * @return a {@link Metric}; the weighted scoring is {@link Double#NaN}
+     */
+    public static Metric compare(CompressedFingerprint fp1, CompressedFingerprint fp2)
+    {
+        return compare(fp1.cardinality(), fp2.cardinality(), fp1.intersectionSize(fp2));
+    }
+
+    /**
+     * Compute the {@link Metric} for two fingerprints from their sizes and the size of their
+     * overlap, as in {@link #compare(FingerprintBits, FingerprintBits)}.
+     *
+     * @param size1   the number of positions in the first fingerprint
+     * @param size2   the number of positions in the second fingerprint
+     * @param overlap the number of positions in both fingerprints
+     * @return a {@link Metric}; the weighted scoring is {@link Double#NaN}
+     */
+    public static Metric compare(int size1, int size2, int overlap)
+    {
+        return Util.arrayToMetric(new double[] {
+                cosineSimilarity(size1, size2, overlap),
+                euclideanDistance(size1, size2, overlap),
+                jaccardDistance(size1, size2, overlap),
+                overlap,
+                size1 == 0 ? 0.0 : (double) overlap / size1,
+                size2 == 0 ? 0.0 : (double) overlap / size2,
+                size1,
+                size2,
+                Double.NaN });
+    }
+
+    /**
+     * Compute the value of a {@link Measure} for two fingerprints from their sizes and the size of
+     * their overlap, without creating a {@link Metric}. The value equals
+     * {@link Util#getSimilarity(Metric, Measure)} for the {@link Metric} computed by
+     * {@link #compare(int, int, int)}, i.e. distances are negated.
+     *
+     * @param measure the {@link Measure}; one of {@link #MEASURES}
+     * @param size1   the number of positions in the first fingerprint
+     * @param size2   the number of positions in the second fingerprint
+     * @param overlap the number of positions in both fingerprints
+     * @return the value of the measure; larger values mean more similarity
+     */
+    public static double similarity(Measure measure, int size1, int size2, int overlap)
+    {
+        switch (measure) {
+        case COSINE_SIM:
+            return cosineSimilarity(size1, size2, overlap);
+        case EUCLIDIAN_DIST:
+            return -euclideanDistance(size1, size2, overlap);
+        case JACCARD_DIST:
+            return -jaccardDistance(size1, size2, overlap);
+        case OVERLAP:
+            return overlap;
+        default:
+            throw new IllegalArgumentException("Measure not supported: " + measure);
+        }
+    }
+
+    private static double cosineSimilarity(int size1, int size2, int overlap)
+    {
+        return size1 == 0 || size2 == 0 ? 0.0 : overlap / Math.sqrt((double) size1 * size2);
+    }
+
+    private static double euclideanDistance(int size1, int size2, int overlap)
+    {
+        return size1 + size2 - overlap == 0 ?
+                0.0 :
+                Math.sqrt(size1 + size2 - 2.0 * overlap) / Math.sqrt(size1 + size2);
+    }
+
+    private static double jaccardDistance(int size1, int size2, int overlap)
+    {
+        int union = size1 + size2 - overlap;
+        return union == 0 ? 1.0 : 1.0 - (double) overlap / union;
+    }
+
+    /**
+     * Check that the local formulas may be used for scoring and ranking.
+     *
+     * @throws IllegalStateException unless {@link Util#UNVERIFIED_LOCAL_FORMULAS} is set
+     */
+    public static void checkEnabled()
+    {
+        if (!Util.UNVERIFIED_LOCAL_FORMULAS) {
+            throw new IllegalStateException("The local formulas have not been verified against "
+                    + "recorded compare API responses (see LocalCompareTest); set "
+                    + "-Dsemeval.unverifiedLocalFormulas=true to use them anyway.");
+        }
+    }
+
+    static String getText(Model model)
+    {
+        if (!(model instanceof Text)) {
+            throw new IllegalArgumentException("Not a text: " + model);
+        }
+        return ((Text) model).getText();
+    }
+}
@@ -0,0 +1,585 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.schnobosoft.semeval.cortical.RunMetrics.Stage;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A linear combination of the scores of several {@link Retina} and {@link Measure} combinations,
+ * fitted against the gold standard by ridge regression.
+ * <p>
+ * The features are the output files of {@link SemEvalTextSimilarity} for an input file. For
+ * fitting, the scores of all pairs with a gold standard score and all features present are
+ * collected into primitive feature columns, and standardized. The regularization strength is
+ * chosen by k-fold cross-validation over {@link #LAMBDAS}: the sufficient statistics (sums and
+ * cross products) are computed once per fold, and all (lambda, fold) combinations are solved and
+ * evaluated in parallel. The lambda with the highest Pearson correlation of the out-of-fold
+ * predictions is used to fit the final model on all pairs.
+ * <p>
+ * The model is saved as a JSON file. If the system property {@code semeval.ensemble} is set to a
+ * model file, {@link SemEvalTextSimilarity} and {@link BatchScoring} write the ensemble scores to
+ * the file given by {@link Util#getEnsembleOutputFile(File)} after scoring, if the output files
+ * of all the features of the model exist.
+ * <p>
+ * Call arguments: {@code <model file> <directory or glob>}, where the second argument selects
+ * input files as in {@link BatchScoring}, each having a gold standard file and output files. The
+ * number of folds is set by the system property {@code semeval.folds} (default: 10).
+ *
+ * @author Carsten Schnober
+ */
+public class MeasureEnsemble
+{
+    /** the regularization strengths to choose from, relative to the number of pairs */
+    public static final double[] LAMBDAS = { 1e-6, 1e-5, 1e-4, 1e-3, 1e-2, 0.1, 1, 10, 100 };
+    private static final Log LOG = LogFactory.getLog(MeasureEnsemble.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int FOLDS = Integer.getInteger("semeval.folds", 10);
+    private static final long SEED = 0x5eedL;
+
+    private final Retina[] retinas;
+    private final Measure[] measures;
+    private final double[] means;
+    private final double[] scales;
+    private final double[] weights;
+    private final double intercept;
+    private final double lambda;
+    private final double cvPearson;
+    private final int pairs;
+
+    private MeasureEnsemble(Retina[] retinas, Measure[] measures, double[] means, double[] scales,
+            double[] weights, double intercept, double lambda, double cvPearson, int pairs)
+    {
+        this.retinas = retinas;
+        this.measures = measures;
+        this.means = means;
+        this.scales = scales;
+        this.weights = weights;
+        this.intercept = intercept;
+        this.lambda = lambda;
+        this.cvPearson = cvPearson;
+        this.pairs = pairs;
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Call: " + MeasureEnsemble.class.getCanonicalName()
+                    + " <model file> <directory or glob>");
+        }
+        List<File> inputFiles = BatchScoring.findInputFiles(new File(args[1]));
+        if (inputFiles.isEmpty()) {
+            throw new IllegalArgumentException("No input files found: " + args[1]);
+        }
+        MeasureEnsemble ensemble = fit(inputFiles, FOLDS);
+        ensemble.write(new File(args[0]));
+    }
+
+    /**
+     * Fit an ensemble to the output files and gold standard files of input files. All the
+     * {@link Retina} and {@link Measure} combinations with output files for all input files are
+     * used as features.
+     *
+     * @param inputFiles the input files
+     * @param folds      the number of cross-validation folds
+     * @return the fitted {@link MeasureEnsemble}
+     * @throws IOException
+     */
+    public static MeasureEnsemble fit(List<File> inputFiles, int folds)
+            throws IOException
+    {
+        List<Retina> featureRetinas = new ArrayList<>();
+        List<Measure> featureMeasures = new ArrayList<>();
+        for (Retina retina : Retina.values()) {
+            for (Measure measure : Measure.values()) {
+                featureRetinas.add(retina);
+                featureMeasures.add(measure);
+            }
+        }
+        List<ScoreMatrix[]> fileFeatures = new ArrayList<>();
+        List<ScoreMatrix> fileGold = new ArrayList<>();
+        for (File inputFile : inputFiles) {
+            fileGold.add(ScoreMatrix.read(CorrelationReport.getGoldFile(inputFile)));
+            fileFeatures.add(readScores(inputFile, featureRetinas, featureMeasures));
+        }
+
+        /* keep the features with output files for all input files */
+        List<Integer> available = new ArrayList<>();
+        for (int k = 0; k < featureRetinas.size(); k++) {
+            final int feature = k;
+            if (fileFeatures.stream().allMatch(features -> features[feature] != null)) {
+                available.add(k);
+            }
+        }
+        if (available.isEmpty()) {
+            throw new IllegalArgumentException("No output files found for " + inputFiles);
+        }
+        Retina[] retinas = available.stream().map(featureRetinas::get).toArray(Retina[]::new);
+        Measure[] measures = available.stream().map(featureMeasures::get)
+                .toArray(Measure[]::new);
+        for (int f = 0; f < fileFeatures.size(); f++) {
+            ScoreMatrix[] features = fileFeatures.get(f);
+            fileFeatures.set(f, available.stream().map(k -> features[k])
+                    .toArray(ScoreMatrix[]::new));
+        }
+
+        /* collect the feature columns and the gold scores of all complete rows */
+        int n = 0;
+        for (int f = 0; f < fileFeatures.size(); f++) {
+            checkSizes(inputFiles.get(f), fileFeatures.get(f));
+            n += completeRows(fileGold.get(f), fileFeatures.get(f)).cardinality();
+        }
+        int p = retinas.length;
+        double[][] x = new double[p][n];
+        double[] y = new double[n];
+        int row = 0;
+        for (int f = 0; f < fileFeatures.size(); f++) {
+            ScoreMatrix[] features = fileFeatures.get(f);
+            ScoreMatrix gold = fileGold.get(f);
+            BitSet complete = completeRows(gold, features);
+            for (int r = complete.nextSetBit(0); r >= 0; r = complete.nextSetBit(r + 1)) {
+                for (int k = 0; k < p; k++) {
+                    x[k][row] = features[k].get(0, r);
+                }
+                y[row++] = gold.get(0, r);
+            }
+        }
+        LOG.info(String.format("Fitting an ensemble of %d features to %d pairs from %d files.", p,
+                n, inputFiles.size()));
+        if (n < folds) {
+            throw new IllegalArgumentException("Too few pairs for " + folds + " folds: " + n);
+        }
+
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.CORRELATE);
+        try {
+            return fit(retinas, measures, x, y, folds);
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Choose lambda by cross-validation and fit the final model.
+     */
+    private static MeasureEnsemble fit(Retina[] retinas, Measure[] measures, double[][] x,
+            double[] y, int folds)
+    {
+        int n = y.length;
+        int[] fold = new int[n];
+        int[] order = IntStream.range(0, n).toArray();
+        Random random = new Random(SEED);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        for (int i = 0; i < n; i++) {
+            fold[order[i]] = i % folds;
+        }
+
+        Moments[] foldMoments = IntStream.range(0, folds).parallel()
+                .mapToObj(f -> new Moments(x, y, fold, f))
+                .toArray(Moments[]::new);
+        Moments total = Moments.sum(foldMoments);
+
+        /* solve and predict all (lambda, fold) combinations; each writes its own fold's rows */
+        double[][] predictions = new double[LAMBDAS.length][n];
+        IntStream.range(0, LAMBDAS.length * folds).parallel().forEach(task -> {
+            int l = task / folds;
+            int f = task % folds;
+            Model model = total.minus(foldMoments[f]).solve(LAMBDAS[l]);
+            for (int i = 0; i < n; i++) {
+                if (fold[i] == f) {
+                    predictions[l][i] = model.predict(x, i);
+                }
+            }
+        });
+
+        int best = 0;
+        double[] pearson = new double[LAMBDAS.length];
+        for (int l = 0; l < LAMBDAS.length; l++) {
+            pearson[l] = pearson(y, predictions[l]);
+            LOG.info(String.format("lambda %g: cross-validated Pearson %.4f", LAMBDAS[l],
+                    pearson[l]));
+            if (pearson[l] > pearson[best]) {
+                best = l;
+            }
+        }
+        for (int k = 0; k < retinas.length; k++) {
+            LOG.info(String.format("%s %s alone: Pearson %.4f", retinas[k].name().toLowerCase(),
+                    measures[k], pearson(y, x[k])));
+        }
+
+        Model model = total.solve(LAMBDAS[best]);
+        LOG.info(String.format("Chose lambda %g with %d-fold cross-validated Pearson %.4f.",
+                LAMBDAS[best], folds, pearson[best]));
+        return new MeasureEnsemble(retinas, measures, model.means, model.scales, model.weights,
+                model.intercept, LAMBDAS[best], pearson[best], n);
+    }
+
+    /**
+     * Compute the ensemble scores for an input file from its output files.
+     *
+     * @param inputFile the input file
+     * @return a single-column {@link ScoreMatrix} of scores in the range
+     * [{@link Util#MIN_OUT}, {@link Util#MAX_OUT}], missing where a feature is missing; or null if
+     * an output file is missing
+     * @throws IOException
+     */
+    public ScoreMatrix predict(File inputFile)
+            throws IOException
+    {
+        ScoreMatrix[] features = readScores(inputFile, Arrays.asList(retinas),
+                Arrays.asList(measures));
+        if (Arrays.asList(features).contains(null)) {
+            return null;
+        }
+        checkSizes(inputFile, features);
+        int size = features[0].size();
+        ScoreMatrix scores = new ScoreMatrix(1, size);
+        for (int row = 0; row < size; row++) {
+            double score = intercept;
+            for (int k = 0; k < features.length; k++) {
+                if (features[k].isMissing(row)) {
+                    scores.setMissing(row);
+                    break;
+                }
+                score += weights[k] * (features[k].get(0, row) - means[k]) / scales[k];
+            }
+            scores.set(0, row, Math.max(Util.MIN_OUT, Math.min(Util.MAX_OUT, score)));
+        }
+        return scores;
+    }
+
+    /**
+     * Write the ensemble scores for an input file with the model given by
+     * {@link Util#ENSEMBLE_MODEL}, if set. If an output file of a feature is missing, a warning
+     * is logged.
+     *
+     * @param inputFile the input file
+     * @throws IOException
+     */
+    public static void writeOutput(File inputFile)
+            throws IOException
+    {
+        if (Util.ENSEMBLE_MODEL == null) {
+            return;
+        }
+        ScoreMatrix scores = read(new File(Util.ENSEMBLE_MODEL)).predict(inputFile);
+        if (scores == null) {
+            LOG.warn("Not all output files of the ensemble features exist for " + inputFile);
+            return;
+        }
+        File outputFile = Util.getEnsembleOutputFile(inputFile);
+        LOG.info("Writing ensemble output to " + outputFile);
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.WRITE);
+        try {
+            scores.write(0, outputFile);
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Write the model to a JSON file.
+     *
+     * @param file the model file
+     * @throws IOException
+     */
+    public void write(File file)
+            throws IOException
+    {
+        List<Map<String, Object>> features = new ArrayList<>();
+        for (int k = 0; k < retinas.length; k++) {
+            Map<String, Object> feature = new LinkedHashMap<>();
+            feature.put("retina", retinas[k].name());
+            feature.put("measure", measures[k].name());
+            feature.put("mean", means[k]);
+            feature.put("scale", scales[k]);
+            feature.put("weight", weights[k]);
+            features.add(feature);
+        }
+        Map<String, Object> model = new LinkedHashMap<>();
+        model.put("features", features);
+        model.put("intercept", intercept);
+        model.put("lambda", lambda);
+        model.put("cvPearson", cvPearson);
+        model.put("pairs", pairs);
+        MAPPER.copy().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, model);
+        LOG.info("Wrote ensemble model to " + file);
+    }
+
+    /**
+     * Read a model written by {@link #write(File)}.
+     *
+     * @param file the model file
+     * @return the {@link MeasureEnsemble}
+     * @throws IOException
+     */
+    public static MeasureEnsemble read(File file)
+            throws IOException
+    {
+        JsonNode model = MAPPER.readTree(file);
+        JsonNode features = model.get("features");
+        int p = features.size();
+        Retina[] retinas = new Retina[p];
+        Measure[] measures = new Measure[p];
+        double[] means = new double[p];
+        double[] scales = new double[p];
+        double[] weights = new double[p];
+        for (int k = 0; k < p; k++) {
+            JsonNode feature = features.get(k);
+            retinas[k] = Retina.valueOf(feature.get("retina").asText());
+            measures[k] = Measure.valueOf(feature.get("measure").asText());
+            means[k] = feature.get("mean").asDouble();
+            scales[k] = feature.get("scale").asDouble();
+            weights[k] = feature.get("weight").asDouble();
+        }
+        return new MeasureEnsemble(retinas, measures, means, scales, weights,
+                model.get("intercept").asDouble(), model.get("lambda").asDouble(),
+                model.get("cvPearson").asDouble(), model.get("pairs").asInt());
+    }
+
+    public double getCvPearson()
+    {
+        return cvPearson;
+    }
+
+    /**
+     * @return the feature columns of an input file; null for features without output files
+     */
+    private static ScoreMatrix[] readScores(File inputFile, List<Retina> retinas,
+            List<Measure> measures)
+            throws IOException
+    {
+        ScoreMatrix[] features = new ScoreMatrix[retinas.size()];
+        try {
+            IntStream.range(0, features.length).parallel().forEach(k -> {
+                try {
+                    features[k] = CorrelationReport.readScores(inputFile, retinas.get(k),
+                            measures.get(k));
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return features;
+    }
+
+    private static double pearson(double[] x, double[] y)
+    {
+        return ScoreMatrix.pearson(ScoreMatrix.column(x, new BitSet()), 0,
+                ScoreMatrix.column(y, new BitSet()), 0);
+    }
+
+    private static void checkSizes(File inputFile, ScoreMatrix[] features)
+    {
+        for (ScoreMatrix feature : features) {
+            if (feature.size() != features[0].size()) {
+                throw new IllegalStateException("Output files of different lengths for "
+                        + inputFile);
+            }
+        }
+    }
+
+    /**
+     * @return the rows with a gold standard score and all features present
+     */
+    private static BitSet completeRows(ScoreMatrix gold, ScoreMatrix[] features)
+    {
+        BitSet complete = new BitSet();
+        for (int row = 0; row < gold.size(); row++) {
+            boolean present = !gold.isMissing(row);
+            for (int k = 0; k < features.length && present; k++) {
+                present = row < features[k].size() && !features[k].isMissing(row);
+            }
+            complete.set(row, present);
+        }
+        return complete;
+    }
+
+    /**
+     * The sufficient statistics of a set of rows for linear regression: the count, the sums of
+     * the features and the target, and the sums of their cross products.
+     */
+    private static class Moments
+    {
+        private final int p;
+        private long count;
+        private final double[] sumX;
+        private double sumY;
+        private final double[][] sumXX;
+        private final double[] sumXY;
+
+        private Moments(int p)
+        {
+            this.p = p;
+            sumX = new double[p];
+            sumXX = new double[p][p];
+            sumXY = new double[p];
+        }
+
+        /**
+         * Compute the statistics of the rows of one fold.
+         */
+        Moments(double[][] x, double[] y, int[] fold, int f)
+        {
+            this(x.length);
+            for (int i = 0; i < y.length; i++) {
+                if (fold[i] != f) {
+                    continue;
+                }
+                count++;
+                sumY += y[i];
+                for (int a = 0; a < p; a++) {
+                    double xa = x[a][i];
+                    sumX[a] += xa;
+                    sumXY[a] += xa * y[i];
+                    for (int b = a; b < p; b++) {
+                        sumXX[a][b] += xa * x[b][i];
+                    }
+                }
+            }
+        }
+
+        static Moments sum(Moments[] parts)
+        {
+            Moments total = new Moments(parts[0].p);
+            for (Moments part : parts) {
+                total.add(part, 1);
+            }
+            return total;
+        }
+
+        Moments minus(Moments other)
+        {
+            Moments difference = new Moments(p);
+            difference.add(this, 1);
+            difference.add(other, -1);
+            return difference;
+        }
+
+        private void add(Moments other, int sign)
+        {
+            count += sign * other.count;
+            sumY += sign * other.sumY;
+            for (int a = 0; a < p; a++) {
+                sumX[a] += sign * other.sumX[a];
+                sumXY[a] += sign * other.sumXY[a];
+                for (int b = a; b < p; b++) {
+                    sumXX[a][b] += sign * other.sumXX[a][b];
+                }
+            }
+        }
+
+        /**
+         * Solve the ridge regression on the standardized features:
+         * {@code (Z'Z + lambda * count * I) w = Z'(y - mean(y))}.
+         */
+        Model solve(double lambda)
+        {
+            double[] means = new double[p];
+            double[] scales = new double[p];
+            for (int a = 0; a < p; a++) {
+                means[a] = sumX[a] / count;
+            }
+            double[][] covariance = new double[p][p];
+            for (int a = 0; a < p; a++) {
+                for (int b = a; b < p; b++) {
+                    covariance[a][b] = sumXX[a][b] - count * means[a] * means[b];
+                    covariance[b][a] = covariance[a][b];
+                }
+            }
+            for (int a = 0; a < p; a++) {
+                double deviation = Math.sqrt(Math.max(0, covariance[a][a]) / count);
+                scales[a] = deviation > 0 ? deviation : 1;
+            }
+            double meanY = sumY / count;
+            double[][] gram = new double[p][p];
+            double[] rhs = new double[p];
+            for (int a = 0; a < p; a++) {
+                for (int b = 0; b < p; b++) {
+                    gram[a][b] = covariance[a][b] / (scales[a] * scales[b]);
+                }
+                gram[a][a] += lambda * count;
+                rhs[a] = (sumXY[a] - count * means[a] * meanY) / scales[a];
+            }
+            RealMatrix matrix = MatrixUtils.createRealMatrix(gram);
+            double[] weights = new CholeskyDecomposition(matrix).getSolver()
+                    .solve(new ArrayRealVector(rhs, false)).toArray();
+            return new Model(means, scales, weights, meanY);
+        }
+    }
+
+    /**
+     * A fitted linear model on standardized features.
+     */
+    private static class Model
+    {
+        final double[] means;
+        final double[] scales;
+        final double[] weights;
+        final double intercept;
+
+        Model(double[] means, double[] scales, double[] weights, double intercept)
+        {
+            this.means = means;
+            this.scales = scales;
+            this.weights = weights;
+            this.intercept = intercept;
+        }
+
+        double predict(double[][] x, int row)
+        {
+            double prediction = intercept;
+            for (int k = 0; k < weights.length; k++) {
+                prediction += weights[k] * (x[k][row] - means[k]) / scales[k];
+            }
+            return prediction;
+        }
+    }
+}
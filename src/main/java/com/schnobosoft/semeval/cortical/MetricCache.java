@@ -0,0 +1,230 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.rest.model.Metric;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two-tier cache for {@link Metric}s, keyed by a {@link Retina} and a pair of texts.
+ * <p>
+ * The first tier is an in-memory LRU map holding up to {@code capacity} entries. The second tier
+ * stores one file per text pair in a directory named after the retina, so that cached metrics
+ * survive restarts. Texts are normalized by trimming them and collapsing whitespace.
+ *
+ * @author Carsten Schnober
+ */
+public class MetricCache
+{
+    private static final Log LOG = LogFactory.getLog(MetricCache.class);
+
+    private final Retina retina;
+    private final Path directory;
+    private final Map<String, Metric> memory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param retina    the {@link Retina} of all the metrics in this cache
+     * @param directory the base directory for the on-disk tier
+     * @param capacity  the maximum number of entries in the in-memory tier
+     */
+    public MetricCache(Retina retina, File directory, int capacity)
+    {
+        this.retina = retina;
+        this.directory = new File(directory, retina.name().toLowerCase()).toPath();
+        this.memory = Collections.synchronizedMap(new LinkedHashMap<String, Metric>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metric> eldest)
+            {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Normalize a text for use in a cache key.
+     *
+     * @param text a text
+     * @return the trimmed text with all whitespace sequences replaced by a single space
+     */
+    public static String normalize(String text)
+    {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Look up the {@link Metric} for a pair of texts.
+     *
+     * @param text1 the first text
+     * @param text2 the second text
+     * @return the cached {@link Metric} or {@code null} if the pair is not in the cache
+     */
+    public Metric get(String text1, String text2)
+    {
+        String key = key(text1, text2);
+        Metric metric = memory.get(key);
+        if (metric == null) {
+            metric = readFile(key);
+            if (metric == null) {
+                misses.incrementAndGet();
+                RunMetrics.get().recordCacheMiss();
+                return null;
+            }
+            diskHits.incrementAndGet();
+            memory.put(key, metric);
+        }
+        hits.incrementAndGet();
+        RunMetrics.get().recordCacheHit();
+        return metric;
+    }
+
+    /**
+     * Check whether the {@link Metric} for a pair of texts is cached, without counting a hit or a
+     * miss.
+     *
+     * @param text1 the first text
+     * @param text2 the second text
+     * @return true if the pair is in one of the tiers
+     */
+    public boolean contains(String text1, String text2)
+    {
+        String key = key(text1, text2);
+        return memory.containsKey(key) || readFile(key) != null;
+    }
+
+    /**
+     * Store the {@link Metric} for a pair of texts in both tiers.
+     *
+     * @param text1  the first text
+     * @param text2  the second text
+     * @param metric the {@link Metric} for the text pair
+     */
+    public void put(String text1, String text2, Metric metric)
+    {
+        String key = key(text1, text2);
+        memory.put(key, metric);
+        writeFile(key, metric);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Log the number of cache hits and misses.
+     */
+    public void logStatistics()
+    {
+        long total = hits.get() + misses.get();
+        LOG.info(String.format("Metric cache (%s): %d hits (%d from disk), %d misses (%.1f%% hits).",
+                retina.name().toLowerCase(), hits.get(), diskHits.get(), misses.get(),
+                total == 0 ? 0.0 : 100.0 * hits.get() / total));
+    }
+
+    private static String key(String text1, String text2)
+    {
+        return normalize(text1) + "\t" + normalize(text2);
+    }
+
+    private Path getFile(String key)
+    {
+        String hash = sha1(key);
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Metric readFile(String key)
+    {
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() != 2 || !lines.get(0).equals(key)) {
+                return null;    // hash collision or incomplete file
+            }
+            return Util.arrayToMetric(Arrays.stream(lines.get(1).split("\t"))
+                    .mapToDouble(Double::parseDouble)
+                    .toArray());
+        }
+        catch (IOException | IllegalArgumentException e) {
+            LOG.warn("Unable to read cache file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeFile(String key, Metric metric)
+    {
+        Path file = getFile(key);
+        try {
+            Files.createDirectories(file.getParent());
+            StringBuilder values = new StringBuilder();
+            for (double value : Util.metricToArray(metric)) {
+                values.append(values.length() == 0 ? "" : "\t").append(value);
+            }
+            Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(tmpFile, Arrays.asList(key, values), StandardCharsets.UTF_8);
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to write cache file " + file + ": " + e.getMessage());
+        }
+    }
+
+    static String sha1(String key)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
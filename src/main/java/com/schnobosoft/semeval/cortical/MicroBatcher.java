@@ -0,0 +1,223 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import io.cortical.rest.model.Metric;
+import io.cortical.services.Compare;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Combine single text pairs submitted concurrently into {@code compareBulk} requests.
+ * <p>
+ * A dispatcher thread takes the pending pairs from a queue and sends them as one batch when
+ * {@code maxBatchSize} pairs have been collected, or when the first pair of the batch has waited
+ * for {@code maxDelayMillis}. At most {@code maxInFlight} batches are pending at any time; while
+ * all of them are busy, the pairs accumulate in the queue, so that the batches grow with the load.
+ *
+ * @author Carsten Schnober
+ */
+public class MicroBatcher
+{
+    private static final Log LOG = LogFactory.getLog(MicroBatcher.class);
+
+    private final Compare compareApi;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Semaphore inFlight;
+    private final BlockingQueue<PendingPair> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService executor;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong pairs = new AtomicLong();
+
+    private static class PendingPair
+    {
+        private final CompareModels pair;
+        private final CompletableFuture<Metric> result = new CompletableFuture<>();
+
+        private PendingPair(CompareModels pair)
+        {
+            this.pair = pair;
+        }
+    }
+
+    /**
+     * @param compareApi     the {@link Compare} API to send the batches to
+     * @param maxBatchSize   the maximum number of pairs per batch
+     * @param maxDelayMillis the maximum time to wait for more pairs before a batch is sent
+     * @param maxInFlight    the maximum number of concurrent batch requests
+     */
+    public MicroBatcher(Compare compareApi, int maxBatchSize, long maxDelayMillis, int maxInFlight)
+    {
+        if (maxBatchSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid batch size or concurrency: " + maxBatchSize
+                    + ", " + maxInFlight);
+        }
+        this.compareApi = compareApi;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = Executors.newFixedThreadPool(maxInFlight);
+        this.dispatcher = new Thread(this::dispatch, "micro-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Submit a pair for comparison.
+     *
+     * @param pair the text pair
+     * @return a {@link CompletableFuture} that is completed with the {@link Metric} for the pair,
+     * or exceptionally if the batch request fails
+     */
+    public CompletableFuture<Metric> submit(CompareModels pair)
+    {
+        if (!running) {
+            throw new IllegalStateException("Batcher has been closed.");
+        }
+        PendingPair pending = new PendingPair(pair);
+        queue.add(pending);
+        /* the batcher may have been closed and drained concurrently */
+        if (!running && queue.remove(pending)) {
+            fail(Collections.singletonList(pending));
+        }
+        return pending.result;
+    }
+
+    /**
+     * Stop the dispatcher. Pairs that are still queued, and the pairs of a batch that the
+     * dispatcher has collected but not yet sent, are failed. Batches that have been sent already
+     * are completed before the executor terminates.
+     */
+    public void close()
+    {
+        running = false;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingPair> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        fail(remaining);
+        executor.shutdown();
+    }
+
+    public void logStatistics()
+    {
+        long n = batches.get();
+        LOG.info(String.format("Compared %d pairs in %d batches (%.1f pairs per batch).",
+                pairs.get(), n, n == 0 ? 0.0 : (double) pairs.get() / n));
+    }
+
+    private void dispatch()
+    {
+        List<PendingPair> batch = Collections.emptyList();
+        try {
+            while (running) {
+                batch = new ArrayList<>(maxBatchSize);
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    PendingPair next = queue.poll(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                inFlight.acquire();
+                /* pairs that have arrived while waiting for a free slot join the batch */
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                List<PendingPair> sent = batch;
+                batch = Collections.emptyList();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            send(sent);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    fail(sent);
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            /* the batch in hand has not been sent */
+            fail(batch);
+        }
+    }
+
+    private static void fail(List<PendingPair> pending)
+    {
+        pending.forEach(p -> p.result.completeExceptionally(
+                new IllegalStateException("Batcher has been closed.")));
+    }
+
+    private void send(List<PendingPair> batch)
+    {
+        CompareModels[] models = batch.stream()
+                .map(pending -> pending.pair)
+                .toArray(CompareModels[]::new);
+        try {
+            Metric[] metrics = compareApi.compareBulk(models);
+            if (metrics.length != models.length) {
+                throw new IllegalStateException(
+                        "Expected " + models.length + " results, got " + metrics.length + ".");
+            }
+            batches.incrementAndGet();
+            pairs.addAndGet(models.length);
+            RunMetrics.get().addPairs(models.length);
+            for (int i = 0; i < metrics.length; i++) {
+                batch.get(i).result.complete(metrics[i]);
+            }
+        }
+        catch (Exception e) {
+            LOG.warn("Batch of " + models.length + " pairs failed: " + e);
+            batch.forEach(pending -> pending.result.completeExceptionally(e));
+        }
+    }
+}
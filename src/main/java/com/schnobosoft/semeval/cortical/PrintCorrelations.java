@@ -16,17 +16,15 @@
  */
 package com.schnobosoft.semeval.cortical;
 
+import com.schnobosoft.semeval.cortical.CorrelationReport.Correlations;
+import com.schnobosoft.semeval.cortical.RunMetrics.Stage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.schnobosoft.semeval.cortical.Util.*;
 
@@ -61,6 +59,8 @@ public class PrintCorrelations
                     + " <input file> [<syn>]");
         }
         LOG.info("Using Retina " + retinaName.name().toLowerCase());
+        RunMetrics.get().register();
+        RunMetrics.get().writeReportOnExit(Util.getMetricsFile(inputFile, "correlations"));
         //        printCorrelations(inputFile);
         saveCorrelations(inputFile);
     }
@@ -72,10 +72,10 @@ public class PrintCorrelations
 
         File gsFile = new File(inputFile.getCanonicalPath()
                 .replace(INPUT_FILE_PREFIX, GS_FILE_PREFIX));
-        List<Optional> gs = readScoresFile(gsFile);
+        ScoreMatrix gs = ScoreMatrix.read(gsFile);
 
         for (Measure correlationMeasure : Measure.values()) {
-            List<Optional> scores = readScoresFile(
+            ScoreMatrix scores = ScoreMatrix.read(
                     getOutputFile(inputFile, correlationMeasure, retinaName));
 
             double pearson = getPearson(gs, scores);
@@ -84,54 +84,55 @@ public class PrintCorrelations
         }
     }
 
-    private static void saveCorrelations(File inputFile)
+    /**
+     * Compute the correlations between the gold standard and all existing output files for an
+     * input file, and write them to a file named after the input file with the suffix
+     * {@link Util#CORRELATIONS_FILE_SUFFIX}, compressed like the input file.
+     *
+     * @param inputFile the input file
+     * @throws IOException
+     */
+    static void saveCorrelations(File inputFile)
             throws IOException
     {
         assert inputFile.getName().startsWith(INPUT_FILE_PREFIX);
-        File gsFile = new File(inputFile.getCanonicalPath()
-                .replace(INPUT_FILE_PREFIX, GS_FILE_PREFIX));
-        List<Optional> gs = readScoresFile(gsFile);
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.CORRELATE);
+        try {
+            ScoreMatrix gs = ScoreMatrix.read(CorrelationReport.getGoldFile(inputFile));
 
-        File targetFile = new File(inputFile.getCanonicalPath() + ".cortical.scores");
-        BufferedWriter writer = new BufferedWriter(new FileWriter(targetFile));
-        LOG.info("Writing scores to " + targetFile);
+            File targetFile = CompressedFiles.withSuffix(inputFile.getCanonicalFile(),
+                    CORRELATIONS_FILE_SUFFIX);
+            List<Correlations> correlations = CorrelationReport.compute(inputFile, gs,
+                    ForkJoinPool.commonPool());
+            CorrelationReport.write(correlations, targetFile);
 
-        for (Retina retinaName : Retina.values()) {
-            for (Measure correlationMeasure : Measure.values()) {
-                File outputFile = getOutputFile(inputFile, correlationMeasure, retinaName);
-                if (outputFile.exists()) {
-                    List<Optional> scores = readScoresFile(outputFile);
-                    double pearson = getPearson(gs, scores);
-                    writer.write(String.format("Pearson correlation (%s, %s):\t%.4f%n",
-                            retinaName.name().toLowerCase(), correlationMeasure, pearson));
-                }
-                else {
-                    LOG.warn("Output file not found: " + outputFile);
-                }
+            if (BOOTSTRAP_REPLICATES > 0 && !correlations.isEmpty()) {
+                BootstrapCorrelations.compute(gs, correlations, BOOTSTRAP_REPLICATES,
+                        ForkJoinPool.commonPool())
+                        .append(targetFile);
             }
         }
-        writer.close();
+        finally {
+            timer.stop();
+        }
     }
 
-    private static double getPearson(List<Optional> gold, List<Optional> scores)
+    /**
+     * Compute the Pearson correlation between the gold standard and the scores, ignoring lines
+     * where either value is missing.
+     *
+     * @param gold   the gold standard scores
+     * @param scores the scores to evaluate
+     * @return the Pearson correlation coefficient
+     */
+    static double getPearson(ScoreMatrix gold, ScoreMatrix scores)
     {
         assert gold.size() == scores.size();
 
-        List<Double> gsList = new ArrayList<>(gold.size());
-        List<Double> sList = new ArrayList<>(scores.size());
-
-        for (int i = 0; i < gold.size(); i++) {
-            Optional goldOpt = gold.get(i);
-            Optional scoreOpt = scores.get(i);
-            if (goldOpt.isPresent() && scoreOpt.isPresent()) {
-                gsList.add((Double) goldOpt.get());
-                sList.add((Double) scoreOpt.get());
-            }
-            else {
-                LOG.warn("No score found in line " + i + ".");
-            }
+        if (gold.missingCount() > 0 || scores.missingCount() > 0) {
+            LOG.warn("Missing values: " + gold.missingCount() + " in gold standard, "
+                    + scores.missingCount() + " in scores.");
         }
-        return new PearsonsCorrelation()
-                .correlation(listToArray(gsList), listToArray(sList));
+        return ScoreMatrix.pearson(gold, 0, scores, 0);
     }
 }
@@ -0,0 +1,257 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import io.cortical.rest.model.Metric;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only journal of the {@link Metric}s that have been retrieved for the unique pairs of
+ * an input file, so that an interrupted run can be resumed without sending the completed pairs to
+ * the API again.
+ * <p>
+ * The file consists of a header, holding the magic bytes {@code SEMJOURN}, an {@code int} format
+ * version, the number of unique pairs and a checksum of the unique pairs, followed by records of
+ * an {@code int} unique pair index and the values of the {@link Metric} (see
+ * {@link Util#metricToArray(Metric)}). Records are appended in batches, typically one chunk of
+ * pairs, and each batch is synced to disk. An incomplete record at the end of the file, left by a
+ * crash during a write, is discarded when the journal is opened. If the header does not match the
+ * input, the journal is started anew.
+ *
+ * @author Carsten Schnober
+ */
+public class ProgressJournal
+        implements Closeable
+{
+    private static final Log LOG = LogFactory.getLog(ProgressJournal.class);
+    private static final byte[] MAGIC = "SEMJOURN".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 8;
+    private static final int VALUES = Util.metricToArray(new Metric()).length;
+    private static final int RECORD_SIZE = 4 + 8 * VALUES;
+
+    private final File file;
+    private final Metric[] results;
+    private final int completed;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+
+    private ProgressJournal(File file, Metric[] results, int completed, boolean append)
+            throws IOException
+    {
+        this.file = file;
+        this.results = results;
+        this.completed = completed;
+        this.fileOut = new FileOutputStream(file, append);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * Open the journal for the unique pairs of an input file. If the file exists and matches the
+     * pairs, the completed results are read from it and new results are appended. Otherwise, a new
+     * journal is created.
+     *
+     * @param file        the journal file
+     * @param uniquePairs the unique text pairs, in the order in which they are indexed
+     * @return a {@link ProgressJournal}
+     * @throws IOException
+     */
+    public static ProgressJournal open(File file, List<Pair<String, String>> uniquePairs)
+            throws IOException
+    {
+        long checksum = checksum(uniquePairs);
+        Metric[] results = new Metric[uniquePairs.size()];
+        if (file.exists()) {
+            int completed = read(file, uniquePairs.size(), checksum, results);
+            if (completed >= 0) {
+                LOG.info(String.format("Resuming from journal %s: %d of %d pairs completed.", file,
+                        completed, results.length));
+                return new ProgressJournal(file, results, completed, true);
+            }
+            LOG.warn("Journal " + file + " does not match the input, starting a new journal.");
+            Arrays.fill(results, null);
+        }
+        ProgressJournal journal = new ProgressJournal(file, results, 0, false);
+        journal.writeHeader(results.length, checksum);
+        return journal;
+    }
+
+    /**
+     * @return the results read from the journal, indexed by unique pair; pairs that have not been
+     * completed are null
+     */
+    public Metric[] getResults()
+    {
+        return results;
+    }
+
+    /**
+     * @return the number of pairs read from the journal when it was opened
+     */
+    public int getCompleted()
+    {
+        return completed;
+    }
+
+    /**
+     * Append a batch of results to the journal, and sync it to disk.
+     *
+     * @param indexes the unique pair indexes
+     * @param metrics the {@link Metric}s for the pairs, in the same order as {@code indexes}
+     * @throws IOException
+     */
+    public synchronized void append(int[] indexes, Metric[] metrics)
+            throws IOException
+    {
+        if (indexes.length != metrics.length) {
+            throw new IllegalArgumentException("Expected " + indexes.length + " metrics, got "
+                    + metrics.length + ".");
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            out.writeInt(indexes[i]);
+            for (double value : Util.metricToArray(metrics[i])) {
+                out.writeDouble(value);
+            }
+        }
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        out.close();
+    }
+
+    /**
+     * Close and delete the journal, after the output files have been written.
+     *
+     * @throws IOException
+     */
+    public void delete()
+            throws IOException
+    {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Could not delete journal " + file);
+        }
+    }
+
+    private void writeHeader(int pairs, long checksum)
+            throws IOException
+    {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(pairs);
+        out.writeLong(checksum);
+        out.flush();
+    }
+
+    /**
+     * Read the records of a journal file into {@code results}, and truncate an incomplete record
+     * at the end of the file.
+     *
+     * @return the number of completed pairs, or -1 if the header does not match
+     */
+    private static int read(File file, int pairs, long checksum, Metric[] results)
+            throws IOException
+    {
+        long length = file.length();
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        int completed = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION || in.readInt() != pairs
+                    || in.readLong() != checksum) {
+                return -1;
+            }
+            long records = (length - HEADER_SIZE) / RECORD_SIZE;
+            double[] values = new double[VALUES];
+            for (long r = 0; r < records; r++) {
+                int index = in.readInt();
+                for (int i = 0; i < VALUES; i++) {
+                    values[i] = in.readDouble();
+                }
+                if (index < 0 || index >= pairs) {
+                    throw new IOException("Invalid pair index in journal " + file + ": " + index);
+                }
+                if (results[index] == null) {
+                    completed++;
+                }
+                results[index] = Util.arrayToMetric(values);
+            }
+        }
+        catch (EOFException e) {
+            throw new IOException("Unexpected end of journal " + file, e);
+        }
+
+        long validLength = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        if (validLength < length) {
+            LOG.warn("Discarding an incomplete record at the end of journal " + file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Compute a checksum of the unique pairs, so that a journal is not applied to a different
+     * input.
+     */
+    private static long checksum(List<Pair<String, String>> uniquePairs)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Pair<String, String> pair : uniquePairs) {
+                digest.update(pair.getFirst().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\t');
+                digest.update(pair.getSecond().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            return ByteBuffer.wrap(digest.digest()).getLong();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.cortical.rest.model.Fingerprint;
+import io.cortical.rest.model.Metric;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP server that mimics the Retina API endpoints used by this project: {@code compare},
+ * {@code compare/bulk}, {@code text}, {@code text/bulk} and {@code text/keywords}.
+ * <p>
+ * Fingerprints are derived deterministically from the tokens of a text, so that texts sharing
+ * tokens have overlapping fingerprints; metrics are computed from them by
+ * {@link LocalCompare#compare(FingerprintBits, FingerprintBits)}. As those formulas have not been
+ * verified, the metrics only serve to exercise the request handling; scores and rankings computed
+ * with the stand-in say nothing about the API. The server can add a fixed
+ * latency to each request, fail a share of requests with status 500, and reject requests with
+ * status 429 when a request rate limit is exceeded.
+ * <p>
+ * Call arguments: {@code [<port>]}; the latency (ms), the error rate and the rate limit
+ * (requests/s, 0 for none) are set by the system properties {@code standin.latency},
+ * {@code standin.errorRate} and {@code standin.rateLimit}.
+ *
+ * @author Carsten Schnober
+ */
+public class RetinaStandIn
+{
+    public static final int DEFAULT_PORT = 8088;
+    private static final Log LOG = LogFactory.getLog(RetinaStandIn.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int POSITIONS_PER_TOKEN = 24;
+    private static final int MAX_KEYWORDS = 10;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double errorRate;
+    private final double rateLimit;
+    private final AtomicLong requests = new AtomicLong();
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param port          the port to listen on
+     * @param latencyMillis the latency to add to each request
+     * @param errorRate     the share of requests that fail with status 500
+     * @param rateLimit     the maximum number of requests per second; 0 for no limit
+     * @throws IOException if the server cannot be created
+     */
+    public RetinaStandIn(int port, long latencyMillis, double errorRate, double rateLimit)
+            throws IOException
+    {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.rateLimit = rateLimit;
+        this.tokens = rateLimit;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/rest/compare/bulk", exchange -> handle(exchange, this::compareBulk));
+        server.createContext("/rest/compare", exchange -> handle(exchange, this::compare));
+        server.createContext("/rest/text/bulk", exchange -> handle(exchange, this::fingerprintBulk));
+        server.createContext("/rest/text/keywords", exchange -> handle(exchange, this::keywords));
+        server.createContext("/rest/text", exchange -> handle(exchange, this::fingerprints));
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        fromSystemProperties(port).start();
+    }
+
+    /**
+     * Create a stand-in server configured by the {@code standin.*} system properties.
+     *
+     * @param port the port to listen on
+     * @return a new (not yet started) {@link RetinaStandIn}
+     * @throws IOException if the server cannot be created
+     */
+    public static RetinaStandIn fromSystemProperties(int port)
+            throws IOException
+    {
+        return new RetinaStandIn(port, Long.getLong("standin.latency", 50),
+                Double.parseDouble(System.getProperty("standin.errorRate", "0")),
+                Double.parseDouble(System.getProperty("standin.rateLimit", "0")));
+    }
+
+    public void start()
+    {
+        server.start();
+        LOG.info(String.format("Retina stand-in listening on %s (latency %d ms, error rate %.3f, "
+                        + "rate limit %.1f/s).", getHost(), latencyMillis, errorRate, rateLimit));
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+        LOG.info("Retina stand-in stopped after " + requests.get() + " requests.");
+    }
+
+    /**
+     * @return the host and port of this server, as accepted by {@link Util#getApi}
+     */
+    public String getHost()
+    {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Compute the synthetic fingerprint for a text: each lower-cased token contributes
+     * {@link #POSITIONS_PER_TOKEN} positions around a position derived from the token.
+     *
+     * @param text a text
+     * @return the synthetic fingerprint
+     */
+    public static FingerprintBits fingerprint(String text)
+    {
+        Set<Integer> positions = new LinkedHashSet<>();
+        for (String token : tokenize(text)) {
+            Random random = new Random(token.hashCode());
+            int center = random.nextInt(FingerprintBits.SIZE);
+            for (int i = 0; i < POSITIONS_PER_TOKEN; i++) {
+                int row = (center / 128 + random.nextInt(9) - 4 + 128) % 128;
+                int column = (center % 128 + random.nextInt(9) - 4 + 128) % 128;
+                positions.add(row * 128 + column);
+            }
+        }
+        return new FingerprintBits(positions.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private interface Handler
+    {
+        Object handle(String body)
+                throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler)
+            throws IOException
+    {
+        requests.incrementAndGet();
+        try {
+            String body = read(exchange.getRequestBody());
+            if (!acquire()) {
+                respond(exchange, 429, "{\"error\":\"rate limit exceeded\"}");
+                return;
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                respond(exchange, 500, "{\"error\":\"synthetic failure\"}");
+                return;
+            }
+            respond(exchange, 200, MAPPER.writeValueAsString(handler.handle(body)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"interrupted\"}");
+        }
+        catch (IOException | RuntimeException e) {
+            respond(exchange, 400, MAPPER.writeValueAsString(String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * Take a token from the rate limiting bucket.
+     *
+     * @return false if the rate limit is exceeded
+     */
+    private synchronized boolean acquire()
+    {
+        if (rateLimit <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(rateLimit, tokens + (now - lastRefill) / 1e9 * rateLimit);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private Object compare(String body)
+            throws IOException
+    {
+        JsonNode models = MAPPER.readTree(body);
+        return metric(models.get(0), models.get(1));
+    }
+
+    private Object compareBulk(String body)
+            throws IOException
+    {
+        List<Metric> metrics = new ArrayList<>();
+        for (JsonNode pair : MAPPER.readTree(body)) {
+            metrics.add(metric(pair.get(0), pair.get(1)));
+        }
+        return metrics;
+    }
+
+    private Object fingerprints(String body)
+    {
+        List<Fingerprint> fingerprints = new ArrayList<>();
+        fingerprints.add(new Fingerprint(fingerprint(body).getPositions()));
+        return fingerprints;
+    }
+
+    private Object fingerprintBulk(String body)
+            throws IOException
+    {
+        List<Fingerprint> fingerprints = new ArrayList<>();
+        for (JsonNode model : MAPPER.readTree(body)) {
+            fingerprints.add(new Fingerprint(fingerprint(model).getPositions()));
+        }
+        return fingerprints;
+    }
+
+    private Object keywords(String body)
+    {
+        List<String> keywords = new ArrayList<>();
+        for (String token : tokenize(body)) {
+            if (token.length() > 3 && !keywords.contains(token) && keywords.size() < MAX_KEYWORDS) {
+                keywords.add(token);
+            }
+        }
+        return keywords;
+    }
+
+    /**
+     * Compute a metric for two models. The weighted scoring is not defined locally; the stand-in
+     * returns the overlap relative to the smaller fingerprint instead.
+     */
+    private static Metric metric(JsonNode model1, JsonNode model2)
+    {
+        double[] values = Util.metricToArray(
+                LocalCompare.compare(fingerprint(model1), fingerprint(model2)));
+        values[8] = 100 * values[3] / Math.max(1, Math.min(values[6], values[7]));
+        return Util.arrayToMetric(values);
+    }
+
+    private static FingerprintBits fingerprint(JsonNode model)
+    {
+        if (model.has("positions")) {
+            int[] positions = new int[model.get("positions").size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = model.get("positions").get(i).asInt();
+            }
+            return new FingerprintBits(positions);
+        }
+        else if (model.has("text")) {
+            return fingerprint(model.get("text").asText());
+        }
+        else if (model.has("term")) {
+            return fingerprint(model.get("term").asText());
+        }
+        throw new IllegalArgumentException("Unsupported model: " + model);
+    }
+
+    private static List<String> tokenize(String text)
+    {
+        List<String> tokens = new ArrayList<>();
+        for (String token : text.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static String read(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters for the current run: the time spent in each {@link Stage}, a histogram of
+ * API request latencies, and counters for pairs, bytes sent, cache hits and deduplication.
+ * <p>
+ * There is a single instance per process ({@link #get()}), which is updated by the API wrappers
+ * and the main classes. It is exposed as an MXBean named {@link #OBJECT_NAME} while running, and
+ * written as a JSON report by {@link #writeReport(File)}.
+ *
+ * @author Carsten Schnober
+ */
+public class RunMetrics
+        implements RunMetricsMXBean
+{
+    public static final String OBJECT_NAME = "com.schnobosoft.semeval.cortical:type=RunMetrics";
+    private static final Log LOG = LogFactory.getLog(RunMetrics.class);
+    private static final RunMetrics INSTANCE = new RunMetrics();
+
+    /**
+     * The stages of a run.
+     */
+    public enum Stage
+    {
+        READ_INPUT, COMPARE, SCALE, WRITE, CORRELATE
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Stage, LongAdder> stageNanos = new EnumMap<>(Stage.class);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder apiFailures = new LongAdder();
+    private final LongAdder apiPairRequests = new LongAdder();
+    private final LongAdder apiPairs = new LongAdder();
+    private final LongAdder apiTextRequests = new LongAdder();
+    private final LongAdder apiTexts = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder inputPairs = new LongAdder();
+    private final LongAdder uniquePairs = new LongAdder();
+
+    private RunMetrics()
+    {
+        for (Stage stage : Stage.values()) {
+            stageNanos.put(stage, new LongAdder());
+        }
+    }
+
+    public static RunMetrics get()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * A running timer for a stage, to be stopped in a {@code finally} block. The elapsed time is
+     * added to the stage when the timer is stopped.
+     */
+    public static class Timer
+    {
+        private final LongAdder target;
+        private final long start = System.nanoTime();
+
+        private Timer(LongAdder target)
+        {
+            this.target = target;
+        }
+
+        public void stop()
+        {
+            target.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @param stage the {@link Stage}
+     * @return a {@link Timer} that adds the elapsed time to the stage when stopped
+     */
+    public Timer time(Stage stage)
+    {
+        return new Timer(stageNanos.get(stage));
+    }
+
+    /**
+     * Record a successful API request.
+     *
+     * @param nanos the request latency in nanoseconds
+     */
+    public void recordRequest(long nanos)
+    {
+        latencies.record(nanos);
+    }
+
+    public void recordFailure()
+    {
+        apiFailures.increment();
+    }
+
+    /**
+     * @param n the number of pairs that have been scored, including cache hits
+     */
+    public void addPairs(long n)
+    {
+        pairs.add(n);
+    }
+
+    /**
+     * Record a request to the compare API.
+     *
+     * @param n     the number of pairs that have been sent in the request
+     * @param bytes the number of text bytes (UTF-8) that have been sent with the pairs
+     */
+    public void addApiPairs(long n, long bytes)
+    {
+        apiPairRequests.increment();
+        apiPairs.add(n);
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Record a request to the text API, e.g. for fingerprints or keywords.
+     *
+     * @param n     the number of texts that have been sent in the request
+     * @param bytes the number of text bytes (UTF-8) that have been sent
+     */
+    public void addApiTexts(long n, long bytes)
+    {
+        apiTextRequests.increment();
+        apiTexts.add(n);
+        bytesSent.add(bytes);
+    }
+
+    public void recordCacheHit()
+    {
+        cacheHits.increment();
+    }
+
+    public void recordCacheMiss()
+    {
+        cacheMisses.increment();
+    }
+
+    /**
+     * @param input  the number of input pairs
+     * @param unique the number of unique pairs after deduplication
+     */
+    public void addDeduplication(long input, long unique)
+    {
+        inputPairs.add(input);
+        uniquePairs.add(unique);
+    }
+
+    /**
+     * Register this instance with the platform MBean server. Failures are logged and ignored.
+     */
+    public void register()
+    {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        }
+        catch (JMException e) {
+            LOG.warn("Could not register run metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the report to a file when the JVM exits, also if it exits by an exception.
+     *
+     * @param reportFile the report file
+     */
+    public void writeReportOnExit(File reportFile)
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeReport(reportFile);
+            }
+            catch (IOException e) {
+                System.err.println("Could not write run metrics to " + reportFile + ": " + e);
+            }
+        }));
+    }
+
+    /**
+     * Write all metrics to a JSON file.
+     *
+     * @param reportFile the report file
+     * @throws IOException
+     */
+    public void writeReport(File reportFile)
+            throws IOException
+    {
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(reportFile, toMap());
+    }
+
+    /**
+     * @return all metrics as nested maps, in the structure of the JSON report
+     */
+    public Map<String, Object> toMap()
+    {
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("count", latencies.getCount());
+        latency.put("mean", getLatencyMeanMillis());
+        latency.put("p50", getLatencyP50Millis());
+        latency.put("p95", getLatencyP95Millis());
+        latency.put("p99", getLatencyP99Millis());
+        latency.put("max", getLatencyMaxMillis());
+
+        Map<String, Object> counters = new LinkedHashMap<>();
+        counters.put("pairs", getPairs());
+        counters.put("pairsPerSecond", getPairsPerSecond());
+        counters.put("apiRequests", getApiRequests());
+        counters.put("apiFailures", getApiFailures());
+        counters.put("apiPairRequests", getApiPairRequests());
+        counters.put("apiPairs", getApiPairs());
+        counters.put("apiTextRequests", getApiTextRequests());
+        counters.put("apiTexts", getApiTexts());
+        counters.put("bytesSent", getBytesSent());
+        counters.put("cacheHits", getCacheHits());
+        counters.put("cacheMisses", getCacheMisses());
+        counters.put("inputPairs", getInputPairs());
+        counters.put("uniquePairs", getUniquePairs());
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("elapsedMillis", getElapsedMillis());
+        report.put("stageMillis", getStageMillis());
+        report.put("apiLatencyMillis", latency);
+        report.put("counters", counters);
+        return report;
+    }
+
+    @Override
+    public long getElapsedMillis()
+    {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    @Override
+    public Map<String, Double> getStageMillis()
+    {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        stageNanos.forEach((stage, nanos) -> millis.put(stage.name(), nanos.sum() / 1e6));
+        return millis;
+    }
+
+    @Override
+    public long getPairs()
+    {
+        return pairs.sum();
+    }
+
+    /**
+     * @return the number of scored pairs per second spent in the {@link Stage#COMPARE} stage
+     */
+    @Override
+    public double getPairsPerSecond()
+    {
+        long nanos = stageNanos.get(Stage.COMPARE).sum();
+        return nanos == 0 ? 0 : pairs.sum() / (nanos / 1e9);
+    }
+
+    @Override
+    public long getApiRequests()
+    {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getApiFailures()
+    {
+        return apiFailures.sum();
+    }
+
+    @Override
+    public long getApiPairRequests()
+    {
+        return apiPairRequests.sum();
+    }
+
+    @Override
+    public long getApiPairs()
+    {
+        return apiPairs.sum();
+    }
+
+    @Override
+    public long getApiTextRequests()
+    {
+        return apiTextRequests.sum();
+    }
+
+    @Override
+    public long getApiTexts()
+    {
+        return apiTexts.sum();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses()
+    {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getInputPairs()
+    {
+        return inputPairs.sum();
+    }
+
+    @Override
+    public long getUniquePairs()
+    {
+        return uniquePairs.sum();
+    }
+
+    @Override
+    public double getLatencyMeanMillis()
+    {
+        return latencies.getMeanMillis();
+    }
+
+    @Override
+    public double getLatencyP50Millis()
+    {
+        return latencies.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getLatencyP95Millis()
+    {
+        return latencies.getPercentileMillis(95);
+    }
+
+    @Override
+    public double getLatencyP99Millis()
+    {
+        return latencies.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getLatencyMaxMillis()
+    {
+        return latencies.getMaxMillis();
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link RunMetrics} of the running process.
+ *
+ * @author Carsten Schnober
+ */
+public interface RunMetricsMXBean
+{
+    long getElapsedMillis();
+
+    Map<String, Double> getStageMillis();
+
+    long getPairs();
+
+    double getPairsPerSecond();
+
+    long getApiRequests();
+
+    long getApiFailures();
+
+    long getApiPairRequests();
+
+    long getApiPairs();
+
+    long getApiTextRequests();
+
+    long getApiTexts();
+
+    long getBytesSent();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getInputPairs();
+
+    long getUniquePairs();
+
+    double getLatencyMeanMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP95Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyMaxMillis();
+}
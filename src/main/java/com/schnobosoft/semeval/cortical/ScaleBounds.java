@@ -0,0 +1,142 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The observed range of the raw (unscaled) values of each {@link Measure} in a run.
+ * <p>
+ * Each run writes its ranges to {@link Util#getBoundsFile(File, Util.Retina)}. If the system
+ * property {@code semeval.scaleBounds} points to such a file, the ranges in that file are used by
+ * {@link Util#getScaleBounds(Measure, double, double)} instead of the ranges of the data at hand,
+ * so that shards scored separately are scaled identically. Values outside the frozen range are
+ * scaled to values outside [{@link Util#MIN_OUT}, {@link Util#MAX_OUT}].
+ *
+ * @author Carsten Schnober
+ */
+public class ScaleBounds
+{
+    private static final Log LOG = LogFactory.getLog(ScaleBounds.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static ScaleBounds frozen;
+
+    private final Map<Measure, double[]> ranges = new EnumMap<>(Measure.class);
+
+    /**
+     * Extend the range of a measure to include the given range.
+     *
+     * @param measure the {@link Measure}
+     * @param min     the minimum raw value
+     * @param max     the maximum raw value
+     */
+    public synchronized void update(Measure measure, double min, double max)
+    {
+        if (min > max) {
+            return;     // no values
+        }
+        double[] range = ranges.get(measure);
+        if (range == null) {
+            ranges.put(measure, new double[] { min, max });
+        }
+        else {
+            range[0] = Math.min(range[0], min);
+            range[1] = Math.max(range[1], max);
+        }
+    }
+
+    /**
+     * @param measure the {@link Measure}
+     * @return the minimum and maximum raw value of the measure, or {@code null} if unknown
+     */
+    public synchronized double[] getRange(Measure measure)
+    {
+        double[] range = ranges.get(measure);
+        return range == null ? null : range.clone();
+    }
+
+    /**
+     * Get the frozen ranges given by the system property {@code semeval.scaleBounds}.
+     *
+     * @return the frozen {@link ScaleBounds}, or {@code null} if the property is not set
+     */
+    public static synchronized ScaleBounds frozen()
+    {
+        if (frozen == null && Util.SCALE_BOUNDS_FILE != null) {
+            File file = new File(Util.SCALE_BOUNDS_FILE);
+            try {
+                frozen = read(file);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Unable to read scale bounds from " + file, e);
+            }
+            LOG.info("Using frozen scale bounds from " + file + ": " + frozen.ranges.keySet());
+        }
+        return frozen;
+    }
+
+    /**
+     * Write the ranges to a JSON file.
+     *
+     * @param file the output file
+     * @throws IOException
+     */
+    public synchronized void write(File file)
+            throws IOException
+    {
+        ObjectNode root = MAPPER.createObjectNode();
+        ranges.forEach((measure, range) -> root.putObject(measure.name())
+                .put("min", range[0])
+                .put("max", range[1]));
+        MAPPER.copy().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, root);
+        LOG.info("Wrote scale bounds to " + file);
+    }
+
+    /**
+     * Read ranges written by {@link #write(File)}.
+     *
+     * @param file the bounds file
+     * @return the {@link ScaleBounds}
+     * @throws IOException
+     */
+    public static ScaleBounds read(File file)
+            throws IOException
+    {
+        ScaleBounds bounds = new ScaleBounds();
+        JsonNode root = MAPPER.readTree(file);
+        Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            bounds.update(Measure.valueOf(field.getKey()), field.getValue().get("min").asDouble(),
+                    field.getValue().get("max").asDouble());
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import io.cortical.rest.model.Metric;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A matrix of primitive scores with one column per measure and one row per text pair, and a
+ * bitmask marking rows with missing values.
+ * <p>
+ * Extraction from {@link Metric}s, scaling, writing and correlation all operate on the primitive
+ * arrays directly, without boxing or intermediate copies.
+ *
+ * @author Carsten Schnober
+ */
+public class ScoreMatrix
+{
+    private static final Log LOG = LogFactory.getLog(ScoreMatrix.class);
+
+    private final double[][] values;
+    private final BitSet missing;
+    private final int size;
+
+    /**
+     * Create an empty matrix.
+     *
+     * @param columns the number of columns
+     * @param size    the number of rows
+     */
+    public ScoreMatrix(int columns, int size)
+    {
+        this(new double[columns][size], new BitSet(size), size);
+    }
+
+    private ScoreMatrix(double[][] values, BitSet missing, int size)
+    {
+        this.values = values;
+        this.missing = missing;
+        this.size = size;
+    }
+
+    /**
+     * Create a single-column matrix from existing arrays.
+     *
+     * @param values  the scores; the array is not copied
+     * @param missing the rows with missing values; the set is not copied
+     * @return a new {@link ScoreMatrix}
+     */
+    public static ScoreMatrix column(double[] values, BitSet missing)
+    {
+        return new ScoreMatrix(new double[][] { values }, missing, values.length);
+    }
+
+    /**
+     * Extract the scores for all {@link Measure}s from an array of {@link Metric}s. The column
+     * index of each measure is its ordinal. Missing metrics ({@code null}) are marked as missing.
+     *
+     * @param metrics an array of {@link Metric}s
+     * @return a new {@link ScoreMatrix} with one row per metric
+     */
+    public static ScoreMatrix fromMetrics(Metric[] metrics)
+    {
+        Measure[] measures = Measure.values();
+        ScoreMatrix matrix = new ScoreMatrix(measures.length, metrics.length);
+        for (int row = 0; row < metrics.length; row++) {
+            if (metrics[row] == null) {
+                matrix.missing.set(row);
+                continue;
+            }
+            for (Measure measure : measures) {
+                matrix.values[measure.ordinal()][row] = Util.getSimilarity(metrics[row], measure);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Read a file that contains one score per line, as a SemEval gold {@code .gs} file or an
+     * output file. Empty lines are read as missing values.
+     *
+     * @param scoresFile the scores file to read
+     * @return a {@link ScoreMatrix} with a single column
+     * @throws IOException
+     */
+    public static ScoreMatrix read(File scoresFile)
+            throws IOException
+    {
+        if (!scoresFile.getName().startsWith(Util.COMMON_PREFIX)) {
+            throw new IllegalArgumentException(scoresFile + " does not match expected pattern.");
+        }
+        LOG.info("Reading scores file " + scoresFile);
+
+        double[] column = new double[1024];
+        BitSet missing = new BitSet();
+        int size = 0;
+        try (BufferedReader reader = CompressedFiles.newReader(scoresFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (size == column.length) {
+                    column = Arrays.copyOf(column, size * 2);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    missing.set(size);
+                }
+                else {
+                    column[size] = Double.parseDouble(line);
+                }
+                size++;
+            }
+        }
+        return new ScoreMatrix(new double[][] { Arrays.copyOf(column, size) }, missing, size);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int columns()
+    {
+        return values.length;
+    }
+
+    public double get(int column, int row)
+    {
+        return values[column][row];
+    }
+
+    public void set(int column, int row, double value)
+    {
+        values[column][row] = value;
+    }
+
+    /**
+     * @param column a column index
+     * @return the backing array of the column; changes are reflected in the matrix
+     */
+    public double[] getColumn(int column)
+    {
+        return values[column];
+    }
+
+    public boolean isMissing(int row)
+    {
+        return missing.get(row);
+    }
+
+    public void setMissing(int row)
+    {
+        missing.set(row);
+    }
+
+    /**
+     * @return the set of rows with missing values; changes are reflected in the matrix
+     */
+    public BitSet getMissing()
+    {
+        return missing;
+    }
+
+    /**
+     * @return the number of rows with missing values
+     */
+    public int missingCount()
+    {
+        return missing.cardinality();
+    }
+
+    /**
+     * Get the minimum and maximum value of a column. Missing values are ignored.
+     *
+     * @param column the column index
+     * @return an array holding the minimum and the maximum; infinite if all values are missing
+     */
+    public double[] range(int column)
+    {
+        double[] scores = values[column];
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int row = missing.nextClearBit(0); row < size; row = missing.nextClearBit(row + 1)) {
+            min = Math.min(min, scores[row]);
+            max = Math.max(max, scores[row]);
+        }
+        return new double[] { min, max };
+    }
+
+    /**
+     * Scale a column in place to the range [{@link Util#MIN_OUT}, {@link Util#MAX_OUT}], using
+     * the boundaries defined by {@link Util#getScaleBounds(Measure, double, double)}. Missing
+     * values are ignored.
+     *
+     * @param column  the column index
+     * @param measure the {@link Measure} of the column
+     */
+    public void scale(int column, Measure measure)
+    {
+        scale(column, measure, Util.hasFixedBounds(measure) ?
+                new double[] { Double.NaN, Double.NaN } :
+                range(column));
+    }
+
+    /**
+     * Scale a column in place as in {@link #scale(int, Measure)}, using a range of the column that
+     * has been computed already, so that the column is not scanned twice.
+     *
+     * @param column  the column index
+     * @param measure the {@link Measure} of the column
+     * @param range   the minimum and the maximum of the column, as returned by {@link #range(int)}
+     */
+    public void scale(int column, Measure measure, double[] range)
+    {
+        double[] scores = values[column];
+        double[] bounds = Util.getScaleBounds(measure, range[0], range[1]);
+        for (int row = missing.nextClearBit(0); row < size; row = missing.nextClearBit(row + 1)) {
+            scores[row] = Util.scaleValue(Util.MIN_OUT, Util.MAX_OUT, bounds[1], bounds[0],
+                    scores[row]);
+        }
+    }
+
+    /**
+     * Write a column to a file, one score per line. Missing values are written as empty lines.
+     *
+     * @param column     the column index
+     * @param outputFile the output file
+     * @throws IOException
+     */
+    public void write(int column, File outputFile)
+            throws IOException
+    {
+        double[] scores = values[column];
+        try (Writer writer = CompressedFiles.newWriter(outputFile, false)) {
+            for (int row = 0; row < size; row++) {
+                if (!missing.get(row)) {
+                    writer.write(String.valueOf(scores[row]));
+                }
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Compute the Pearson correlation between two columns in a single pass, skipping rows that
+     * are missing in either matrix.
+     *
+     * @param x       the first matrix
+     * @param columnX the column index in the first matrix
+     * @param y       the second matrix
+     * @param columnY the column index in the second matrix
+     * @return the Pearson correlation coefficient
+     */
+    public static double pearson(ScoreMatrix x, int columnX, ScoreMatrix y, int columnY)
+    {
+        if (x.size != y.size) {
+            throw new IllegalArgumentException(
+                    "Different number of rows: " + x.size + " != " + y.size);
+        }
+        double[] xs = x.values[columnX];
+        double[] ys = y.values[columnY];
+        long n = 0;
+        double meanX = 0, meanY = 0, m2x = 0, m2y = 0, cov = 0;
+
+        for (int row = 0; row < x.size; row++) {
+            if (x.missing.get(row) || y.missing.get(row)) {
+                continue;
+            }
+            n++;
+            double dx = xs[row] - meanX;
+            meanX += dx / n;
+            double dy = ys[row] - meanY;
+            meanY += dy / n;
+            m2x += dx * (xs[row] - meanX);
+            m2y += dy * (ys[row] - meanY);
+            cov += dx * (ys[row] - meanY);
+        }
+        return cov / Math.sqrt(m2x * m2y);
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_ASSOCIATIVE;
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_SYNONYMOUS;
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * A long-running HTTP service scoring text pairs on demand. The API client, the metric cache and
+ * the throttle are kept across requests, and the pairs of concurrent requests are combined into
+ * {@code compareBulk} requests by a {@link MicroBatcher}.
+ * <p>
+ * {@code POST /score} takes a JSON object holding a list of text pairs and, optionally, the names
+ * of the {@link Measure}s to return (default: all), e.g.
+ * {@code {"pairs": [["a text", "another text"]], "measures": ["COSINE_SIM"]}}. The response holds
+ * one object per pair, mapping each measure to its score, scaled to the range [0,5] like the
+ * output files. Measures with predefined bounds are scaled by them; for the other measures, the
+ * minimum and maximum values seen by the server so far are used, so that their scaling settles as
+ * more pairs are scored. A score that cannot be scaled yet is null. {@code GET /metrics} returns
+ * the {@link RunMetrics} of the server.
+ * <p>
+ * Call arguments: {@code <api key> [<syn|ass>]}; the port is set by the system property
+ * {@code semeval.port} (default: {@link #DEFAULT_PORT}), the batch size by
+ * {@code semeval.chunkSize} and the maximum time a pair waits for its batch by
+ * {@code semeval.batchDelay} (ms, default: 5).
+ *
+ * @author Carsten Schnober
+ */
+public class ScoringServer
+{
+    public static final int DEFAULT_PORT = 8089;
+    private static final Log LOG = LogFactory.getLog(ScoringServer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int PORT = Integer.getInteger("semeval.port", DEFAULT_PORT);
+    private static final long BATCH_DELAY_MILLIS = Long.getLong("semeval.batchDelay", 5);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MicroBatcher batcher;
+    private final Map<Measure, double[]> observedBounds = new EnumMap<>(Measure.class);
+
+    /**
+     * @param port        the port to listen on
+     * @param compareApi  the {@link Compare} API to use
+     * @param batchSize   the maximum number of pairs per {@code compareBulk} request
+     * @param delayMillis the maximum time a pair waits for more pairs to join its batch
+     * @throws IOException if the server cannot be created
+     */
+    public ScoringServer(int port, Compare compareApi, int batchSize, long delayMillis)
+            throws IOException
+    {
+        this.batcher = new MicroBatcher(compareApi, batchSize, delayMillis, Util.MAX_THREADS);
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/score", this::score);
+        server.createContext("/metrics", this::metrics);
+        for (Measure measure : Measure.values()) {
+            observedBounds.put(measure, new double[] { Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY });
+        }
+    }
+
+    public static void main(String[] args)
+            throws IOException
+    {
+        if (args.length < 1) {
+            throw new IllegalArgumentException(
+                    "Call: " + ScoringServer.class.getCanonicalName() + " <api key> [<syn>]");
+        }
+        Retina retinaName = (args.length > 1 && args[1].toLowerCase().startsWith("syn")) ?
+                EN_SYNONYMOUS : EN_ASSOCIATIVE;
+        AdaptiveThrottle throttle = Util.getThrottle();
+        Compare compareApi = Util.getCompareApi(Util.getApi(args[0], retinaName, Util.RETINA_HOST),
+                retinaName, throttle);
+        RunMetrics.get().register();
+
+        ScoringServer server = new ScoringServer(PORT, compareApi, Util.CHUNK_SIZE,
+                BATCH_DELAY_MILLIS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            if (compareApi instanceof CachingCompare) {
+                ((CachingCompare) compareApi).logStatistics();
+            }
+            throttle.logStatistics();
+        }));
+        server.start();
+        LOG.info("Using Retina " + retinaName.name().toLowerCase() + " at " + Util.RETINA_HOST
+                + ".");
+    }
+
+    public void start()
+    {
+        server.start();
+        LOG.info("Scoring server listening on localhost:" + server.getAddress().getPort() + ".");
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+        batcher.close();
+        batcher.logStatistics();
+    }
+
+    /**
+     * @return the port this server listens on
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    private void score(HttpExchange exchange)
+            throws IOException
+    {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "{\"error\":\"use POST\"}");
+            return;
+        }
+        List<CompareModels> pairs;
+        Set<Measure> measures;
+        try {
+            JsonNode request = MAPPER.readTree(read(exchange.getRequestBody()));
+            pairs = parsePairs(request.path("pairs"));
+            measures = parseMeasures(request.path("measures"));
+        }
+        catch (IOException | IllegalArgumentException e) {
+            respond(exchange, 400, MAPPER.writeValueAsString(errorResponse(e)));
+            return;
+        }
+
+        List<CompletableFuture<Metric>> futures = new ArrayList<>(pairs.size());
+        pairs.forEach(pair -> futures.add(batcher.submit(pair)));
+        List<Map<String, Double>> scores = new ArrayList<>(pairs.size());
+        try {
+            for (CompletableFuture<Metric> future : futures) {
+                scores.add(scale(future.join(), measures));
+            }
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            respond(exchange, cause instanceof ApiException ? 502 : 500,
+                    MAPPER.writeValueAsString(errorResponse(cause)));
+            return;
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("scores", scores);
+        respond(exchange, 200, MAPPER.writeValueAsString(response));
+    }
+
+    private void metrics(HttpExchange exchange)
+            throws IOException
+    {
+        respond(exchange, 200, MAPPER.writeValueAsString(RunMetrics.get().toMap()));
+    }
+
+    private static List<CompareModels> parsePairs(JsonNode node)
+    {
+        if (!node.isArray() || node.size() == 0) {
+            throw new IllegalArgumentException("Expected a non-empty list of pairs.");
+        }
+        List<CompareModels> pairs = new ArrayList<>(node.size());
+        for (JsonNode pair : node) {
+            if (!pair.isArray() || pair.size() != 2 || !pair.get(0).isTextual()
+                    || !pair.get(1).isTextual()) {
+                throw new IllegalArgumentException("Expected a pair of texts: " + pair);
+            }
+            String text1 = pair.get(0).asText();
+            String text2 = pair.get(1).asText();
+            if (text1.trim().isEmpty() || text2.trim().isEmpty()) {
+                throw new IllegalArgumentException("Empty text in pair: " + pair);
+            }
+            pairs.add(new CompareModels(new Text(text1), new Text(text2)));
+        }
+        return pairs;
+    }
+
+    private static Set<Measure> parseMeasures(JsonNode node)
+    {
+        if (node.isMissingNode()) {
+            return EnumSet.allOf(Measure.class);
+        }
+        Set<Measure> measures = EnumSet.noneOf(Measure.class);
+        for (JsonNode measure : node) {
+            measures.add(Measure.valueOf(measure.asText().toUpperCase()));
+        }
+        if (measures.isEmpty()) {
+            throw new IllegalArgumentException("Expected a list of measures.");
+        }
+        return measures;
+    }
+
+    /**
+     * Scale the values of a {@link Metric} for the given measures, updating the bounds observed
+     * for the measures without predefined bounds.
+     */
+    private Map<String, Double> scale(Metric metric, Set<Measure> measures)
+    {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (Measure measure : measures) {
+            double value = Util.getSimilarity(metric, measure);
+            double[] bounds;
+            synchronized (observedBounds) {
+                double[] observed = observedBounds.get(measure);
+                observed[0] = Math.min(observed[0], value);
+                observed[1] = Math.max(observed[1], value);
+                bounds = Util.getScaleBounds(measure, observed[0], observed[1]);
+            }
+            double score = bounds[1] > bounds[0] ?
+                    Util.scaleValue(Util.MIN_OUT, Util.MAX_OUT, bounds[1], bounds[0], value) :
+                    Double.NaN;
+            scores.put(measure.name(), Double.isNaN(score) ? null : score);
+        }
+        return scores;
+    }
+
+    private static Map<String, String> errorResponse(Throwable e)
+    {
+        Map<String, String> error = new LinkedHashMap<>();
+        error.put("error", String.valueOf(e.getMessage()));
+        return error;
+    }
+
+    private static String read(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
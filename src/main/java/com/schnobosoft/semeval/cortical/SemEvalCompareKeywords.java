@@ -2,7 +2,6 @@ package com.schnobosoft.semeval.cortical;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import io.cortical.rest.model.Metric;
-import io.cortical.rest.model.Text;
 import io.cortical.services.Compare;
 import io.cortical.services.RetinaApis;
 import io.cortical.services.Texts;
@@ -12,9 +11,18 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.math3.util.Pair;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.schnobosoft.semeval.cortical.Util.*;
 
@@ -55,20 +63,42 @@ public class SemEvalCompareKeywords
                     "Call: " + SemEvalTextSimilarity.class.getCanonicalName()
                             + " <input file> <api key> [<syn>]");
         }
-        LOG.info("Using Retina " + retinaName.name().toLowerCase() + " at " + Util.RETINA_IP + ".");
+        LOG.info("Using Retina " + retinaName.name().toLowerCase() + " at " + Util.RETINA_HOST + ".");
 
-        RetinaApis api = Util.getApi(apiKey, retinaName, Util.RETINA_IP);
         List<Pair<String, String>> input = readInput(inputFile);
-        List<Metric> metrics = compareByKeyword(input, api);
+        if (Util.DRY_RUN) {
+            Deduplication deduplication = new Deduplication(input, true);
+            deduplication.logStatistics();
+            CostPlanner.planKeywords(inputFile, deduplication, retinaName).print(System.out);
+            return;
+        }
+        RetinaApis api = Util.getApi(apiKey, retinaName, Util.RETINA_HOST);
+        AdaptiveThrottle throttle = Util.getThrottle();
+        Compare compareApi = Util.getCompareApi(api, retinaName, throttle);
+        Deduplication deduplication = new Deduplication(input, true);
+        deduplication.logStatistics();
+        KeywordCache keywordCache = Util.CACHE_ENABLED ?
+                new KeywordCache(retinaName, Util.CACHE_DIR) :
+                null;
+        List<Metric> metrics = deduplication.expand(
+                compareByKeyword(deduplication.getUniquePairs(), Util.getTextApi(api, throttle),
+                        compareApi, keywordCache));
+        if (compareApi instanceof CachingCompare) {
+            ((CachingCompare) compareApi).logStatistics();
+        }
+        if (keywordCache != null) {
+            keywordCache.logStatistics();
+        }
+        throttle.logStatistics();
         saveScores(metrics, inputFile, retinaName);
 
     }
 
     /**
-     * Read an input file of tab-separated texts. Ignoring empty lines.
+     * Read an input file of tab-separated texts with {@link TsvInputReader}.
      *
      * @param inputFile the input {@link File}
-     * @return an array {@link Compare.CompareModels}, each holding two {@link Text}s which have been read from the file.
+     * @return a list of text pairs, one for each line; {@code null} for empty and malformed lines
      * @throws IOException
      */
     private static List<Pair<String, String>> readInput(File inputFile)
@@ -76,45 +106,113 @@ public class SemEvalCompareKeywords
     {
         LOG.info("Reading input file " + inputFile);
         assert inputFile.getName().startsWith(INPUT_FILE_PREFIX);
-        return Files.lines(inputFile.toPath())
-                .filter((s) -> !s.isEmpty())
-                .map(line -> line.split("\t"))
-                .map(lineArray -> Pair.create(lineArray[0], lineArray[1]))
-                .collect(Collectors.toList());
+        return TsvInputReader.readPairs(inputFile);
     }
 
-    private static List<Metric> compareByKeyword(List<Pair<String, String>> input, RetinaApis api)
+    /**
+     * Compare the keywords of each text pair. The keywords are extracted once per unique text,
+     * and the pairs of keyword texts are compared in chunks by {@link ChunkedCompare}. Pairs with
+     * a text without keywords get an empty {@link Metric}.
+     *
+     * @param input        the text pairs
+     * @param textApi      the {@link Texts} API object to use for keyword extraction
+     * @param compareApi   the {@link Compare} API object to use
+     * @param keywordCache the {@link KeywordCache} to use, or {@code null}
+     * @return a list of {@link Metric}s, one for each input pair
+     */
+    private static List<Metric> compareByKeyword(List<Pair<String, String>> input, Texts textApi,
+            Compare compareApi, KeywordCache keywordCache)
     {
-        return input.stream()
-                .map(p -> comparePair(p, api))
-                .collect(Collectors.toList());
-    }
+        Set<String> texts = new LinkedHashSet<>();
+        input.forEach(pair -> {
+            texts.add(pair.getFirst());
+            texts.add(pair.getSecond());
+        });
+        Map<String, String> keywordTexts = extractKeywords(texts, textApi, keywordCache,
+                Util.MAX_THREADS);
 
-    private static Metric comparePair(Pair<String, String> pair, RetinaApis api)
-    {
-        Texts textApi = api.textApi();
-        Compare compareApi = api.compareApi();
+        List<Integer> indexes = new ArrayList<>();
+        List<Pair<String, String>> keywordPairs = new ArrayList<>();
+        for (int i = 0; i < input.size(); i++) {
+            String keywordText1 = keywordTexts.get(input.get(i).getFirst());
+            String keywordText2 = keywordTexts.get(input.get(i).getSecond());
+            if (!keywordText1.isEmpty() && !keywordText2.isEmpty()) {
+                indexes.add(i);
+                keywordPairs.add(Pair.create(keywordText1, keywordText2));
+            }
+        }
 
+        Deduplication deduplication = new Deduplication(keywordPairs, true);
+        Metric[] keywordMetrics;
         try {
-            Text keywordText1 = keywordText(textApi, pair.getFirst());
-            Text keywordText2 = keywordText(textApi, pair.getSecond());
-            return (keywordText1.getText().isEmpty() || keywordText2.getText().isEmpty()) ?
-                    new Metric() : compareApi.compare(keywordText1, keywordText2);
+            keywordMetrics = deduplication.expand(ChunkedCompare.compareBulk(
+                    deduplication.getUniqueCompareModels(), compareApi));
         }
         catch (JsonProcessingException | ApiException e) {
             throw new RuntimeException(e);
         }
+
+        Metric[] metrics = new Metric[input.size()];
+        Arrays.fill(metrics, new Metric());
+        for (int i = 0; i < indexes.size(); i++) {
+            metrics[indexes.get(i)] = keywordMetrics[i];
+        }
+        return Arrays.asList(metrics);
     }
 
-    private static Text keywordText(Texts textApi, String input)
-            throws ApiException
+    /**
+     * Extract the keywords of texts concurrently, using the cache if given.
+     *
+     * @param texts        the texts
+     * @param textApi      the {@link Texts} API object to use
+     * @param keywordCache the {@link KeywordCache} to use, or {@code null}
+     * @param threads      the number of concurrent requests
+     * @return a map from each text to its keywords, joined by spaces
+     */
+    private static Map<String, String> extractKeywords(Collection<String> texts, Texts textApi,
+            KeywordCache keywordCache, int threads)
     {
-        return new Text(String.join(" ", textApi.getKeywords(input)));
+        LOG.info("Extracting keywords for " + texts.size() + " texts.");
+        Map<String, String> keywordTexts = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String text : texts) {
+                List<String> keywords = keywordCache == null ? null : keywordCache.get(text);
+                if (keywords != null) {
+                    keywordTexts.put(text, String.join(" ", keywords));
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    List<String> extracted = textApi.getKeywords(text);
+                    if (keywordCache != null) {
+                        keywordCache.put(text, extracted);
+                    }
+                    keywordTexts.put(text, String.join(" ", extracted));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return keywordTexts;
     }
 
     /**
      * Save the values for the metrics using all measures defined in {@link Util.Measure}. All values
-     * are scaled to the range [0,5].
+     * are scaled to the range [0,5]. The observed ranges are written to a {@link ScaleBounds} file
+     * named like that of {@link SemEvalTextSimilarity}, with {@link #OUTPUT_FILE_SUFFIX}.
      *
      * @param metrics   a list of {@link Metric}s
      * @param inputFile the input file, used for specifying the output files
@@ -123,20 +221,29 @@ public class SemEvalCompareKeywords
     private static void saveScores(List<Metric> metrics, File inputFile, Util.Retina retinaName)
             throws IOException
     {
+        ScoreMatrix scores = ScoreMatrix.fromMetrics(metrics.toArray(new Metric[metrics.size()]));
+        ScaleBounds ranges = new ScaleBounds();
         for (Util.Measure measure : Util.Measure.values()) {
-            File outputFile = new File(
-                    getOutputFile(inputFile, measure, retinaName).getCanonicalPath()
-                            + OUTPUT_FILE_SUFFIX);
-            Writer writer = new BufferedWriter(new FileWriter(outputFile));
-
-            List<Double> scores = scale(
-                    getScores(metrics.toArray(new Metric[metrics.size()]), measure), measure);
+            File outputFile = CompressedFiles.withSuffix(
+                    getOutputFile(inputFile, measure, retinaName), OUTPUT_FILE_SUFFIX);
+            double[] range = scores.range(measure.ordinal());
+            ranges.update(measure, range[0], range[1]);
+            scores.scale(measure.ordinal(), measure, range);
 
             LOG.info("Writing output for '" + inputFile + "'.");
-            for (Double score : scores) {
-                writer.write(String.valueOf(score) + "\n");
-            }
-            writer.close();
+            scores.write(measure.ordinal(), outputFile);
         }
+        ranges.write(getKeywordBoundsFile(inputFile, retinaName));
+    }
+
+    /**
+     * @return the bounds file of {@link Util#getBoundsFile(File, Util.Retina)}, with
+     * {@link #OUTPUT_FILE_SUFFIX} before {@link Util#BOUNDS_FILE_SUFFIX}
+     */
+    private static File getKeywordBoundsFile(File inputFile, Util.Retina retinaName)
+    {
+        String boundsFile = getBoundsFile(inputFile, retinaName).getPath();
+        return new File(boundsFile.substring(0, boundsFile.length() - BOUNDS_FILE_SUFFIX.length())
+                + OUTPUT_FILE_SUFFIX + BOUNDS_FILE_SUFFIX);
     }
 }
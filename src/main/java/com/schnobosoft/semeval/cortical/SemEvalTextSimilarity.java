@@ -18,19 +18,25 @@ package com.schnobosoft.semeval.cortical;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.RunMetrics.Stage;
 import com.schnobosoft.semeval.cortical.Util.Retina;
 import io.cortical.rest.model.Metric;
 import io.cortical.rest.model.Text;
 import io.cortical.services.Compare;
 import io.cortical.services.RetinaApis;
+import io.cortical.services.Texts;
 import io.cortical.services.api.client.ApiException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 
 import static com.schnobosoft.semeval.cortical.Util.INPUT_FILE_PREFIX;
 import static com.schnobosoft.semeval.cortical.Util.Retina.EN_ASSOCIATIVE;
@@ -51,6 +57,9 @@ import static io.cortical.services.Compare.CompareModels;
  * <p>
  * If the latest argument is given, the Retina is changed to {@link Retina#EN_SYNONYMOUS} or {@link Retina#EN_ASSOCIATIVE}
  * respectively. Otherwise, the default is used ({@link #DEFAULT_RETINA_NAME}).
+ * <p>
+ * If {@link Util#DRY_RUN} is set, the input is only read and deduplicated, and the plan computed
+ * by {@link CostPlanner} is printed instead of calling the API.
  *
  * @author Carsten Schnober
  * @see <a href="http://documentation.cortical.io/index.html">Cortical.io API documentation</a>
@@ -82,73 +91,245 @@ public class SemEvalTextSimilarity
                     "Call: " + SemEvalTextSimilarity.class.getCanonicalName()
                             + " <input file> <api key> [<syn>]");
         }
-        LOG.info("Using Retina " + retinaName.name().toLowerCase() + " at " + Util.RETINA_IP + ".");
+        LOG.info("Using Retina " + retinaName.name().toLowerCase() + " at " + Util.RETINA_HOST + ".");
+        if (Util.DRY_RUN) {
+            Deduplication deduplication = Deduplication.of(readInput(inputFile));
+            deduplication.logStatistics();
+            CostPlanner.planTexts(inputFile, deduplication, retinaName).print(System.out);
+            return;
+        }
+        RunMetrics.get().register();
+        RunMetrics.get().writeReportOnExit(
+                Util.getMetricsFile(inputFile, retinaName.name().toLowerCase()));
+
+        AdaptiveThrottle throttle = Util.getThrottle();
+        if (Util.STREAMING) {
+            Compare compareApi = Util.getCompareApi(Util.getApi(apiKey, retinaName, Util.RETINA_HOST),
+                    retinaName, throttle);
+            StreamingScorer.score(inputFile, compareApi, retinaName);
+            if (compareApi instanceof CachingCompare) {
+                ((CachingCompare) compareApi).logStatistics();
+            }
+            throttle.logStatistics();
+            MeasureEnsemble.writeOutput(inputFile);
+            return;
+        }
 
         CompareModels[] input = readInput(inputFile);
-        RetinaApis api = Util.getApi(apiKey, retinaName, Util.RETINA_IP);
-        Metric[] scores = compare(input, api);
-        assert input.length == scores.length;
+        RetinaApis api = Util.getApi(apiKey, retinaName, Util.RETINA_HOST);
+        Deduplication deduplication = Deduplication.of(input);
+        deduplication.logStatistics();
+
+        Compare compareApi = Util.LOCAL_COMPARE ?
+                null :
+                Util.getCompareApi(api, retinaName, throttle);
+        ExecutorService executor = Executors.newFixedThreadPool(Util.MAX_THREADS);
+        try {
+            score(inputFile, deduplication, retinaName, compareApi,
+                    Util.getTextApi(api, throttle), executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+        if (compareApi instanceof CachingCompare) {
+            ((CachingCompare) compareApi).logStatistics();
+        }
+        throttle.logStatistics();
+        MeasureEnsemble.writeOutput(inputFile);
+    }
+
+    /**
+     * Score the unique pairs of an input file, and save the scores for all input pairs.
+     * <p>
+     * If {@link Util#LOCAL_COMPARE} is set, the metrics are computed by {@link LocalCompare} from
+     * fingerprints retrieved with {@code textApi}. Otherwise, the pairs are sent to
+     * {@code compareApi} in chunks, using the threads of {@code executor}.
+     *
+     * @param inputFile     the input file, used for specifying the output files
+     * @param deduplication the {@link Deduplication} of the input pairs
+     * @param retinaName    the {@link Retina} used by the APIs
+     * @param compareApi    the {@link Compare} API object to use; not used in local mode
+     * @param textApi       the {@link Texts} API object to use in local mode
+     * @param executor      the {@link ExecutorService} for concurrent requests
+     * @throws IOException
+     * @throws ApiException
+     */
+    static void score(File inputFile, Deduplication deduplication, Retina retinaName,
+            Compare compareApi, Texts textApi, ExecutorService executor)
+            throws IOException, ApiException
+    {
+        CompareModels[] uniqueInput = deduplication.getUniqueCompareModels();
+        if (Util.LOCAL_COMPARE) {
+            LOG.warn("Local mode is experimental; no " + Measure.WEIGHTED + " output is written.");
+            Metric[] uniqueScores;
+            RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+            try {
+                uniqueScores = LocalCompare.compareBulk(uniqueInput, textApi,
+                        Util.getFingerprintStore(retinaName));
+                RunMetrics.get().addPairs(uniqueInput.length);
+            }
+            finally {
+                timer.stop();
+            }
+            saveScores(deduplication.expand(uniqueScores), inputFile, retinaName,
+                    LocalCompare.MEASURES);
+        }
+        else if (Util.JOURNAL_ENABLED) {
+            ProgressJournal journal = ProgressJournal.open(
+                    Util.getJournalFile(inputFile, retinaName), deduplication.getUniquePairs());
+            try {
+                Metric[] scores = deduplication.expand(
+                        compare(uniqueInput, compareApi, executor, journal));
+                saveScores(scores, inputFile, retinaName, EnumSet.allOf(Measure.class));
+            }
+            catch (IOException | ApiException | RuntimeException e) {
+                journal.close();
+                throw e;
+            }
+            journal.delete();
+        }
+        else {
+            Metric[] scores = deduplication.expand(compare(uniqueInput, compareApi, executor));
+            saveScores(scores, inputFile, retinaName, EnumSet.allOf(Measure.class));
+        }
+    }
 
-        saveScores(scores, inputFile, retinaName);
+    /**
+     * Get the similarity metrics for each text pair. The input is sent in chunks of
+     * {@link Util#CHUNK_SIZE} pairs, using the threads of {@code executor} for concurrent
+     * requests.
+     *
+     * @param input      a list of {@link CompareModels}
+     * @param compareApi the {@link Compare} API object to use
+     * @param executor   the {@link ExecutorService} for concurrent requests
+     * @return a List of {@link Metric}s, one for each input pair
+     */
+    private static Metric[] compare(CompareModels[] input, Compare compareApi,
+            ExecutorService executor)
+            throws JsonProcessingException, ApiException
+    {
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+        try {
+            Metric[] metrics = ChunkedCompare.compareBulk(input, compareApi, Util.CHUNK_SIZE,
+                    executor);
+            RunMetrics.get().addPairs(input.length);
+            return metrics;
+        }
+        finally {
+            timer.stop();
+        }
     }
 
     /**
-     * Get the similarity metrics for each text pair
+     * Get the similarity metrics for each text pair, skipping the pairs that have been completed
+     * in a {@link ProgressJournal}. The results of each chunk are appended to the journal as soon
+     * as they arrive.
      *
-     * @param input a list of {@link CompareModels}
-     * @param api   the {@link RetinaApis} object to use
+     * @param input      a list of {@link CompareModels}
+     * @param compareApi the {@link Compare} API object to use
+     * @param executor   the {@link ExecutorService} for concurrent requests
+     * @param journal    the {@link ProgressJournal} for the input
      * @return a List of {@link Metric}s, one for each input pair
      */
-    private static Metric[] compare(CompareModels[] input, RetinaApis api)
+    private static Metric[] compare(CompareModels[] input, Compare compareApi,
+            ExecutorService executor, ProgressJournal journal)
             throws JsonProcessingException, ApiException
     {
-        Compare compareApiInstance = api.compareApi();
-        return compareApiInstance.compareBulk(input);
+        Metric[] metrics = journal.getResults();
+        int[] remaining = IntStream.range(0, input.length)
+                .filter(i -> metrics[i] == null)
+                .toArray();
+        CompareModels[] remainingInput = IntStream.of(remaining)
+                .mapToObj(i -> input[i])
+                .toArray(CompareModels[]::new);
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+        try {
+            Metric[] remainingMetrics = ChunkedCompare.compareBulk(remainingInput, compareApi,
+                    Util.CHUNK_SIZE, executor, (from, chunkMetrics) -> journal.append(
+                            Arrays.copyOfRange(remaining, from, from + chunkMetrics.length),
+                            chunkMetrics));
+            RunMetrics.get().addPairs(remainingInput.length);
+            for (int i = 0; i < remaining.length; i++) {
+                metrics[remaining[i]] = remainingMetrics[i];
+            }
+            return metrics;
+        }
+        finally {
+            timer.stop();
+        }
     }
 
     /**
-     * Save the values for the metrics using all measures defined in {@link Measure}. All values
-     * are scaled to the range [0,5].
+     * Save the values for the metrics using the given measures. All values are scaled to the
+     * range [0,5]. Depending on {@link Util#OUTPUT_FORMAT}, one text file per measure and/or a
+     * {@link BinaryScoreFile} holding all measures is written. The ranges of the raw values are
+     * written to a {@link ScaleBounds} file.
      *
      * @param metrics   a list of {@link Metric}s
      * @param inputFile the input file, used for specifying the output files
+     * @param measures  the {@link Measure}s to write output files for
      * @throws IOException
      */
-    private static void saveScores(Metric[] metrics, File inputFile, Retina retinaName)
+    private static void saveScores(Metric[] metrics, File inputFile, Retina retinaName,
+            Set<Measure> measures)
             throws IOException
     {
-        for (Measure measure : Measure.values()) {
-            File outputFile = getOutputFile(inputFile, measure, retinaName);
-            Writer writer = new BufferedWriter(new FileWriter(outputFile));
-
-            List<Double> scores = Util.scale(Util.getScores(metrics, measure), measure);
-
-            LOG.info("Writing output for '" + inputFile + "'.");
-            for (Double score : scores) {
-                writer.write(String.valueOf(score) + "\n");
+        ScoreMatrix scores = ScoreMatrix.fromMetrics(metrics);
+        ScaleBounds ranges = new ScaleBounds();
+        for (Measure measure : measures) {
+            double[] range = scores.range(measure.ordinal());
+            ranges.update(measure, range[0], range[1]);
+            RunMetrics.Timer scaleTimer = RunMetrics.get().time(Stage.SCALE);
+            try {
+                scores.scale(measure.ordinal(), measure, range);
+            }
+            finally {
+                scaleTimer.stop();
+            }
+            if (!Util.OUTPUT_FORMAT.equals("binary")) {
+                LOG.info("Writing output for '" + inputFile + "'.");
+                RunMetrics.Timer writeTimer = RunMetrics.get().time(Stage.WRITE);
+                try {
+                    scores.write(measure.ordinal(), getOutputFile(inputFile, measure, retinaName));
+                }
+                finally {
+                    writeTimer.stop();
+                }
             }
-            writer.close();
         }
+        if (!Util.OUTPUT_FORMAT.equals("text")) {
+            RunMetrics.Timer timer = RunMetrics.get().time(Stage.WRITE);
+            try {
+                BinaryScoreFile.write(scores, retinaName, measures,
+                        Util.getBinaryOutputFile(inputFile, retinaName));
+            }
+            finally {
+                timer.stop();
+            }
+        }
+        ranges.write(Util.getBoundsFile(inputFile, retinaName));
     }
 
     /**
-     * Read an input file of tab-separated texts. Ignoring empty lines.
+     * Read an input file of tab-separated texts with {@link TsvInputReader}.
      *
      * @param inputFile the input {@link File}
-     * @return an array {@link CompareModels}, each holding two {@link Text}s which have been read from the file.
+     * @return an array of {@link CompareModels}, each holding two {@link Text}s which have been
+     * read from the file, one for each line; {@code null} for empty and malformed lines
      * @throws IOException
      */
-    private static CompareModels[] readInput(File inputFile)
+    static CompareModels[] readInput(File inputFile)
             throws IOException
     {
         LOG.info("Reading input file " + inputFile);
         assert inputFile.getName().startsWith(INPUT_FILE_PREFIX);
-        List<CompareModels> lines = Files.lines(inputFile.toPath())
-                .filter((s) -> !s.isEmpty())
-                .map(line -> line.split("\t"))
-                .map(line -> new CompareModels(new Text(line[0]), new Text(line[1])))
-                .collect(Collectors.toList());
-        return lines.toArray(new CompareModels[lines.size()]);
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.READ_INPUT);
+        try {
+            return TsvInputReader.read(inputFile);
+        }
+        finally {
+            timer.stop();
+        }
     }
 
 }
@@ -0,0 +1,571 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.RunMetrics.Stage;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.services.Texts;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_ASSOCIATIVE;
+import static com.schnobosoft.semeval.cortical.Util.Retina.EN_SYNONYMOUS;
+
+/**
+ * The all-pairs similarity matrix of a set of sentences, computed locally from their
+ * fingerprints.
+ * <p>
+ * One fingerprint is retrieved for each unique sentence, from a {@link FingerprintStore} if
+ * available, or from the API. The overlaps are then computed in tiles of {@link #ROW_TILE} rows by
+ * {@link #BLOCK_SIZE} columns: for each block of columns, an inverted index maps each fingerprint
+ * position to the (block-local) ids of the sentences holding it, so that the overlap counters of a
+ * row fit into the L1 cache, and the postings of a block are reused for all the rows of a tile.
+ * The tiles are computed in parallel on the common fork-join pool, and the values of a
+ * {@link Measure} are computed as by {@link LocalCompare#similarity}.
+ * <p>
+ * The output is a little-endian binary file holding the magic bytes {@code SEMSIMMX}, an
+ * {@code int} format version, the retina and measure names (each a {@code short} length and UTF-8
+ * bytes), the number of sentences {@code n} and {@code k}, followed by either
+ * <ul>
+ * <li>for {@code k = 0}, the upper triangle without the diagonal: the {@code float} values for all
+ * pairs {@code i < j}, row by row; the value for {@code (i, j)} is at index
+ * {@code i * n - i * (i + 1) / 2 + j - i - 1}, or</li>
+ * <li>for {@code k > 0}, the {@code k} most similar other sentences of each row, most similar
+ * first, each as an {@code int} sentence id and a {@code float} value; missing entries (for
+ * {@code n <= k}) have the id -1.</li>
+ * </ul>
+ * As in {@link Util#getSimilarity}, distances are negated so that larger values mean more
+ * similarity. The sentence ids are the indexes of the non-empty lines of the corpus file.
+ * <p>
+ * Call arguments: {@code <corpus file> <output file> <api key> [<syn|ass>]}. The measure is set
+ * by the system property {@code semeval.measure} (default: {@link Measure#COSINE_SIM}), and
+ * {@code k} by {@code semeval.topK} (default: 0, write the upper triangle).
+ *
+ * @author Carsten Schnober
+ */
+public class SimilarityMatrix
+{
+    /** the number of columns per block; the overlap counters of a row are kept for one block */
+    public static final int BLOCK_SIZE = 2048;
+    /** the number of rows per tile */
+    public static final int ROW_TILE = 256;
+    private static final Log LOG = LogFactory.getLog(SimilarityMatrix.class);
+    private static final byte[] MAGIC = "SEMSIMMX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int FETCH_BATCH_SIZE = 10000;
+    private static final int TOP_K = Integer.getInteger("semeval.topK", 0);
+
+    private final Retina retina;
+    private final int n;
+    private final int[] offsets;
+    private final short[] positions;
+    /* per column block: the start of the postings of each position, and the block-local ids */
+    private final int[][] blockStarts;
+    private final short[][] blockIds;
+
+    /**
+     * @param retina    the {@link Retina} of the fingerprints
+     * @param offsets   the start of the positions of each sentence in {@code positions}, followed
+     *                  by the total number of positions
+     * @param positions the sorted fingerprint positions of all sentences
+     */
+    public SimilarityMatrix(Retina retina, int[] offsets, short[] positions)
+    {
+        this.retina = retina;
+        this.n = offsets.length - 1;
+        this.offsets = offsets;
+        this.positions = positions;
+
+        int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockStarts = new int[blocks][];
+        blockIds = new short[blocks][];
+        IntStream.range(0, blocks).parallel().forEach(this::buildBlock);
+    }
+
+    public static void main(String[] args)
+            throws IOException, ApiException
+    {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Call: " + SimilarityMatrix.class.getCanonicalName()
+                    + " <corpus file> <output file> <api key> [<syn|ass>]");
+        }
+        LocalCompare.checkEnabled();
+        File corpusFile = new File(args[0]);
+        Retina retinaName = (args.length > 3 && args[3].toLowerCase().startsWith("syn")) ?
+                EN_SYNONYMOUS : EN_ASSOCIATIVE;
+        Measure measure = Measure.valueOf(
+                System.getProperty("semeval.measure", Measure.COSINE_SIM.name()));
+        RunMetrics.get().register();
+        RunMetrics.get().writeReportOnExit(
+                Util.getMetricsFile(corpusFile, retinaName.name().toLowerCase()));
+
+        Texts textApi = Util.getTextApi(Util.getApi(args[2], retinaName, Util.RETINA_HOST),
+                Util.getThrottle());
+        SimilarityMatrix matrix = build(corpusFile, textApi,
+                Util.getFingerprintStore(retinaName), retinaName);
+        if (TOP_K > 0) {
+            matrix.writeTopK(new File(args[1]), measure, TOP_K);
+        }
+        else {
+            matrix.writeTriangle(new File(args[1]), measure);
+        }
+    }
+
+    /**
+     * Build the matrix for a corpus file holding one sentence per line. Empty lines are ignored.
+     * Fingerprints are looked up in the store first; the others are retrieved in batches.
+     *
+     * @param corpusFile the corpus file
+     * @param textApi    the {@link Texts} API to retrieve the fingerprints with
+     * @param store      the {@link FingerprintStore} to look up fingerprints in; may be null
+     * @param retinaName the {@link Retina} used by {@code textApi}
+     * @return a new {@link SimilarityMatrix}
+     * @throws IOException
+     * @throws ApiException
+     */
+    public static SimilarityMatrix build(File corpusFile, Texts textApi, FingerprintStore store,
+            Retina retinaName)
+            throws IOException, ApiException
+    {
+        List<String> sentences;
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.READ_INPUT);
+        try (BufferedReader reader = CompressedFiles.newReader(corpusFile)) {
+            sentences = reader.lines()
+                    .filter(line -> !line.trim().isEmpty())
+                    .collect(Collectors.toList());
+        }
+        finally {
+            timer.stop();
+        }
+
+        Map<String, short[]> fingerprints = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String text : new LinkedHashSet<>(sentences)) {
+            CompressedFingerprint fingerprint = store == null ? null : store.get(text);
+            if (fingerprint == null) {
+                missing.add(text);
+            }
+            else {
+                fingerprints.put(text, toShorts(fingerprint.getPositions()));
+            }
+        }
+        LOG.info("Retrieving fingerprints for " + missing.size() + " of "
+                + (fingerprints.size() + missing.size()) + " unique texts in " + sentences.size()
+                + " sentences.");
+        for (int from = 0; from < missing.size(); from += FETCH_BATCH_SIZE) {
+            List<String> batch = missing.subList(from,
+                    Math.min(from + FETCH_BATCH_SIZE, missing.size()));
+            LocalCompare.getFingerprints(batch, textApi, Util.CHUNK_SIZE, Util.MAX_THREADS).forEach(
+                    (text, fingerprint) -> fingerprints.put(text,
+                            toShorts(fingerprint.getPositions())));
+        }
+
+        int[] offsets = new int[sentences.size() + 1];
+        for (int i = 0; i < sentences.size(); i++) {
+            offsets[i + 1] = offsets[i] + fingerprints.get(sentences.get(i)).length;
+        }
+        short[] positions = new short[offsets[sentences.size()]];
+        for (int i = 0; i < sentences.size(); i++) {
+            short[] fingerprint = fingerprints.get(sentences.get(i));
+            System.arraycopy(fingerprint, 0, positions, offsets[i], fingerprint.length);
+        }
+        return new SimilarityMatrix(retinaName, offsets, positions);
+    }
+
+    /**
+     * @return the number of sentences
+     */
+    public int size()
+    {
+        return n;
+    }
+
+    /**
+     * Write the values of a measure for all pairs {@code i < j} (see the format above).
+     *
+     * @param file    the output file
+     * @param measure the {@link Measure}; one of {@link LocalCompare#MEASURES}
+     * @throws IOException
+     */
+    public void writeTriangle(File file, Measure measure)
+            throws IOException
+    {
+        checkMeasure(measure);
+        List<int[]> tiles = new ArrayList<>();
+        for (int rowFrom = 0; rowFrom < n; rowFrom += ROW_TILE) {
+            for (int block = (rowFrom + 1) / BLOCK_SIZE; block < blockIds.length; block++) {
+                tiles.add(new int[] { rowFrom, block });
+            }
+        }
+        LOG.info(String.format("Computing %,d pairs of %d sentences in %d tiles.",
+                (long) n * (n - 1) / 2, n, tiles.size()));
+
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+        try (FileChannel channel = openOutput(file)) {
+            long dataOffset = writeHeader(channel, measure, 0);
+            AtomicInteger done = new AtomicInteger();
+            tiles.parallelStream().forEach(tile -> {
+                try {
+                    triangleTile(tile[0], tile[1], measure, channel, dataOffset);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                logProgress(done.incrementAndGet(), tiles.size());
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            timer.stop();
+        }
+        RunMetrics.get().addPairs((long) n * (n - 1) / 2);
+        LOG.info("Wrote upper triangle of " + n + " sentences to " + file);
+    }
+
+    /**
+     * Write the {@code k} most similar other sentences of each sentence (see the format above).
+     *
+     * @param file    the output file
+     * @param measure the {@link Measure}; one of {@link LocalCompare#MEASURES}
+     * @param k       the number of sentences per row
+     * @throws IOException
+     */
+    public void writeTopK(File file, Measure measure, int k)
+            throws IOException
+    {
+        checkMeasure(measure);
+        if (k < 1) {
+            throw new IllegalArgumentException("Invalid k: " + k);
+        }
+        int rowTiles = (n + ROW_TILE - 1) / ROW_TILE;
+        LOG.info(String.format("Computing the top %d of %d sentences in %d tiles.", k, n,
+                rowTiles * blockIds.length));
+
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+        try (FileChannel channel = openOutput(file)) {
+            long dataOffset = writeHeader(channel, measure, k);
+            AtomicInteger done = new AtomicInteger();
+            IntStream.range(0, rowTiles).parallel().forEach(rowTile -> {
+                try {
+                    topKTile(rowTile * ROW_TILE, measure, k, channel, dataOffset);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                logProgress(done.incrementAndGet(), rowTiles);
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            timer.stop();
+        }
+        RunMetrics.get().addPairs((long) n * (n - 1));
+        LOG.info("Wrote top " + k + " of " + n + " sentences to " + file);
+    }
+
+    /**
+     * Compute the values for the rows of a tile against the columns {@code j > i} of a block, and
+     * write each row segment to its place in the triangle.
+     */
+    private void triangleTile(int rowFrom, int block, Measure measure, FileChannel channel,
+            long dataOffset)
+            throws IOException
+    {
+        int colFrom = block * BLOCK_SIZE;
+        int colTo = Math.min(colFrom + BLOCK_SIZE, n);
+        int[] overlaps = new int[colTo - colFrom];
+        ByteBuffer buffer = ByteBuffer.allocate(overlaps.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = rowFrom; i < Math.min(rowFrom + ROW_TILE, n); i++) {
+            int first = Math.max(colFrom, i + 1);
+            if (first >= colTo) {
+                continue;
+            }
+            countOverlaps(i, block, overlaps);
+            int size = offsets[i + 1] - offsets[i];
+            buffer.clear();
+            for (int j = first; j < colTo; j++) {
+                buffer.putFloat((float) LocalCompare.similarity(measure, size,
+                        offsets[j + 1] - offsets[j], overlaps[j - colFrom]));
+            }
+            buffer.flip();
+            long index = (long) i * n - (long) i * (i + 1) / 2 + first - i - 1;
+            writeFully(channel, buffer, dataOffset + index * 4);
+        }
+    }
+
+    /**
+     * Find the {@code k} most similar sentences for the rows of a tile, going through all the
+     * column blocks, and write the rows.
+     */
+    private void topKTile(int rowFrom, Measure measure, int k, FileChannel channel,
+            long dataOffset)
+            throws IOException
+    {
+        int rowTo = Math.min(rowFrom + ROW_TILE, n);
+        TopK[] rows = new TopK[rowTo - rowFrom];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = new TopK(k);
+        }
+        int[] overlaps = new int[BLOCK_SIZE];
+        for (int block = 0; block < blockIds.length; block++) {
+            int colFrom = block * BLOCK_SIZE;
+            int colTo = Math.min(colFrom + BLOCK_SIZE, n);
+            for (int i = rowFrom; i < rowTo; i++) {
+                countOverlaps(i, block, overlaps);
+                int size = offsets[i + 1] - offsets[i];
+                TopK row = rows[i - rowFrom];
+                for (int j = colFrom; j < colTo; j++) {
+                    if (j != i) {
+                        row.offer(j, (float) LocalCompare.similarity(measure, size,
+                                offsets[j + 1] - offsets[j], overlaps[j - colFrom]));
+                    }
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(rows.length * k * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (TopK row : rows) {
+            row.write(buffer);
+        }
+        buffer.flip();
+        writeFully(channel, buffer, dataOffset + (long) rowFrom * k * 8);
+    }
+
+    /**
+     * Count the overlaps of a sentence with all the sentences of a column block, using the
+     * inverted index of the block.
+     */
+    private void countOverlaps(int i, int block, int[] overlaps)
+    {
+        int[] starts = blockStarts[block];
+        short[] ids = blockIds[block];
+        Arrays.fill(overlaps, 0);
+        for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+            int position = positions[p];
+            for (int posting = starts[position]; posting < starts[position + 1]; posting++) {
+                overlaps[ids[posting]]++;
+            }
+        }
+    }
+
+    /**
+     * Build the inverted index of a column block by counting sort over the positions.
+     */
+    private void buildBlock(int block)
+    {
+        int colFrom = block * BLOCK_SIZE;
+        int colTo = Math.min(colFrom + BLOCK_SIZE, n);
+        int[] starts = new int[FingerprintBits.SIZE + 1];
+        for (int p = offsets[colFrom]; p < offsets[colTo]; p++) {
+            starts[positions[p] + 1]++;
+        }
+        for (int position = 0; position < FingerprintBits.SIZE; position++) {
+            starts[position + 1] += starts[position];
+        }
+        int[] next = Arrays.copyOf(starts, FingerprintBits.SIZE);
+        short[] ids = new short[offsets[colTo] - offsets[colFrom]];
+        for (int j = colFrom; j < colTo; j++) {
+            for (int p = offsets[j]; p < offsets[j + 1]; p++) {
+                ids[next[positions[p]]++] = (short) (j - colFrom);
+            }
+        }
+        blockStarts[block] = starts;
+        blockIds[block] = ids;
+    }
+
+    private long writeHeader(FileChannel channel, Measure measure, int k)
+            throws IOException
+    {
+        byte[] retinaName = retina.name().getBytes(StandardCharsets.UTF_8);
+        byte[] measureName = measure.name().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(
+                MAGIC.length + 4 + 2 + retinaName.length + 2 + measureName.length + 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION)
+                .putShort((short) retinaName.length).put(retinaName)
+                .putShort((short) measureName.length).put(measureName)
+                .putInt(n).putInt(k);
+        header.flip();
+        writeFully(channel, header, 0);
+        return header.limit();
+    }
+
+    private static void checkMeasure(Measure measure)
+    {
+        LocalCompare.checkEnabled();
+        if (!LocalCompare.MEASURES.contains(measure)) {
+            throw new IllegalArgumentException("Measure not supported: " + measure);
+        }
+    }
+
+    private static void logProgress(int done, int total)
+    {
+        if (done * 10L / total > (done - 1) * 10L / total) {
+            LOG.info(String.format("%d of %d tiles done (%d%%).", done, total,
+                    done * 100L / total));
+        }
+    }
+
+    private static FileChannel openOutput(File file)
+            throws IOException
+    {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private static short[] toShorts(int[] values)
+    {
+        short[] shorts = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            shorts[i] = (short) values[i];
+        }
+        return shorts;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * The {@code k} highest values of a row, kept in a min-heap. Ties are broken by the lower
+     * sentence id.
+     */
+    private static class TopK
+    {
+        private final int[] ids;
+        private final float[] values;
+        private int size;
+
+        TopK(int k)
+        {
+            ids = new int[k];
+            values = new float[k];
+        }
+
+        void offer(int id, float value)
+        {
+            if (size < ids.length) {
+                ids[size] = id;
+                values[size] = value;
+                siftUp(size++);
+            }
+            else if (isBetter(id, value, ids[0], values[0])) {
+                ids[0] = id;
+                values[0] = value;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Write the entries, best first, padded with id -1 to {@code k} entries. This empties
+         * the heap.
+         */
+        void write(ByteBuffer buffer)
+        {
+            int k = ids.length;
+            int entries = size;
+            int[] sortedIds = new int[k];
+            float[] sortedValues = new float[k];
+            Arrays.fill(sortedIds, -1);
+            Arrays.fill(sortedValues, Float.NaN);
+            for (int r = entries - 1; r >= 0; r--) {
+                sortedIds[r] = ids[0];
+                sortedValues[r] = values[0];
+                size--;
+                ids[0] = ids[size];
+                values[0] = values[size];
+                siftDown(0);
+            }
+            for (int r = 0; r < k; r++) {
+                buffer.putInt(sortedIds[r]).putFloat(sortedValues[r]);
+            }
+        }
+
+        private static boolean isBetter(int id1, float value1, int id2, float value2)
+        {
+            return value1 > value2 || (value1 == value2 && id1 < id2);
+        }
+
+        private void siftUp(int index)
+        {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!isBetter(ids[parent], values[parent], ids[index], values[index])) {
+                    break;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index)
+        {
+            while (true) {
+                int worst = index;
+                for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                    if (isBetter(ids[worst], values[worst], ids[child], values[child])) {
+                        worst = child;
+                    }
+                }
+                if (worst == index) {
+                    return;
+                }
+                swap(index, worst);
+                index = worst;
+            }
+        }
+
+        private void swap(int a, int b)
+        {
+            int id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            float value = values[a];
+            values[a] = values[b];
+            values[b] = value;
+        }
+    }
+}
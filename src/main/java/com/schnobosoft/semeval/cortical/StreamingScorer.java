@@ -0,0 +1,425 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.schnobosoft.semeval.cortical.CompressedFiles.Compression;
+import com.schnobosoft.semeval.cortical.RunMetrics.Stage;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Score a SemEval input file with bounded memory. Lines are read lazily and sent to the API in
+ * windows of {@code windowSize} pairs; at most {@code maxInFlight} windows are pending at any
+ * time, so reading blocks while the API is busy. Scores are written to the output files as the
+ * results arrive, in input order. Empty and malformed lines are written as empty lines, so that
+ * the output lines match the input lines.
+ * <p>
+ * Measures with fixed scaling boundaries, and measures with boundaries frozen by
+ * {@link ScaleBounds#frozen()}, are scaled immediately. For the other measures, the raw scores
+ * are written in fixed-width fields of {@link #FIELD_WIDTH} characters while their range is
+ * tracked: the hexadecimal digits of the bits of each score, padded with spaces. When the input
+ * is exhausted, these output files are scaled in place in a single pass, which decodes the raw
+ * scores without parsing decimals and overwrites each field with the scaled score. The observed
+ * ranges are written to {@link Util#getBoundsFile(File, Retina)}. Compressed output files are
+ * written through an uncompressed temporary file, which is compressed after scaling.
+ * <p>
+ * Duplicate pairs are not collapsed across windows; use the {@link MetricCache} to avoid
+ * sending them to the API again.
+ *
+ * @author Carsten Schnober
+ */
+public class StreamingScorer
+{
+    private static final Log LOG = LogFactory.getLog(StreamingScorer.class);
+    /* the maximum length of Double.toString() */
+    private static final int FIELD_WIDTH = 24;
+    /* the number of hexadecimal digits of the bits of a raw score */
+    private static final int RAW_DIGITS = 16;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final String RAW_FILE_SUFFIX = ".raw";
+
+    /**
+     * Score an input file using windows of {@link Util#CHUNK_SIZE} pairs and
+     * {@link Util#MAX_THREADS} request threads.
+     *
+     * @param inputFile  the SemEval input file
+     * @param compareApi the {@link Compare} API to use
+     * @param retinaName the {@link Retina} used by {@code compareApi}
+     * @throws IOException
+     * @throws ApiException
+     */
+    public static void score(File inputFile, Compare compareApi, Retina retinaName)
+            throws IOException, ApiException
+    {
+        score(inputFile, compareApi, retinaName, Util.CHUNK_SIZE, Util.MAX_THREADS);
+    }
+
+    /**
+     * Score an input file and write one scaled output file per {@link Measure}.
+     *
+     * @param inputFile   the SemEval input file
+     * @param compareApi  the {@link Compare} API to use
+     * @param retinaName  the {@link Retina} used by {@code compareApi}
+     * @param windowSize  the number of pairs per request
+     * @param maxInFlight the maximum number of pending requests
+     * @throws IOException
+     * @throws ApiException
+     */
+    public static void score(File inputFile, Compare compareApi, Retina retinaName,
+            int windowSize, int maxInFlight)
+            throws IOException, ApiException
+    {
+        LOG.info("Streaming input file " + inputFile);
+        Measure[] measures = Measure.values();
+        File[] outputFiles = new File[measures.length];
+        Writer[] writers = new Writer[measures.length];
+        double[][] bounds = new double[measures.length][];
+        double[] min = new double[measures.length];
+        double[] max = new double[measures.length];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+        ScaleBounds frozen = ScaleBounds.frozen();
+        for (Measure measure : measures) {
+            int m = measure.ordinal();
+            if (Util.hasFixedBounds(measure)
+                    || (frozen != null && frozen.getRange(measure) != null)) {
+                bounds[m] = Util.getScaleBounds(measure, Double.NaN, Double.NaN);
+            }
+            outputFiles[m] = Util.getOutputFile(inputFile, measure, retinaName);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+        Deque<Future<Metric[]>> pending = new ArrayDeque<>();
+        long pairs = 0;
+        Throwable failure = null;
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.COMPARE);
+        try (BufferedReader reader = CompressedFiles.newReader(inputFile)) {
+            for (int m = 0; m < measures.length; m++) {
+                LOG.info("Writing output file " + outputFiles[m]);
+                writers[m] = bounds[m] == null ?
+                        new BufferedWriter(new FileWriter(rawFile(outputFiles[m]))) :
+                        CompressedFiles.newWriter(outputFiles[m], false);
+            }
+            List<CompareModels> window = new ArrayList<>(windowSize);
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                Pair<String, String> pair = TsvInputReader.parseLine(line);
+                if (pair == null) {
+                    LOG.warn(inputFile + ", line " + lineNumber + ": empty or malformed line");
+                    window.add(null);
+                }
+                else {
+                    window.add(new CompareModels(new Text(pair.getFirst()),
+                            new Text(pair.getSecond())));
+                    pairs++;
+                }
+
+                if (window.size() == windowSize) {
+                    while (pending.size() >= maxInFlight) {
+                        write(pending.poll(), writers, bounds, min, max);
+                    }
+                    pending.add(submit(window, compareApi, executor));
+                    window = new ArrayList<>(windowSize);
+                }
+            }
+            if (!window.isEmpty()) {
+                pending.add(submit(window, compareApi, executor));
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), writers, bounds, min, max);
+            }
+        }
+        catch (Throwable e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            timer.stop();
+            pending.forEach(future -> future.cancel(true));
+            executor.shutdownNow();
+            closeAll(writers, failure);
+        }
+        LOG.info("Scored " + pairs + " pairs.");
+        RunMetrics.get().addPairs(pairs);
+
+        ScaleBounds ranges = new ScaleBounds();
+        for (Measure measure : measures) {
+            int m = measure.ordinal();
+            ranges.update(measure, min[m], max[m]);
+            if (bounds[m] == null) {
+                double[] observed = Util.getScaleBounds(measure, min[m], max[m]);
+                File rawFile = rawFile(outputFiles[m]);
+                RunMetrics.Timer scaleTimer = RunMetrics.get().time(Stage.SCALE);
+                try {
+                    rescale(rawFile, observed[0], observed[1]);
+                }
+                finally {
+                    scaleTimer.stop();
+                }
+                if (!rawFile.equals(outputFiles[m])) {
+                    compress(rawFile, outputFiles[m]);
+                }
+            }
+        }
+        ranges.write(Util.getBoundsFile(inputFile, retinaName));
+    }
+
+    /**
+     * Close all writers that have been opened, even if closing one of them fails. If scoring has
+     * failed, close failures are added to that failure as suppressed exceptions; otherwise, the
+     * first one is thrown and the others are added to it.
+     *
+     * @param writers the writers; {@code null} for writers that have not been opened
+     * @param failure the exception that made scoring fail, or {@code null}
+     * @throws IOException if a writer cannot be closed and scoring has not failed
+     */
+    private static void closeAll(Writer[] writers, Throwable failure)
+            throws IOException
+    {
+        IOException closeFailure = null;
+        for (Writer writer : writers) {
+            if (writer == null) {
+                continue;
+            }
+            try {
+                writer.close();
+            }
+            catch (IOException e) {
+                if (failure != null) {
+                    failure.addSuppressed(e);
+                }
+                else if (closeFailure == null) {
+                    closeFailure = e;
+                }
+                else {
+                    closeFailure.addSuppressed(e);
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+
+    private static Future<Metric[]> submit(List<CompareModels> window, Compare compareApi,
+            ExecutorService executor)
+    {
+        CompareModels[] pairs = window.stream()
+                .filter(Objects::nonNull)
+                .toArray(CompareModels[]::new);
+        return executor.submit(() -> {
+            Metric[] metrics = pairs.length == 0 ? new Metric[0] : compareApi.compareBulk(pairs);
+            Metric[] rows = new Metric[window.size()];
+            for (int i = 0, j = 0; i < rows.length; i++) {
+                if (window.get(i) != null) {
+                    rows[i] = metrics[j++];
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Wait for a window of results and append their scores to the writers, updating the minimum
+     * and maximum raw value for each measure. Scores of measures with {@code bounds} are scaled;
+     * the others are written as raw fields by {@link #rawField(double)}.
+     */
+    private static void write(Future<Metric[]> future, Writer[] writers, double[][] bounds,
+            double[] min, double[] max)
+            throws IOException, ApiException
+    {
+        Metric[] metrics;
+        try {
+            metrics = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ApiException) {
+                throw (ApiException) cause;
+            }
+            else if (cause instanceof JsonProcessingException) {
+                throw (JsonProcessingException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+
+        for (Measure measure : Measure.values()) {
+            int m = measure.ordinal();
+            for (Metric metric : metrics) {
+                if (metric == null) {
+                    writers[m].write("\n");
+                    continue;
+                }
+                double score = Util.getSimilarity(metric, measure);
+                min[m] = Math.min(min[m], score);
+                max[m] = Math.max(max[m], score);
+                if (bounds[m] == null) {
+                    writers[m].write(rawField(score));
+                }
+                else {
+                    writers[m].write(String.valueOf(Util.scaleValue(Util.MIN_OUT, Util.MAX_OUT,
+                            bounds[m][1], bounds[m][0], score)));
+                }
+                writers[m].write("\n");
+            }
+        }
+    }
+
+    /**
+     * Scale an output file of raw scores in fixed-width fields in place. The file is read in
+     * blocks; each raw score is replaced by its scaled value, padded to the same width, and the
+     * complete lines of each block are written back to the same position.
+     */
+    private static void rescale(File outputFile, double minIn, double maxIn)
+            throws IOException
+    {
+        LOG.info("Scaling output file " + outputFile);
+        byte[] block = new byte[BLOCK_SIZE];
+        try (FileChannel channel = FileChannel.open(outputFile.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 0;
+            int read;
+            while ((read = readFully(channel, block, position)) > 0) {
+                int offset = 0;
+                while (offset < read) {
+                    if (block[offset] == '\n') {
+                        offset++;       // missing value
+                        continue;
+                    }
+                    if (offset + FIELD_WIDTH >= read) {
+                        break;          // continue in the next block
+                    }
+                    long bits = 0;
+                    for (int i = 0; i < RAW_DIGITS; i++) {
+                        bits = (bits << 4) | Character.digit(block[offset + i], 16);
+                    }
+                    double score = Util.scaleValue(Util.MIN_OUT, Util.MAX_OUT, maxIn, minIn,
+                            Double.longBitsToDouble(bits));
+                    String value = String.valueOf(score);
+                    for (int i = 0; i < FIELD_WIDTH; i++) {
+                        block[offset + i] = i < value.length() ?
+                                (byte) value.charAt(i) :
+                                (byte) ' ';
+                    }
+                    offset += FIELD_WIDTH + 1;
+                }
+                if (offset == 0) {
+                    throw new IOException(outputFile + ": truncated field at byte " + position);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, offset);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                position += offset;
+            }
+        }
+    }
+
+    private static int readFully(FileChannel channel, byte[] block, long position)
+            throws IOException
+    {
+        int read = 0;
+        while (read < block.length) {
+            int n = channel.read(ByteBuffer.wrap(block, read, block.length - read),
+                    position + read);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Get the file to write raw scores to for an output file. Compressed output files cannot be
+     * scaled in place, so their raw scores are written to an uncompressed temporary file.
+     */
+    private static File rawFile(File outputFile)
+    {
+        return Compression.of(outputFile.getName()) == Compression.NONE ?
+                outputFile :
+                new File(CompressedFiles.baseName(outputFile.getPath()) + RAW_FILE_SUFFIX);
+    }
+
+    private static void compress(File rawFile, File outputFile)
+            throws IOException
+    {
+        LOG.info("Compressing output file " + outputFile);
+        RunMetrics.Timer timer = RunMetrics.get().time(Stage.WRITE);
+        try (OutputStream out = CompressedFiles.newOutputStream(outputFile, false)) {
+            Files.copy(rawFile.toPath(), out);
+        }
+        finally {
+            timer.stop();
+        }
+        Files.delete(rawFile.toPath());
+    }
+
+    /**
+     * Encode a raw score as the hexadecimal digits of its bits, padded to {@link #FIELD_WIDTH}.
+     */
+    private static char[] rawField(double score)
+    {
+        char[] field = new char[FIELD_WIDTH];
+        Arrays.fill(field, RAW_DIGITS, FIELD_WIDTH, ' ');
+        long bits = Double.doubleToRawLongBits(score);
+        for (int i = RAW_DIGITS - 1; i >= 0; i--) {
+            field[i] = Character.forDigit((int) (bits & 0xf), 16);
+            bits >>>= 4;
+        }
+        return field;
+    }
+}
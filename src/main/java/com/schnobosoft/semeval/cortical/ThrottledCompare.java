@@ -0,0 +1,105 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Model;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Compare;
+import io.cortical.services.api.client.ApiException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link Compare} API that sends all requests to the wrapped API through an
+ * {@link AdaptiveThrottle}.
+ *
+ * @author Carsten Schnober
+ */
+public class ThrottledCompare
+        implements Compare
+{
+    private final Compare compareApi;
+    private final AdaptiveThrottle throttle;
+
+    /**
+     * @param compareApi the {@link Compare} API to send requests to
+     * @param throttle   the {@link AdaptiveThrottle} to use
+     */
+    public ThrottledCompare(Compare compareApi, AdaptiveThrottle throttle)
+    {
+        this.compareApi = compareApi;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public Metric compare(Model model1, Model model2)
+            throws JsonProcessingException, ApiException
+    {
+        RunMetrics.get().addApiPairs(1, textBytes(model1) + textBytes(model2));
+        return throttle.execute(() -> compareApi.compare(model1, model2));
+    }
+
+    @Override
+    public Metric compare(String jsonModel1, Model model2)
+            throws JsonProcessingException, ApiException
+    {
+        return throttle.execute(() -> compareApi.compare(jsonModel1, model2));
+    }
+
+    @Override
+    public Metric compare(String jsonModel1, String jsonModel2)
+            throws JsonProcessingException, ApiException
+    {
+        return throttle.execute(() -> compareApi.compare(jsonModel1, jsonModel2));
+    }
+
+    @Override
+    public Metric[] compareBulk(CompareModels... compareModels)
+            throws JsonProcessingException, ApiException
+    {
+        long bytes = 0;
+        for (CompareModels pair : compareModels) {
+            bytes += textBytes(pair.getModel1()) + textBytes(pair.getModel2());
+        }
+        RunMetrics.get().addApiPairs(compareModels.length, bytes);
+        return throttle.execute(() -> compareApi.compareBulk(compareModels));
+    }
+
+    @Override
+    public Metric[] compareBulk(String jsonModels)
+            throws JsonProcessingException, ApiException
+    {
+        return throttle.execute(() -> compareApi.compareBulk(jsonModels));
+    }
+
+    public AdaptiveThrottle getThrottle()
+    {
+        return throttle;
+    }
+
+    /**
+     * @return the UTF-8 length of the text of a {@link Text} model, 0 for other models
+     */
+    static long textBytes(Model model)
+    {
+        return model instanceof Text ?
+                ((Text) model).getText().getBytes(StandardCharsets.UTF_8).length :
+                0;
+    }
+}
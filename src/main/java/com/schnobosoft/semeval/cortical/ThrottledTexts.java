@@ -0,0 +1,129 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.cortical.rest.model.Fingerprint;
+import io.cortical.rest.model.Retina;
+import io.cortical.rest.model.Text;
+import io.cortical.services.Pagination;
+import io.cortical.services.PosTag;
+import io.cortical.services.Texts;
+import io.cortical.services.api.client.ApiException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A {@link Texts} API that sends all requests to the wrapped API through an
+ * {@link AdaptiveThrottle}.
+ *
+ * @author Carsten Schnober
+ */
+public class ThrottledTexts
+        implements Texts
+{
+    private final Texts textApi;
+    private final AdaptiveThrottle throttle;
+
+    /**
+     * @param textApi  the {@link Texts} API to send requests to
+     * @param throttle the {@link AdaptiveThrottle} to use
+     */
+    public ThrottledTexts(Texts textApi, AdaptiveThrottle throttle)
+    {
+        this.textApi = textApi;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public List<String> getKeywords(String text)
+            throws ApiException
+    {
+        RunMetrics.get().addApiTexts(1, text.getBytes(StandardCharsets.UTF_8).length);
+        return execute(() -> textApi.getKeywords(text));
+    }
+
+    @Override
+    public List<Fingerprint> getFingerprints(String text)
+            throws ApiException
+    {
+        RunMetrics.get().addApiTexts(1, text.getBytes(StandardCharsets.UTF_8).length);
+        return execute(() -> textApi.getFingerprints(text));
+    }
+
+    @Override
+    public List<Fingerprint> getFingerprintBulk(Double sparsity, Text... texts)
+            throws JsonProcessingException, ApiException
+    {
+        long bytes = 0;
+        for (Text text : texts) {
+            bytes += ThrottledCompare.textBytes(text);
+        }
+        RunMetrics.get().addApiTexts(texts.length, bytes);
+        return throttle.execute(() -> textApi.getFingerprintBulk(sparsity, texts));
+    }
+
+    @Override
+    public List<Text> getSlices(String text, Pagination pagination, Boolean includeFingerprint)
+            throws ApiException
+    {
+        return execute(() -> textApi.getSlices(text, pagination, includeFingerprint));
+    }
+
+    @Override
+    public List<Text> getSlices(String text, Boolean includeFingerprint)
+            throws ApiException
+    {
+        return execute(() -> textApi.getSlices(text, includeFingerprint));
+    }
+
+    @Override
+    public List<Text> getSlices(String text)
+            throws ApiException
+    {
+        return execute(() -> textApi.getSlices(text));
+    }
+
+    @Override
+    public List<String> getTokens(String text, PosTag[] posTags)
+            throws ApiException
+    {
+        return execute(() -> textApi.getTokens(text, posTags));
+    }
+
+    @Override
+    public Retina identifyRetinaByText(String text)
+            throws ApiException
+    {
+        return execute(() -> textApi.identifyRetinaByText(text));
+    }
+
+    /**
+     * Execute a call that does not serialize any models.
+     */
+    private <T> T execute(AdaptiveThrottle.ApiCall<T> call)
+            throws ApiException
+    {
+        try {
+            return throttle.execute(call);
+        }
+        catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.schnobosoft.semeval.cortical.CompressedFiles.Compression;
+import io.cortical.rest.model.Text;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Read SemEval input files of tab-separated text pairs. The file is memory-mapped and split into
+ * shards at line boundaries, which are parsed in parallel by scanning for tab and newline bytes.
+ * <p>
+ * The result has one element per line, so that the indexes match the lines of the gold standard
+ * file. Lines that are empty or malformed (having no tab, or an empty text) are returned as
+ * {@code null}, and reported with their line numbers. Columns after the second one are ignored; a
+ * UTF-8 byte order mark and carriage returns at the line ends are removed.
+ * <p>
+ * Compressed files (see {@link CompressedFiles}) cannot be split; they are parsed as a single
+ * shard while they are decompressed on a separate thread.
+ *
+ * @author Carsten Schnober
+ */
+public class TsvInputReader
+{
+    private static final Log LOG = LogFactory.getLog(TsvInputReader.class);
+    private static final long MIN_SHARD_SIZE = 1 << 20;
+    private static final long MAX_SHARD_SIZE = 1 << 30;
+    private static final int MAX_REPORTED_LINES = 20;
+    private static final byte[] BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+
+    /**
+     * The rows parsed from one shard, and the malformed lines with their line numbers relative
+     * to the shard.
+     */
+    private static class Shard
+    {
+        private final List<Pair<String, String>> rows = new ArrayList<>();
+        private final List<Integer> malformedLines = new ArrayList<>();
+        private final List<String> reasons = new ArrayList<>();
+    }
+
+    /**
+     * Read an input file as {@link CompareModels}.
+     *
+     * @param inputFile the input {@link File}
+     * @return an array holding a {@link CompareModels} of two {@link Text}s for each line, or
+     * {@code null} for empty and malformed lines
+     * @throws IOException
+     */
+    public static CompareModels[] read(File inputFile)
+            throws IOException
+    {
+        return readPairs(inputFile).stream()
+                .map(pair -> pair == null ?
+                        null :
+                        new CompareModels(new Text(pair.getFirst()), new Text(pair.getSecond())))
+                .toArray(CompareModels[]::new);
+    }
+
+    /**
+     * Read an input file as text pairs.
+     *
+     * @param inputFile the input {@link File}
+     * @return a list holding a pair of texts for each line, or {@code null} for empty and
+     * malformed lines
+     * @throws IOException
+     */
+    public static List<Pair<String, String>> readPairs(File inputFile)
+            throws IOException
+    {
+        List<Shard> shards;
+        if (CompressedFiles.detect(inputFile) != Compression.NONE) {
+            shards = Collections.singletonList(parseStream(inputFile));
+        }
+        else {
+            try (FileChannel channel = FileChannel.open(inputFile.toPath(),
+                    StandardOpenOption.READ)) {
+                long[] boundaries = shardBoundaries(channel);
+                shards = IntStream.range(0, boundaries.length - 1).parallel()
+                        .mapToObj(i -> parseShard(channel, boundaries[i], boundaries[i + 1]))
+                        .collect(Collectors.toList());
+            }
+        }
+
+        List<Pair<String, String>> rows = new ArrayList<>();
+        int malformed = 0;
+        for (Shard shard : shards) {
+            for (int i = 0; i < shard.malformedLines.size(); i++) {
+                if (malformed++ < MAX_REPORTED_LINES) {
+                    LOG.warn(String.format("%s, line %d: %s", inputFile,
+                            rows.size() + shard.malformedLines.get(i) + 1,
+                            shard.reasons.get(i)));
+                }
+            }
+            rows.addAll(shard.rows);
+        }
+        if (malformed > MAX_REPORTED_LINES) {
+            LOG.warn(String.format("%s: %d more empty or malformed lines.", inputFile,
+                    malformed - MAX_REPORTED_LINES));
+        }
+        LOG.info(String.format("Read %d lines (%d empty or malformed) in %d shards from %s.",
+                rows.size(), malformed, shards.size(), inputFile));
+        return rows;
+    }
+
+    /**
+     * Parse a single line without a line terminator, as in {@link #readPairs(File)}.
+     *
+     * @param line a line of an input file
+     * @return the pair of texts, or {@code null} if the line is empty or malformed
+     */
+    public static Pair<String, String> parseLine(String line)
+    {
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+            return null;
+        }
+        int end = line.indexOf('\t', tab + 1);
+        return pair(line.substring(0, tab), line.substring(tab + 1, end < 0 ? line.length() : end));
+    }
+
+    private static Pair<String, String> pair(String text1, String text2)
+    {
+        return text1.trim().isEmpty() || text2.trim().isEmpty() ? null : Pair.create(text1, text2);
+    }
+
+    /**
+     * Split a file into shards of similar size, each beginning at the start of a line.
+     *
+     * @return the offsets of the shards, followed by the file size
+     */
+    private static long[] shardBoundaries(FileChannel channel)
+            throws IOException
+    {
+        long size = channel.size();
+        long shards = Math.max((size + MAX_SHARD_SIZE - 1) / MAX_SHARD_SIZE,
+                Math.min(Runtime.getRuntime().availableProcessors() * 4L, size / MIN_SHARD_SIZE));
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long i = 1; i < shards; i++) {
+            long position = Math.max(size * i / shards, boundaries.get(boundaries.size() - 1));
+            long boundary = size;
+            search:
+            while (position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                for (int j = 0; j < n; j++) {
+                    if (buffer.get(j) == '\n') {
+                        boundary = position + j + 1;
+                        break search;
+                    }
+                }
+                position += n;
+            }
+            if (boundary < size && boundary > boundaries.get(boundaries.size() - 1)) {
+                boundaries.add(boundary);
+            }
+        }
+        boundaries.add(size);
+        return boundaries.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static Shard parseShard(FileChannel channel, long start, long end)
+    {
+        Shard shard = new Shard();
+        int length = (int) (end - start);
+        if (length == 0) {
+            return shard;
+        }
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not map input file at offset " + start, e);
+        }
+        byte[] bytes = new byte[1024];
+        int lineStart = start == 0 && hasBom(buffer, length) ? BOM.length : 0;
+        for (int i = lineStart; i <= length; i++) {
+            if (i == length && lineStart == length) {
+                break;
+            }
+            if (i == length || buffer.get(i) == '\n') {
+                int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                if (lineEnd - lineStart > bytes.length) {
+                    bytes = new byte[Math.max(lineEnd - lineStart, bytes.length * 2)];
+                }
+                buffer.position(lineStart);
+                buffer.get(bytes, 0, lineEnd - lineStart);
+                parseLine(bytes, 0, lineEnd - lineStart, shard);
+                lineStart = i + 1;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Parse a compressed file as a single shard, while it is decompressed on another thread by
+     * {@link CompressedFiles}.
+     */
+    private static Shard parseStream(File inputFile)
+            throws IOException
+    {
+        Shard shard = new Shard();
+        byte[] line = new byte[1024];
+        int length = 0;     // the length of a line continued from the previous buffer
+        try (InputStream in = CompressedFiles.newInputStream(inputFile)) {
+            byte[] buffer = new byte[1 << 16];
+            int n = in.read(buffer);
+            int lineStart = n >= BOM.length && hasBom(ByteBuffer.wrap(buffer), n) ? BOM.length : 0;
+            while (n >= 0) {
+                for (int i = lineStart; i < n; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    if (length == 0) {
+                        parseLine(buffer, lineStart, lineEnd(buffer, lineStart, i), shard);
+                    }
+                    else {
+                        line = append(line, length, buffer, lineStart, i);
+                        length += i - lineStart;
+                        parseLine(line, 0, lineEnd(line, 0, length), shard);
+                        length = 0;
+                    }
+                    lineStart = i + 1;
+                }
+                line = append(line, length, buffer, lineStart, n);
+                length += n - lineStart;
+                n = in.read(buffer);
+                lineStart = 0;
+            }
+        }
+        if (length > 0) {
+            parseLine(line, 0, lineEnd(line, 0, length), shard);
+        }
+        return shard;
+    }
+
+    /**
+     * @return the end of a line without a trailing carriage return
+     */
+    private static int lineEnd(byte[] bytes, int from, int to)
+    {
+        return to > from && bytes[to - 1] == '\r' ? to - 1 : to;
+    }
+
+    private static byte[] append(byte[] line, int length, byte[] bytes, int from, int to)
+    {
+        if (length + to - from > line.length) {
+            line = Arrays.copyOf(line, Math.max(length + to - from, line.length * 2));
+        }
+        System.arraycopy(bytes, from, line, length, to - from);
+        return line;
+    }
+
+    private static void parseLine(byte[] bytes, int from, int to, Shard shard)
+    {
+        int tab = indexOf(bytes, (byte) '\t', from, to);
+        Pair<String, String> pair = null;
+        if (to == from) {
+            shard.malformedLines.add(shard.rows.size());
+            shard.reasons.add("empty line");
+        }
+        else if (tab < 0) {
+            shard.malformedLines.add(shard.rows.size());
+            shard.reasons.add("no tab");
+        }
+        else {
+            int end = indexOf(bytes, (byte) '\t', tab + 1, to);
+            pair = pair(new String(bytes, from, tab - from, StandardCharsets.UTF_8),
+                    new String(bytes, tab + 1, (end < 0 ? to : end) - tab - 1,
+                            StandardCharsets.UTF_8));
+            if (pair == null) {
+                shard.malformedLines.add(shard.rows.size());
+                shard.reasons.add("empty text");
+            }
+        }
+        shard.rows.add(pair);
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasBom(ByteBuffer buffer, int length)
+    {
+        return length >= BOM.length && buffer.get(0) == BOM[0] && buffer.get(1) == BOM[1]
+                && buffer.get(2) == BOM[2];
+    }
+}
@@ -17,18 +17,21 @@
 package com.schnobosoft.semeval.cortical;
 
 import io.cortical.rest.model.Metric;
+import io.cortical.services.Compare;
 import io.cortical.services.RetinaApis;
+import io.cortical.services.Texts;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Utilities class for I/O and data conversion.
@@ -42,13 +45,64 @@ public class Util
     public static final String INPUT_FILE_PREFIX = COMMON_PREFIX + "input.";
     public static final String GS_FILE_PREFIX = COMMON_PREFIX + "gs.";
     public static final String RETINA_IP = "api.cortical.io";
+    /* the API host, optionally with a port, e.g. localhost:8088 for a RetinaStandIn */
+    public static final String RETINA_HOST = System.getProperty("semeval.host", RETINA_IP);
     public static final double MAX_OUT = 5;
     public static final double MIN_OUT = 0;
+    /* number of text pairs per compareBulk request, initial number of concurrent requests, and the
+       number of request threads, up to which the concurrency limit can grow */
+    public static final int CHUNK_SIZE = Integer.getInteger("semeval.chunkSize", 200);
+    public static final int THREADS = Integer.getInteger("semeval.threads", 4);
+    public static final int MAX_THREADS = Integer.getInteger("semeval.maxThreads", 4 * THREADS);
+    /* the metric cache: enabled by default, stored in the user's home directory */
+    public static final boolean CACHE_ENABLED = Boolean.parseBoolean(
+            System.getProperty("semeval.cache", "true"));
+    public static final File CACHE_DIR = new File(System.getProperty("semeval.cacheDir",
+            System.getProperty("user.home") + File.separator + ".semeval-cortical"));
+    public static final int CACHE_SIZE = Integer.getInteger("semeval.cacheSize", 100000);
+    /* the maximum API request rate (requests/s, 0 for no limit) and retries per request */
+    public static final double RATE_LIMIT = Double.parseDouble(
+            System.getProperty("semeval.rateLimit", "0"));
+    public static final int MAX_RETRIES = Integer.getInteger("semeval.retries", 5);
+    /* compute metrics locally from fingerprints instead of using the compare API (experimental:
+       the formulas in LocalCompare have not been verified against recorded API responses) */
+    public static final boolean LOCAL_COMPARE = Boolean.getBoolean("semeval.local");
+    /* allow the unverified formulas in LocalCompare for local mode, FingerprintIndex queries and
+       SimilarityMatrix */
+    public static final boolean UNVERIFIED_LOCAL_FORMULAS = Boolean.getBoolean(
+            "semeval.unverifiedLocalFormulas");
+    /* the directory of the fingerprint stores used in local mode, or null */
+    public static final String FINGERPRINT_STORE_DIR = System.getProperty("semeval.fingerprintStore");
+    /* stream the input through the API and write scores as they arrive */
+    public static final boolean STREAMING = Boolean.getBoolean("semeval.streaming");
+    /* plan a run: print the expected requests and duration without calling the API */
+    public static final boolean DRY_RUN = Boolean.getBoolean("semeval.dryRun");
+    /* journal the results of a run, so that it can be resumed after a crash */
+    public static final boolean JOURNAL_ENABLED = Boolean.parseBoolean(
+            System.getProperty("semeval.journal", "true"));
+    /* the number of bootstrap replicates for correlation confidence intervals (0: disabled) */
+    public static final int BOOTSTRAP_REPLICATES = Integer.getInteger("semeval.bootstrap", 0);
+    /* the output format for scores: text, binary, or both */
+    public static final String OUTPUT_FORMAT = System.getProperty("semeval.output", "text");
+    /* the model file of a measure ensemble to write ensemble scores with, or null */
+    public static final String ENSEMBLE_MODEL = System.getProperty("semeval.ensemble");
+    /* a bounds file of a reference run to scale all measures with, or null */
+    public static final String SCALE_BOUNDS_FILE = System.getProperty("semeval.scaleBounds");
+    public static final String BINARY_FILE_SUFFIX = ".scores";
+    public static final String METRICS_FILE_SUFFIX = ".metrics.json";
+    public static final String CORRELATIONS_FILE_SUFFIX = ".cortical.scores";
+    public static final String JOURNAL_FILE_SUFFIX = ".journal";
+    public static final String BOUNDS_FILE_SUFFIX = ".bounds.json";
     private static final Log LOG = LogFactory.getLog(Util.class);
+    /* the keys of the Metric fields as used by Metric(Map), in serialization order */
+    private static final String[] METRIC_KEYS = { "Cosine-Similarity", "Euclidean-Distance",
+            "Jaccard-Distance", "Overlapping-all", "Overlapping-left-right",
+            "Overlapping-right-left", "Size-left", "Size-right", "Weighted-Scoring" };
 
     /**
      * Get the output file object for an input file. The output file begins with the {@link #COMMON_PREFIX},
-     * and appends the retina name and the {@code measure} name.
+     * and appends the retina name and the {@code measure} name. The compression extension of the
+     * input file, if any, is kept, so that the output file is compressed likewise.
      *
      * @param inputFile  the input file object, beginning with {@link #INPUT_FILE_PREFIX}.
      * @param measure    the {@link Measure}
@@ -67,6 +121,47 @@ public class Util
                 COMMON_PREFIX + retinaName.name().toLowerCase() + "." + measure.name() + "."));
     }
 
+    /**
+     * Get the binary output file object for an input file, holding the scores of all measures
+     * (see {@link BinaryScoreFile}). The output file begins with the {@link #COMMON_PREFIX} and the
+     * retina name, and ends with {@link #BINARY_FILE_SUFFIX}.
+     *
+     * @param inputFile  the input file object, beginning with {@link #INPUT_FILE_PREFIX}.
+     * @param retinaName the {@link Retina}
+     * @return a {@link File} object for the binary output file
+     * @throws IOException
+     */
+    public static File getBinaryOutputFile(File inputFile, Retina retinaName)
+            throws IOException
+    {
+        if (!inputFile.getName().startsWith(INPUT_FILE_PREFIX)) {
+            throw new IllegalArgumentException(inputFile + " does not match expected pattern.");
+        }
+
+        return new File(CompressedFiles.baseName(inputFile.getCanonicalPath()).replace(
+                INPUT_FILE_PREFIX, COMMON_PREFIX + retinaName.name().toLowerCase() + ".")
+                + BINARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Get the output file for the scores of a {@link MeasureEnsemble}. The output file begins with
+     * the {@link #COMMON_PREFIX}, followed by {@code ensemble}.
+     *
+     * @param inputFile the input file object, beginning with {@link #INPUT_FILE_PREFIX}.
+     * @return a {@link File} object for the ensemble output file
+     * @throws IOException
+     */
+    public static File getEnsembleOutputFile(File inputFile)
+            throws IOException
+    {
+        if (!inputFile.getName().startsWith(INPUT_FILE_PREFIX)) {
+            throw new IllegalArgumentException(inputFile + " does not match expected pattern.");
+        }
+
+        return new File(inputFile.getCanonicalPath().replace(INPUT_FILE_PREFIX,
+                COMMON_PREFIX + "ensemble."));
+    }
+
     /**
      * Read a file that contains one score per line, as a SemEval gold {@code .gs} file. Empty lines
      * are allowed and are read as missing values.
@@ -75,18 +170,24 @@ public class Util
      * @return a list of optional double values of the same length as the input file. For an empty
      * line, a {@link Optional#EMPTY} object is added to the output list.
      * @throws IOException
+     * @deprecated use {@link ScoreMatrix#read(File)}, which does not box each value
      */
+    @Deprecated
+    @SuppressWarnings("rawtypes")
     public static List<Optional> readScoresFile(File scoresFile)
             throws IOException
     {
         if (!scoresFile.getName().startsWith(GS_FILE_PREFIX)) {
             throw new IllegalArgumentException(scoresFile + " does not match expected pattern.");
         }
-        LOG.info("Reading scores file " + scoresFile);
-
-        return Files.lines(scoresFile.toPath())
-                .map(line -> line.isEmpty() ? Optional.empty() : Optional.of(Double.valueOf(line)))
-                .collect(Collectors.toList());
+        ScoreMatrix scores = ScoreMatrix.read(scoresFile);
+        List<Optional> values = new ArrayList<>(scores.size());
+        for (int row = 0; row < scores.size(); row++) {
+            values.add(scores.isMissing(row) ?
+                    Optional.empty() :
+                    Optional.of(scores.get(0, row)));
+        }
+        return values;
     }
 
     /**
@@ -94,7 +195,9 @@ public class Util
      *
      * @param doubles a list of Doubles
      * @return an array of doubles of the length of the input list
+     * @deprecated use {@link ScoreMatrix}, which holds primitive columns
      */
+    @Deprecated
     public static double[] listToArray(List<Double> doubles)
     {
         double[] array = new double[doubles.size()];
@@ -104,9 +207,164 @@ public class Util
         return array;
     }
 
-    public static RetinaApis getApi(String apiKey, Retina retinaName, String ip)
+    /**
+     * Convert a {@link Metric} into an array holding all its fields.
+     *
+     * @param metric a {@link Metric}
+     * @return an array of all the values in the {@link Metric}
+     * @see #arrayToMetric(double[])
+     */
+    public static double[] metricToArray(Metric metric)
+    {
+        return new double[] { metric.getCosineSimilarity(), metric.getEuclideanDistance(),
+                metric.getJaccardDistance(), metric.getOverlappingAll(),
+                metric.getOverlappingLeftRight(), metric.getOverlappingRightLeft(),
+                metric.getSizeLeft(), metric.getSizeRight(), metric.getWeightedScoring() };
+    }
+
+    /**
+     * Create a {@link Metric} from an array as created by {@link #metricToArray(Metric)}.
+     *
+     * @param values an array of all the values in a {@link Metric}
+     * @return a new {@link Metric}
+     */
+    public static Metric arrayToMetric(double[] values)
+    {
+        if (values.length != METRIC_KEYS.length) {
+            throw new IllegalArgumentException("Invalid number of metric values: " + values.length);
+        }
+        Map<String, Double> map = new HashMap<>();
+        for (int i = 0; i < METRIC_KEYS.length; i++) {
+            map.put(METRIC_KEYS[i], values[i]);
+        }
+        return new Metric(map);
+    }
+
+    /**
+     * Get the file for the {@link RunMetrics} report of a run on an input file.
+     *
+     * @param inputFile the input file
+     * @param run       the name of the run, e.g. the retina name
+     * @return a {@link File} named after the input file, the run and {@link #METRICS_FILE_SUFFIX}
+     */
+    public static File getMetricsFile(File inputFile, String run)
+    {
+        return new File(CompressedFiles.baseName(inputFile.getPath()) + "." + run
+                + METRICS_FILE_SUFFIX);
+    }
+
+    /**
+     * Get the {@link ScaleBounds} file for scoring an input file with a retina.
+     *
+     * @param inputFile  the input file
+     * @param retinaName the {@link Retina}
+     * @return a {@link File} named after the input file, the retina and {@link #BOUNDS_FILE_SUFFIX}
+     */
+    public static File getBoundsFile(File inputFile, Retina retinaName)
+    {
+        return new File(CompressedFiles.baseName(inputFile.getPath()) + "."
+                + retinaName.name().toLowerCase() + BOUNDS_FILE_SUFFIX);
+    }
+
+    /**
+     * Get the {@link ProgressJournal} file for scoring an input file with a retina.
+     *
+     * @param inputFile  the input file
+     * @param retinaName the {@link Retina}
+     * @return a {@link File} named after the input file, the retina and {@link #JOURNAL_FILE_SUFFIX}
+     */
+    public static File getJournalFile(File inputFile, Retina retinaName)
+    {
+        return new File(CompressedFiles.baseName(inputFile.getPath()) + "."
+                + retinaName.name().toLowerCase() + JOURNAL_FILE_SUFFIX);
+    }
+
+    /**
+     * Open the {@link FingerprintStore} for a retina in {@link #FINGERPRINT_STORE_DIR}.
+     *
+     * @param retinaName the {@link Retina}
+     * @return the {@link FingerprintStore}, or null if no store directory is set or the directory
+     * holds no store for the retina
+     * @throws IOException
+     */
+    public static FingerprintStore getFingerprintStore(Retina retinaName)
+            throws IOException
+    {
+        if (FINGERPRINT_STORE_DIR == null) {
+            return null;
+        }
+        File file = FingerprintStore.getStoreFile(new File(FINGERPRINT_STORE_DIR), retinaName);
+        if (!file.exists()) {
+            LOG.warn("No fingerprint store for " + retinaName.name().toLowerCase() + ": " + file);
+            return null;
+        }
+        return FingerprintStore.open(file);
+    }
+
+    /**
+     * Create the API object for a retina.
+     *
+     * @param apiKey     the API key
+     * @param retinaName the {@link Retina}
+     * @param host       the API host name or IP, optionally followed by a colon and a port number
+     * @return a {@link RetinaApis} object
+     */
+    public static RetinaApis getApi(String apiKey, Retina retinaName, String host)
+    {
+        int colon = host.lastIndexOf(':');
+        if (colon < 0) {
+            return new RetinaApis(retinaName.name().toLowerCase(), host, apiKey);
+        }
+        int port = Integer.parseInt(host.substring(colon + 1));
+        if (port > Short.MAX_VALUE) {
+            /* the client library takes the port as a short */
+            throw new IllegalArgumentException("Port number not supported: " + port);
+        }
+        return new RetinaApis(retinaName.name().toLowerCase(), host.substring(0, colon),
+                (short) port, apiKey);
+    }
+
+    /**
+     * Create an {@link AdaptiveThrottle} with the configured {@link #RATE_LIMIT} and
+     * {@link #MAX_RETRIES}. The concurrency limit starts at {@link #THREADS} concurrent requests
+     * and can grow up to {@link #MAX_THREADS}.
+     *
+     * @return a new {@link AdaptiveThrottle}
+     */
+    public static AdaptiveThrottle getThrottle()
     {
-        return new RetinaApis(retinaName.name().toLowerCase(), ip, apiKey);
+        return new AdaptiveThrottle(RATE_LIMIT, THREADS, MAX_THREADS, MAX_RETRIES);
+    }
+
+    /**
+     * Get the {@link Compare} API to use for a retina. Requests are sent through a
+     * {@link ThrottledCompare}. If the cache is enabled (see {@link #CACHE_ENABLED}), the API is
+     * wrapped in a {@link CachingCompare}, so that cache hits do not count against the throttle.
+     *
+     * @param api        the {@link RetinaApis} object
+     * @param retinaName the {@link Retina} used by {@code api}
+     * @param throttle   the {@link AdaptiveThrottle} for requests to the API
+     * @return a {@link Compare} API object
+     */
+    public static Compare getCompareApi(RetinaApis api, Retina retinaName,
+            AdaptiveThrottle throttle)
+    {
+        Compare compareApi = new ThrottledCompare(api.compareApi(), throttle);
+        return CACHE_ENABLED ?
+                new CachingCompare(compareApi, new MetricCache(retinaName, CACHE_DIR, CACHE_SIZE)) :
+                compareApi;
+    }
+
+    /**
+     * Get the {@link Texts} API to use, sending requests through a {@link ThrottledTexts}.
+     *
+     * @param api      the {@link RetinaApis} object
+     * @param throttle the {@link AdaptiveThrottle} for requests to the API
+     * @return a {@link Texts} API object
+     */
+    public static Texts getTextApi(RetinaApis api, AdaptiveThrottle throttle)
+    {
+        return new ThrottledTexts(api.textApi(), throttle);
     }
 
     /**
@@ -115,36 +373,58 @@ public class Util
      * @param values  the values to scale
      * @param measure the {@link Measure} to use for scaling (some have predefined min/max boundaries)
      * @return a list of doubles in the range between {@link #MIN_OUT} and {@link #MAX_OUT}
+     * @deprecated use {@link ScoreMatrix#scale(int, Measure)}, which scales a column in place
      */
+    @Deprecated
     public static List<Double> scale(Collection<Double> values, Measure measure)
     {
-        double maxIn;
-        double minIn;
+        ScoreMatrix scores = ScoreMatrix.column(
+                values.stream().mapToDouble(Double::doubleValue).toArray(), new BitSet());
+        scores.scale(0, measure);
+        return toList(scores.getColumn(0));
+    }
 
+    /**
+     * Get the input range to use for scaling the values of a measure. Some measures have
+     * predefined boundaries; for the others, the minimum and/or maximum of the actual values are
+     * used, unless {@link ScaleBounds#frozen()} holds the range of the measure in a reference run.
+     *
+     * @param measure the {@link Measure}
+     * @param min     the minimum of the values to scale
+     * @param max     the maximum of the values to scale
+     * @return an array holding the lower and the upper boundary of the input range
+     */
+    public static double[] getScaleBounds(Measure measure, double min, double max)
+    {
+        ScaleBounds frozen = hasFixedBounds(measure) ? null : ScaleBounds.frozen();
+        double[] range = frozen == null ? null : frozen.getRange(measure);
+        if (range != null) {
+            min = range[0];
+            max = range[1];
+        }
         switch (measure) {
         case COSINE_SIM:
-            maxIn = 1.0;
-            minIn = 0.0;
-            break;
+            return new double[] { 0.0, 1.0 };
         case JACCARD_DIST:
-            maxIn = 0.0;
-            minIn = -1.0;
-            break;
+            return new double[] { -1.0, 0.0 };
         case EUCLIDIAN_DIST:
-            maxIn = 0;
-            minIn = values.stream().min(Double::compare).get();
-            break;
+            return new double[] { min, 0 };
         default:
-            maxIn = values.stream().max(Double::compare).get();
-            minIn = values.stream().min(Double::compare).get();
+            return new double[] { min, max };
         }
-        return values.stream()
-                .map(value -> scaleValue(MIN_OUT, MAX_OUT, maxIn, minIn, value))
-                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param measure the {@link Measure}
+     * @return true if the scaling boundaries of the measure do not depend on the values
+     */
+    public static boolean hasFixedBounds(Measure measure)
+    {
+        return measure == Measure.COSINE_SIM || measure == Measure.JACCARD_DIST;
     }
 
     public static double scaleValue(double min, double max, double maxIn, double minIn,
-            Double value)
+            double value)
     {
         return (((value - minIn) * (max - min)) / (maxIn - minIn)) + min;
     }
@@ -158,7 +438,7 @@ public class Util
      * @param measure a {@link Measure} definition
      * @return the value for the measure
      */
-    private static Double getSimilarity(Metric metric, Measure measure)
+    public static double getSimilarity(Metric metric, Measure measure)
     {
         switch (measure) {
         case WEIGHTED:
@@ -170,7 +450,7 @@ public class Util
         case JACCARD_DIST:
             return -metric.getJaccardDistance();    // negative for distance -> similarity
         case OVERLAP:
-            return (double) metric.getOverlappingAll();
+            return metric.getOverlappingAll();
         default:
             throw new IllegalArgumentException("Invalid measure: " + measure);
         }
@@ -182,12 +462,25 @@ public class Util
      * @param metrics a list of {@link Metric} objects
      * @param measure the {@link Measure} type
      * @return a list of scores, one for each input {@link Metric}
+     * @deprecated use {@link ScoreMatrix#fromMetrics(Metric[])}, which does not box each value
      */
+    @Deprecated
     public static List<Double> getScores(Metric[] metrics, Measure measure)
     {
-        return Stream.of(metrics)
-                .map(metric -> getSimilarity(metric, measure))
-                .collect(Collectors.toList());
+        double[] scores = new double[metrics.length];
+        for (int i = 0; i < metrics.length; i++) {
+            scores[i] = getSimilarity(metrics[i], measure);
+        }
+        return toList(scores);
+    }
+
+    private static List<Double> toList(double[] values)
+    {
+        List<Double> list = new ArrayList<>(values.length);
+        for (double value : values) {
+            list.add(value);
+        }
+        return list;
     }
 
     /**
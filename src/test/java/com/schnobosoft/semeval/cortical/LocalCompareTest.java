@@ -0,0 +1,118 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.schnobosoft.semeval.cortical.Util.Measure;
+import io.cortical.rest.model.Metric;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compare the {@link Metric}s computed by {@link LocalCompare} with {@code compare} API responses
+ * recorded by {@link RecordApiResponses} in {@code src/test/resources/recorded}. Without recorded
+ * responses, the test fails if {@link Util#UNVERIFIED_LOCAL_FORMULAS} enables the local formulas,
+ * and checks that they are rejected otherwise.
+ *
+ * @author Carsten Schnober
+ */
+public class LocalCompareTest
+{
+    private static final double TOLERANCE = 1e-6;
+
+    @Test
+    public void testRecordedResponses()
+            throws IOException, URISyntaxException
+    {
+        URL directory = LocalCompareTest.class.getResource("/recorded");
+        File[] files = directory == null ?
+                new File[0] :
+                new File(directory.toURI()).listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) {
+            assertFalse("No recorded API responses in src/test/resources/recorded; the local "
+                    + "formulas must stay disabled.", Util.UNVERIFIED_LOCAL_FORMULAS);
+            try {
+                LocalCompare.checkEnabled();
+                fail("The unverified local formulas are enabled.");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+            return;
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        for (File file : files) {
+            JsonNode root = mapper.readTree(file);
+            JsonNode fingerprints = root.get("fingerprints");
+            for (JsonNode pair : root.get("pairs")) {
+                Metric expected = mapper.treeToValue(pair.get("metric"), Metric.class);
+                Metric actual = LocalCompare.compare(
+                        fingerprint(fingerprints.get(pair.get("text1").asText())),
+                        fingerprint(fingerprints.get(pair.get("text2").asText())));
+                String message = file.getName() + ": " + pair.get("text1").asText() + " / "
+                        + pair.get("text2").asText() + ", ";
+                assertEquals(message + "size left", expected.getSizeLeft(), actual.getSizeLeft());
+                assertEquals(message + "size right", expected.getSizeRight(),
+                        actual.getSizeRight());
+                for (Measure measure : LocalCompare.MEASURES) {
+                    assertEquals(message + measure, Util.getSimilarity(expected, measure),
+                            Util.getSimilarity(actual, measure), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalFingerprints()
+    {
+        Metric metric = LocalCompare.compare(100, 100, 100);
+        assertEquals(1.0, metric.getCosineSimilarity(), TOLERANCE);
+        assertEquals(0.0, metric.getEuclideanDistance(), TOLERANCE);
+        assertEquals(0.0, metric.getJaccardDistance(), TOLERANCE);
+        assertEquals(100, metric.getOverlappingAll());
+    }
+
+    @Test
+    public void testDisjointFingerprints()
+    {
+        Metric metric = LocalCompare.compare(100, 50, 0);
+        assertEquals(0.0, metric.getCosineSimilarity(), TOLERANCE);
+        assertEquals(1.0, metric.getEuclideanDistance(), TOLERANCE);
+        assertEquals(1.0, metric.getJaccardDistance(), TOLERANCE);
+        assertTrue(Double.isNaN(metric.getWeightedScoring()));
+    }
+
+    private static FingerprintBits fingerprint(JsonNode positions)
+    {
+        int[] array = new int[positions.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = positions.get(i).asInt();
+        }
+        return new FingerprintBits(array);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of SemEvalCortical.
+ * <p>
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with SemEvalCortical.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.schnobosoft.semeval.cortical;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.schnobosoft.semeval.cortical.Util.Retina;
+import io.cortical.rest.model.Fingerprint;
+import io.cortical.rest.model.Metric;
+import io.cortical.rest.model.Text;
+import io.cortical.services.RetinaApis;
+import io.cortical.services.api.client.ApiException;
+import org.apache.commons.math3.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static io.cortical.services.Compare.CompareModels;
+
+/**
+ * Record {@code compare/bulk} and {@code text/bulk} (fingerprint) responses of the API for the
+ * first pairs of a SemEval input file, for {@link LocalCompareTest}. The requests bypass the
+ * cache and the throttle, so that the recorded responses are those of the API.
+ * <p>
+ * Call arguments: {@code <api key> <ass|syn> <input file> [<pairs>]} (default: 50 pairs). The
+ * responses are written to {@code src/test/resources/recorded/<retina>.json}.
+ *
+ * @author Carsten Schnober
+ */
+public class RecordApiResponses
+{
+    private static final int DEFAULT_PAIRS = 50;
+
+    public static void main(String[] args)
+            throws IOException, ApiException
+    {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Call: "
+                    + RecordApiResponses.class.getCanonicalName()
+                    + " <api key> <ass|syn> <input file> [<pairs>]");
+        }
+        Retina retinaName = args[1].toLowerCase().startsWith("syn") ?
+                Retina.EN_SYNONYMOUS :
+                Retina.EN_ASSOCIATIVE;
+        int limit = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PAIRS;
+        List<Pair<String, String>> pairs = TsvInputReader.readPairs(new File(args[2])).stream()
+                .filter(Objects::nonNull)
+                .limit(limit)
+                .collect(Collectors.toList());
+
+        RetinaApis api = Util.getApi(args[0], retinaName, Util.RETINA_HOST);
+        Metric[] metrics = api.compareApi().compareBulk(pairs.stream()
+                .map(pair -> new CompareModels(new Text(pair.getFirst()),
+                        new Text(pair.getSecond())))
+                .toArray(CompareModels[]::new));
+        Set<String> texts = new LinkedHashSet<>();
+        pairs.forEach(pair -> {
+            texts.add(pair.getFirst());
+            texts.add(pair.getSecond());
+        });
+        List<String> textList = new ArrayList<>(texts);
+        List<Fingerprint> fingerprints = api.textApi().getFingerprintBulk(null,
+                textList.stream().map(Text::new).toArray(Text[]::new));
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        root.put("retina", retinaName.name());
+        ArrayNode pairNodes = root.putArray("pairs");
+        for (int i = 0; i < pairs.size(); i++) {
+            ObjectNode pairNode = pairNodes.addObject();
+            pairNode.put("text1", pairs.get(i).getFirst());
+            pairNode.put("text2", pairs.get(i).getSecond());
+            pairNode.set("metric", mapper.valueToTree(metrics[i]));
+        }
+        ObjectNode fingerprintNodes = root.putObject("fingerprints");
+        for (int i = 0; i < textList.size(); i++) {
+            fingerprintNodes.set(textList.get(i),
+                    mapper.valueToTree(fingerprints.get(i).getPositions()));
+        }
+
+        File outputFile = new File("src/test/resources/recorded",
+                retinaName.name().toLowerCase() + ".json");
+        mapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(outputFile, root);
+        System.out.println("Recorded " + pairs.size() + " pairs and " + textList.size()
+                + " fingerprints to " + outputFile);
+    }
+}